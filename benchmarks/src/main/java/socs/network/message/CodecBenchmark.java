@@ -0,0 +1,141 @@
+package socs.network.message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of packets with each codec the router has had:
+ * <ul>
+ * <li>serialization: one ObjectOutputStream per packet, how packets were originally sent</li>
+ * <li>binary: {@link PacketCodec}, what is sent now</li>
+ * </ul>
+ * The packets are a HELLO, a CONNECT and LSAUPDATEs of 1, 16 and 256 LSAs of 4 links each.
+ * Time is per packet; run with {@code -prof gc} for the bytes allocated per packet
+ * ({@code gc.alloc.rate.norm}). The size of each packet on the wire is printed by
+ * {@code java -cp target/benchmarks.jar socs.network.message.CodecBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+  static final String[] PACKETS = {"hello", "connect", "lsaupdate-1", "lsaupdate-16", "lsaupdate-256"};
+  static final String[] CODECS = {"serialization", "binary"};
+
+  @Param({"hello", "connect", "lsaupdate-1", "lsaupdate-16", "lsaupdate-256"})
+  String packet;
+
+  @Param({"serialization", "binary"})
+  String codec;
+
+  private SOSPFPacket message;
+  private byte[] frame;
+
+  @Setup
+  public void setup() throws IOException {
+    message = packet(packet);
+    frame = encode(codec, message);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return encode(codec, message);
+  }
+
+  @Benchmark
+  public SOSPFPacket decode() throws IOException, ClassNotFoundException {
+    return decode(codec, frame);
+  }
+
+  static byte[] encode(String codec, SOSPFPacket packet) throws IOException {
+    if (codec.equals("binary")) {
+      return PacketCodec.encode(packet);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(packet);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static SOSPFPacket decode(String codec, byte[] frame) throws IOException, ClassNotFoundException {
+    if (codec.equals("binary")) {
+      return PacketCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4));
+    }
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame));
+    return (SOSPFPacket) in.readObject();
+  }
+
+  /**
+   * the packet of the given name, sent by 192.168.1.1 to 192.168.1.2
+   */
+  static SOSPFPacket packet(String name) {
+    if (name.equals("hello")) {
+      return new SOSPFPacket("127.0.0.1", (short) 5001, "192.168.1.1", "192.168.1.2", (short) 0,
+          "192.168.1.1", "192.168.1.1", 3);
+    }
+    if (name.equals("connect")) {
+      return new SOSPFPacket("127.0.0.1", (short) 5001, "192.168.1.1", "192.168.1.2", (short) 2,
+          "192.168.1.1", "192.168.1.1", 3);
+    }
+    if (name.startsWith("lsaupdate-")) {
+      int count = Integer.parseInt(name.substring("lsaupdate-".length()));
+      Vector<LSA> lsas = new Vector<LSA>(count);
+      for (int i = 0; i < count; i++) {
+        LSA lsa = new LSA();
+        lsa.linkStateID = "10.0." + (i >> 8) + "." + (i & 255);
+        lsa.lsaSeqNumber = i;
+        for (int l = 0; l < 4; l++) {
+          LinkDescription ld = new LinkDescription();
+          ld.linkID = "10.1." + l + "." + (i & 255);
+          ld.portNum = l;
+          ld.tosMetrics = 1 + (i + l) % 10;
+          lsa.links.add(ld);
+        }
+        lsas.add(lsa);
+      }
+      return new SOSPFPacket("127.0.0.1", (short) 5001, "192.168.1.1", "192.168.1.2", (short) 1,
+          "192.168.1.1", "192.168.1.1", lsas);
+    }
+    throw new IllegalArgumentException("unknown packet " + name);
+  }
+
+  /**
+   * prints the bytes each codec sends for each packet
+   */
+  public static void main(String[] args) throws IOException {
+    System.out.printf("%-15s", "packet");
+    for (String codec : CODECS) {
+      System.out.printf("%15s", codec);
+    }
+    System.out.println();
+    for (String name : PACKETS) {
+      System.out.printf("%-15s", name);
+      for (String codec : CODECS) {
+        System.out.printf("%15d", encode(codec, packet(name)).length);
+      }
+      System.out.println();
+    }
+  }
+}
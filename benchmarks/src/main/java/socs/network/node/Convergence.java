@@ -0,0 +1,382 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.util.Configuration;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how long the link state databases of a whole network take to agree after a change.
+ * <p/>
+ * N routers are created in this JVM on the memory transport, attached along a topology from
+ * {@link Topologies} and started, all through their terminal commands. A change is then applied
+ * with one more command (connect, update or disconnect, on randomly picked routers) and both the
+ * start and the change are timed until the network has converged, which is when:
+ * <ul>
+ * <li>every router's own LSA holds exactly the links of its current ports, so no origination is
+ * still pending</li>
+ * <li>every router holds that very LSA, same sequence number, for every other router</li>
+ * </ul>
+ * Once converged, the harness waits for the network to settle (late floods, background SPF runs)
+ * before reading how many packets and bytes each router sent and how many SPF runs it did.
+ * <p/>
+ * The report is a JSON document, written to the given file or to stdout. Usage:
+ * <pre>
+ *   java -cp target/benchmarks.jar socs.network.node.Convergence [--topology ring|grid|random|scalefree]
+ *       [--routers 100] [--change start|connect|update|disconnect] [--seed 1] [--timeoutMs 60000]
+ *       [--settleMs 500] [--startThreads 8] [--out report.json] [--set key=value ...]
+ * </pre>
+ * {@code --set} passes a router setting (without the {@code socs.network.router.} prefix) to
+ * every router, e.g. {@code --set deltaLSAs=true}. The exit status is 1 if a phase did not
+ * converge within the timeout.
+ */
+public class Convergence {
+
+  private static final String PROCESS_IP = "127.0.0.1";
+  private static final int FIRST_PORT = 1024;
+
+  private final Router[] routers;
+  private final String[] ips;
+
+  // what each phase measured, in the order they ran
+  private final List<String> phases = new ArrayList<String>();
+
+  private Convergence(int count, int maxDegree, Map<String, String> settings) {
+    routers = new Router[count];
+    ips = new String[count];
+    for (int i = 0; i < count; i++) {
+      ips[i] = Topologies.ip(i);
+      Configuration config = new Configuration();
+      config.addEntry("socs.network.router.ip", ips[i]);
+      config.addEntry("socs.network.router.portNumber", String.valueOf(FIRST_PORT + i));
+      config.addEntry("socs.network.router.maxDegree", String.valueOf(maxDegree));
+      // keepalives would only add noise to the packet counts
+      config.addEntry("socs.network.router.helloIntervalMs", "0");
+      for (Map.Entry<String, String> setting : settings.entrySet()) {
+        config.addEntry("socs.network.router." + setting.getKey(), setting.getValue());
+      }
+      routers[i] = new Router(config, new MemoryTransport());
+    }
+  }
+
+  /**
+   * runs a terminal command on router i
+   */
+  private void execute(int i, String command) throws Exception {
+    if (!routers[i].execute(command)) {
+      throw new IllegalArgumentException("not a router command: " + command);
+    }
+  }
+
+  private String attachCommand(String verb, int to, int weight) {
+    return verb + " " + PROCESS_IP + " " + (FIRST_PORT + to) + " " + ips[to] + " " + weight;
+  }
+
+  /**
+   * whether every router's LSA reflects its ports and every router holds all of them
+   */
+  private boolean converged() {
+    for (Router origin : routers) {
+      LSA own = origin.lsd.get(origin.rd.simulatedIPAddress);
+      if (!matchesPorts(own, origin)) {
+        return false;
+      }
+      for (Router router : routers) {
+        LSA held = router.lsd.get(origin.rd.simulatedIPAddress);
+        if (held == null || held.lsaSeqNumber != own.lsaSeqNumber) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * whether the LSA announces the links the router would originate from its ports right now
+   */
+  private static boolean matchesPorts(LSA lsa, Router router) {
+    if (lsa.lsaSeqNumber == Integer.MIN_VALUE) {
+      return false;
+    }
+    HashMap<String, Integer> announced = new HashMap<String, Integer>();
+    for (LinkDescription ld : lsa.links) {
+      announced.put(ld.linkID, ld.tosMetrics);
+    }
+    int linked = 0;
+    for (Link port : router.ports) {
+      if (port.router2.status != null) {
+        Integer weight = announced.get(port.router2.simulatedIPAddress);
+        if (weight == null || weight != port.weight) {
+          return false;
+        }
+        linked++;
+      }
+    }
+    return linked == announced.size();
+  }
+
+  /**
+   * waits for convergence, then for the network to settle, and records the phase
+   *
+   * @param started System.nanoTime() when the phase's commands started
+   * @return whether the network converged within the timeout
+   */
+  private boolean measure(String phase, String detail, long started, long[][] before, long timeoutMs,
+                          long settleMs) throws InterruptedException {
+    long deadline = started + timeoutMs * 1000000L;
+    boolean converged;
+    while (!(converged = converged()) && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    double convergenceMs = (System.nanoTime() - started) / 1e6;
+    Thread.sleep(settleMs);
+    long[][] after = counters();
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"phase\": \"").append(phase).append("\"");
+    if (detail != null) {
+      json.append(", \"command\": \"").append(detail).append("\"");
+    }
+    json.append(", \"converged\": ").append(converged);
+    json.append(String.format(Locale.ROOT, ", \"convergenceMs\": %.3f", converged ? convergenceMs : -1.0));
+    String[] names = {"packets", "bytes", "spfRuns"};
+    for (int c = 0; c < names.length; c++) {
+      long total = 0;
+      long min = Long.MAX_VALUE;
+      long max = 0;
+      for (int i = 0; i < routers.length; i++) {
+        long value = after[c][i] - before[c][i];
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      json.append(String.format(Locale.ROOT,
+          ", \"%s\": {\"total\": %d, \"perRouterMin\": %d, \"perRouterMean\": %.2f, \"perRouterMax\": %d}",
+          names[c], total, min, (double) total / routers.length, max));
+    }
+    json.append("}");
+    phases.add(json.toString());
+    return converged;
+  }
+
+  /**
+   * packets and bytes sent and SPF runs done so far, per router
+   */
+  private long[][] counters() {
+    long[][] counters = new long[3][routers.length];
+    for (int i = 0; i < routers.length; i++) {
+      MemoryTransport transport = (MemoryTransport) routers[i].transport;
+      counters[0][i] = transport.packets();
+      counters[1][i] = transport.bytes();
+      counters[2][i] = routers[i].lsd.spfRuns();
+    }
+    return counters;
+  }
+
+  /**
+   * starts every router, a few at a time
+   */
+  private void startAll(int threads) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> starts = new ArrayList<Future<Void>>();
+      for (int i = 0; i < routers.length; i++) {
+        final int router = i;
+        starts.add(pool.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            execute(router, "start");
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> start : starts) {
+        start.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * picks a link of a router that has one: {router, neighbor, weight}
+   */
+  private int[] randomLink(Random random, Map<String, Integer> index) {
+    while (true) {
+      int router = random.nextInt(routers.length);
+      List<Link> links = new ArrayList<Link>();
+      for (Link port : routers[router].ports) {
+        if (port.router2.status != null) {
+          links.add(port);
+        }
+      }
+      if (!links.isEmpty()) {
+        Link link = links.get(random.nextInt(links.size()));
+        return new int[]{router, index.get(link.router2.simulatedIPAddress), link.weight};
+      }
+    }
+  }
+
+  /**
+   * the command applying the change, run on router picked[0]
+   */
+  private String change(String change, Random random, Map<String, Integer> index, int[] picked) {
+    if (change.equals("connect")) {
+      while (true) {
+        int a = random.nextInt(routers.length);
+        int b = random.nextInt(routers.length);
+        if (a != b && routers[a].ports.find(ips[b]) == null && routers[b].ports.find(ips[a]) == null) {
+          picked[0] = a;
+          return attachCommand("connect", b, 1 + random.nextInt(Topologies.MAX_WEIGHT));
+        }
+      }
+    }
+    int[] link = randomLink(random, index);
+    picked[0] = link[0];
+    if (change.equals("update")) {
+      return attachCommand("update", link[1], link[2] % Topologies.MAX_WEIGHT + 1);
+    }
+    if (change.equals("disconnect")) {
+      return "disconnect " + routers[link[0]].ports.portOf(ips[link[1]]);
+    }
+    throw new IllegalArgumentException("unknown change " + change);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String topology = "ring";
+    int count = 100;
+    String change = "update";
+    long seed = 1;
+    long timeoutMs = 60000;
+    long settleMs = 500;
+    int startThreads = 8;
+    String out = null;
+    Map<String, String> settings = new LinkedHashMap<String, String>();
+    for (int a = 0; a + 1 < args.length; a += 2) {
+      String value = args[a + 1];
+      if (args[a].equals("--topology")) {
+        topology = value;
+      } else if (args[a].equals("--routers")) {
+        count = Integer.parseInt(value);
+      } else if (args[a].equals("--change")) {
+        change = value;
+      } else if (args[a].equals("--seed")) {
+        seed = Long.parseLong(value);
+      } else if (args[a].equals("--timeoutMs")) {
+        timeoutMs = Long.parseLong(value);
+      } else if (args[a].equals("--settleMs")) {
+        settleMs = Long.parseLong(value);
+      } else if (args[a].equals("--startThreads")) {
+        startThreads = Integer.parseInt(value);
+      } else if (args[a].equals("--out")) {
+        out = value;
+      } else if (args[a].equals("--set") && value.indexOf('=') > 0) {
+        settings.put(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+      } else {
+        System.err.println("unknown option " + args[a] + " " + value);
+        System.exit(2);
+      }
+    }
+    if (count < 2 || FIRST_PORT + count > Short.MAX_VALUE) {
+      System.err.println("routers must be between 2 and " + (Short.MAX_VALUE - FIRST_PORT));
+      System.exit(2);
+    }
+
+    // the links of the topology, each attached from its lower numbered end
+    Map<String, LSA> lsas = Topologies.generate(topology, count, seed);
+    Map<String, Integer> index = new HashMap<String, Integer>();
+    for (int i = 0; i < count; i++) {
+      index.put(Topologies.ip(i), i);
+    }
+    int maxDegree = 0;
+    int links = 0;
+    for (LSA lsa : lsas.values()) {
+      maxDegree = Math.max(maxDegree, lsa.links.size());
+      links += lsa.links.size();
+    }
+
+    // the routers talk a lot on stdout, only the report goes there
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {
+      }
+
+      public void write(byte[] b, int off, int len) {
+      }
+    }));
+
+    // one more port than needed, for a connect
+    Convergence network = new Convergence(count, maxDegree + 1, settings);
+    for (int i = 0; i < count; i++) {
+      for (LinkDescription ld : lsas.get(Topologies.ip(i)).links) {
+        int neighbor = index.get(ld.linkID);
+        if (i < neighbor) {
+          network.execute(i, network.attachCommand("attach", neighbor, ld.tosMetrics));
+        }
+      }
+    }
+
+    long[][] before = network.counters();
+    long started = System.nanoTime();
+    network.startAll(Math.max(1, Math.min(startThreads, count)));
+    boolean converged = network.measure("start", null, started, before, timeoutMs, settleMs);
+
+    if (converged && !change.equals("start")) {
+      Random random = new Random(seed);
+      int[] picked = new int[1];
+      String command = network.change(change, random, index, picked);
+      before = network.counters();
+      started = System.nanoTime();
+      network.execute(picked[0], command);
+      converged = network.measure(change, network.ips[picked[0]] + ": " + command, started, before,
+          timeoutMs, settleMs);
+    }
+
+    StringBuilder report = new StringBuilder();
+    report.append("{\n  \"topology\": \"").append(topology).append("\",\n");
+    report.append("  \"routers\": ").append(count).append(",\n");
+    report.append("  \"links\": ").append(links / 2).append(",\n");
+    report.append("  \"seed\": ").append(seed).append(",\n");
+    report.append("  \"settings\": {");
+    String separator = "";
+    for (Map.Entry<String, String> setting : settings.entrySet()) {
+      report.append(separator).append('"').append(setting.getKey()).append("\": \"")
+          .append(setting.getValue()).append('"');
+      separator = ", ";
+    }
+    report.append("},\n  \"phases\": [\n");
+    for (int p = 0; p < network.phases.size(); p++) {
+      report.append("    ").append(network.phases.get(p)).append(p + 1 < network.phases.size() ? ",\n" : "\n");
+    }
+    report.append("  ]\n}\n");
+
+    if (out == null) {
+      stdout.print(report);
+      stdout.flush();
+    } else {
+      try {
+        FileOutputStream file = new FileOutputStream(out);
+        file.write(report.toString().getBytes("UTF-8"));
+        file.close();
+      } catch (IOException e) {
+        System.err.println("could not write the report: " + e);
+        System.exit(2);
+      }
+    }
+    System.exit(converged ? 0 : 1);
+  }
+}
@@ -0,0 +1,110 @@
+package socs.network.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The route computation behind {@code detect}, on synthetic topologies (see {@link Topologies})
+ * of 100 to 100k routers. Each engine the router has is measured on its own:
+ * <ul>
+ * <li>detect: {@link LinkStateDatabase#getShortestPath} with nothing changed, the cached routing
+ * table</li>
+ * <li>incrementalSpf: one router changes the weight of one of its links, then the routing table
+ * is looked up again, which patches the shortest path tree</li>
+ * <li>fullSpf: Dijkstra from scratch on the graph</li>
+ * <li>rebuild: the graph built from the LSAs, then Dijkstra, what a router without a graph would
+ * pay on every change</li>
+ * </ul>
+ * Run with {@code -prof gc} for the allocation rate, e.g.
+ * {@code java -jar target/benchmarks.jar SpfBenchmark -p routers=1000 -prof gc}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class SpfBenchmark {
+
+  @Param({"ring", "grid", "random", "scalefree"})
+  String topology;
+
+  @Param({"100", "1000", "10000", "100000"})
+  int routers;
+
+  private Map<String, LSA> lsas;
+  private LinkStateDatabase lsd;
+  private TopologyGraph graph;
+  private String[] destinations;
+  private Random random;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    lsas = Topologies.generate(topology, routers, 42);
+    lsd = Topologies.database(lsas);
+    graph = TopologyGraph.build(lsas, Topologies.ip(0));
+    destinations = new String[routers];
+    for (int i = 0; i < routers; i++) {
+      destinations[i] = Topologies.ip(i);
+    }
+    random = new Random(7);
+    // the first lookup computes the tree from scratch, keep it out of the measurements
+    lsd.getRoutingTable();
+  }
+
+  @Benchmark
+  public String detect() {
+    String destination = destinations[next];
+    next = (next + 1) % destinations.length;
+    return lsd.getShortestPath(destination);
+  }
+
+  @Benchmark
+  public String incrementalSpf() {
+    String origin = destinations[random.nextInt(routers)];
+    LSA current = lsd.get(origin);
+    LSA lsa = new LSA();
+    lsa.linkStateID = origin;
+    lsa.lsaSeqNumber = current.lsaSeqNumber + 1;
+    lsa.links = new LinkedList<LinkDescription>();
+    int changed = random.nextInt(current.links.size());
+    int i = 0;
+    for (LinkDescription link : current.links) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = link.linkID;
+      ld.portNum = link.portNum;
+      ld.tosMetrics = (i++ == changed) ? 1 + random.nextInt(Topologies.MAX_WEIGHT) : link.tosMetrics;
+      lsa.links.add(ld);
+    }
+    lsd.install(lsa);
+    return lsd.getShortestPath(destinations[random.nextInt(routers)]);
+  }
+
+  @Benchmark
+  public ShortestPathTree fullSpf() {
+    return ShortestPathTree.compute(graph, 0);
+  }
+
+  @Benchmark
+  public ShortestPathTree rebuild() {
+    return ShortestPathTree.compute(lsas, Topologies.ip(0));
+  }
+}
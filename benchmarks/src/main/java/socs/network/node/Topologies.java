@@ -0,0 +1,136 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic link state databases for the benchmarks: every router announces a link to each of
+ * its neighbors, with a random weight from 1 to 10 shared by both directions. Router 0 is the
+ * one computing routes; the same seed always gives the same topology.
+ * <ul>
+ * <li>ring: every router linked to the next, the worst case for path length</li>
+ * <li>grid: a square mesh, each router linked to the one on its right and below</li>
+ * <li>random: a random spanning tree plus as many random links again, about 4 links per router</li>
+ * <li>scalefree: Barabasi-Albert preferential attachment with 2 links per new router, a few hubs
+ * and many routers of degree 2</li>
+ * </ul>
+ */
+final class Topologies {
+
+  static final int MAX_WEIGHT = 10;
+
+  private Topologies() {
+  }
+
+  /**
+   * simulated ip of router number i
+   */
+  static String ip(int i) {
+    return "10." + ((i >> 16) & 255) + "." + ((i >> 8) & 255) + "." + (i & 255);
+  }
+
+  /**
+   * the LSAs of a topology of the given kind and size, by origin
+   */
+  static Map<String, LSA> generate(String kind, int routers, long seed) {
+    Builder b = new Builder(routers, new Random(seed));
+    if (kind.equals("ring")) {
+      for (int i = 0; i < routers; i++) {
+        b.link(i, (i + 1) % routers);
+      }
+    } else if (kind.equals("grid")) {
+      int side = (int) Math.ceil(Math.sqrt(routers));
+      for (int i = 0; i < routers; i++) {
+        if ((i + 1) % side != 0 && i + 1 < routers) {
+          b.link(i, i + 1);
+        }
+        if (i + side < routers) {
+          b.link(i, i + side);
+        }
+      }
+    } else if (kind.equals("random")) {
+      for (int i = 1; i < routers; i++) {
+        b.link(i, b.random.nextInt(i));
+      }
+      for (int added = 0; added < routers; ) {
+        if (b.link(b.random.nextInt(routers), b.random.nextInt(routers))) {
+          added++;
+        }
+      }
+    } else if (kind.equals("scalefree")) {
+      // every link end is recorded once, so picking a random entry favours well linked routers
+      int[] ends = new int[4 * routers];
+      int endCount = 0;
+      b.link(0, 1);
+      ends[endCount++] = 0;
+      ends[endCount++] = 1;
+      for (int i = 2; i < routers; i++) {
+        for (int m = 0; m < 2; m++) {
+          int target = ends[b.random.nextInt(endCount)];
+          if (b.link(i, target)) {
+            ends[endCount++] = i;
+            ends[endCount++] = target;
+          }
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("unknown topology " + kind);
+    }
+    return b.lsas;
+  }
+
+  private static class Builder {
+    final Random random;
+    final Map<String, LSA> lsas = new HashMap<String, LSA>();
+    final HashSet<Long> links = new HashSet<Long>();
+
+    Builder(int routers, Random random) {
+      this.random = random;
+      for (int i = 0; i < routers; i++) {
+        LSA lsa = new LSA();
+        lsa.linkStateID = ip(i);
+        lsa.lsaSeqNumber = 0;
+        lsas.put(lsa.linkStateID, lsa);
+      }
+    }
+
+    /**
+     * links two routers both ways, unless they are the same or already linked
+     */
+    boolean link(int a, int b) {
+      if (a == b || !links.add(((long) Math.min(a, b) << 32) | Math.max(a, b))) {
+        return false;
+      }
+      int weight = 1 + random.nextInt(MAX_WEIGHT);
+      announce(a, b, weight);
+      announce(b, a, weight);
+      return true;
+    }
+
+    private void announce(int from, int to, int weight) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = ip(to);
+      ld.portNum = (short) (to & 0x7fff);
+      ld.tosMetrics = weight;
+      lsas.get(ip(from)).links.add(ld);
+    }
+  }
+
+  /**
+   * a link state database of router 0 holding the given LSAs
+   */
+  static LinkStateDatabase database(Map<String, LSA> lsas) {
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = ip(0);
+    LinkStateDatabase lsd = new LinkStateDatabase(rd);
+    for (LSA lsa : lsas.values()) {
+      lsd.install(lsa);
+    }
+    return lsd;
+  }
+}
@@ -11,6 +11,10 @@ public class LSA implements Serializable {
 
   public LinkedList<LinkDescription> links = new LinkedList<LinkDescription>();
 
+  //how this LSA differs from the previous one of the same router, null if unknown; kept
+  //locally so the LSA can be flooded as a delta, never sent as part of the LSA itself
+  public transient LSADelta delta;
+
   @Override
   public String toString() {
     StringBuffer sb = new StringBuffer();
@@ -0,0 +1,109 @@
+package socs.network.message;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * The difference between two consecutive LSAs of the same router: the links that were added or
+ * changed, and the ids of the links that were removed. A receiver holding the base LSA rebuilds
+ * the new one with {@link #applyTo}; one that does not has to ask for the full LSA.
+ */
+public class LSADelta implements Serializable {
+
+  //IP address of the router originate the LSA
+  public String linkStateID;
+  //sequence number of the LSA this delta applies to
+  public int baseSeqNumber;
+  //sequence number of the LSA it produces
+  public int lsaSeqNumber;
+
+  //links added or changed, in full
+  public LinkedList<LinkDescription> changed = new LinkedList<LinkDescription>();
+  //linkIDs of the links removed
+  public LinkedList<String> removed = new LinkedList<String>();
+
+  /**
+   * the delta turning base into next, or null if there is no point: the LSAs are not consecutive,
+   * a router shows up in more than one link of either LSA, or the delta is not smaller than next
+   */
+  public static LSADelta between(LSA base, LSA next) {
+    if (base == null || !base.linkStateID.equals(next.linkStateID)
+        || base.lsaSeqNumber == Integer.MIN_VALUE || next.lsaSeqNumber != base.lsaSeqNumber + 1) {
+      return null;
+    }
+    HashMap<String, LinkDescription> before = byLinkID(base);
+    HashMap<String, LinkDescription> after = byLinkID(next);
+    if (before == null || after == null) {
+      return null;
+    }
+
+    LSADelta delta = new LSADelta();
+    delta.linkStateID = next.linkStateID;
+    delta.baseSeqNumber = base.lsaSeqNumber;
+    delta.lsaSeqNumber = next.lsaSeqNumber;
+    for (LinkDescription ld : next.links) {
+      LinkDescription old = before.get(ld.linkID);
+      if (old == null || old.portNum != ld.portNum || old.tosMetrics != ld.tosMetrics) {
+        delta.changed.add(ld);
+      }
+    }
+    for (LinkDescription ld : base.links) {
+      if (!after.containsKey(ld.linkID)) {
+        delta.removed.add(ld.linkID);
+      }
+    }
+    if (delta.changed.size() + delta.removed.size() >= next.links.size()) {
+      return null;
+    }
+    return delta;
+  }
+
+  private static HashMap<String, LinkDescription> byLinkID(LSA lsa) {
+    HashMap<String, LinkDescription> links = new HashMap<String, LinkDescription>();
+    for (LinkDescription ld : lsa.links) {
+      if (ld.linkID == null || links.put(ld.linkID, ld) != null) {
+        return null;
+      }
+    }
+    return links;
+  }
+
+  /**
+   * the LSA this delta produces from the given base, which must have the base sequence number
+   */
+  public LSA applyTo(LSA base) {
+    if (base.lsaSeqNumber != baseSeqNumber) {
+      throw new IllegalArgumentException("delta of " + linkStateID + " applies to " + baseSeqNumber + ", not " + base.lsaSeqNumber);
+    }
+    HashMap<String, LinkDescription> replaced = new HashMap<String, LinkDescription>();
+    for (LinkDescription ld : changed) {
+      replaced.put(ld.linkID, ld);
+    }
+    HashSet<String> dropped = new HashSet<String>(removed);
+
+    LSA lsa = new LSA();
+    lsa.linkStateID = linkStateID;
+    lsa.lsaSeqNumber = lsaSeqNumber;
+    for (LinkDescription ld : base.links) {
+      if (dropped.contains(ld.linkID)) {
+        continue;
+      }
+      LinkDescription update = replaced.remove(ld.linkID);
+      lsa.links.add(update != null ? update : ld);
+    }
+    // what is left was added
+    for (LinkDescription ld : changed) {
+      if (replaced.containsKey(ld.linkID)) {
+        lsa.links.add(ld);
+      }
+    }
+    lsa.delta = this;
+    return lsa;
+  }
+
+  public String toString() {
+    return linkStateID + ":" + baseSeqNumber + "->" + lsaSeqNumber + " changed=" + changed + " removed=" + removed;
+  }
+}
@@ -0,0 +1,23 @@
+package socs.network.message;
+
+import java.io.Serializable;
+
+/**
+ * Identifies one LSA without its links; exchanged in DBD and LSR packets so that neighbors only
+ * send each other the LSAs the other side is missing.
+ */
+public class LSAHeader implements Serializable {
+
+  //IP address of the router originate the LSA
+  public String linkStateID;
+  public int lsaSeqNumber;
+
+  public LSAHeader(String linkStateID, int lsaSeqNumber) {
+    this.linkStateID = linkStateID;
+    this.lsaSeqNumber = lsaSeqNumber;
+  }
+
+  public String toString() {
+    return linkStateID + ":" + lsaSeqNumber;
+  }
+}
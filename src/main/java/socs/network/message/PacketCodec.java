@@ -0,0 +1,370 @@
+package socs.network.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Vector;
+
+/**
+ * Binary wire format of a {@link SOSPFPacket}, used instead of java serialization.
+ * <p/>
+ * Every packet is sent as one frame:
+ * <pre>
+ *   int    length of everything that follows
+ *   byte   format version
+ *   short  sospfType
+ *   int    srcProcessIP
+ *   short  srcProcessPort
+ *   int    srcIP, dstIP, routerID, neighborID
+ *   ...    body, depending on sospfType
+ * </pre>
+ * IP addresses are written as 4-byte integers, 0.0.0.0 stands for a missing (null) address.
+ * The body is empty for DISCONNECT (3) and KEEPALIVE (8), holds an int weight for HELLO (0), CONNECT (2) and
+ * UPDATE (4), and for LSAUPDATE (1) holds a counted array of LSAs:
+ * <pre>
+ *   int    number of LSAs
+ *   per LSA:   int linkStateID, int lsaSeqNumber, int number of links
+ *   per link:  int linkID, short portNum, int tosMetrics
+ * </pre>
+ * A portNum that does not fit in a short is rejected rather than wrapped.
+ * DBD (5) and LSR (6) hold a counted array of LSA headers:
+ * <pre>
+ *   int    number of headers
+ *   per header: int linkStateID, int lsaSeqNumber
+ * </pre>
+ * LSDELTA (7) holds a counted array of LSA deltas:
+ * <pre>
+ *   int    number of deltas
+ *   per delta:  int linkStateID, int baseSeqNumber, int lsaSeqNumber, int number of changed links
+ *   per changed link: int linkID, short portNum, int tosMetrics
+ *   then:       int number of removed links
+ *   per removed link: int linkID
+ * </pre>
+ * The format version is bumped whenever the layout of a frame changes, and a frame of any other
+ * version is rejected as corrupt, so routers built from different layouts fail the handshake
+ * instead of misreading each other:
+ * <ol>
+ * <li>the original layout</li>
+ * <li>HELLO carries a weight</li>
+ * <li>DBD and LSR</li>
+ * <li>LSDELTA</li>
+ * <li>KEEPALIVE</li>
+ * </ol>
+ */
+public final class PacketCodec {
+
+  public static final byte VERSION = 5;
+
+  // upper bound on a single frame, protects the reader against a corrupted length prefix
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  private PacketCodec() {
+  }
+
+  /**
+   * encodes the packet as a complete frame, length prefix included
+   */
+  public static byte[] encode(SOSPFPacket packet) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0); // patched below once the length is known
+      out.writeByte(VERSION);
+      out.writeShort(packet.sospfType);
+      out.writeInt(ipToInt(packet.srcProcessIP));
+      out.writeShort(packet.srcProcessPort);
+      out.writeInt(ipToInt(packet.srcIP));
+      out.writeInt(ipToInt(packet.dstIP));
+      out.writeInt(ipToInt(packet.routerID));
+      out.writeInt(ipToInt(packet.neighborID));
+
+      switch (packet.sospfType) {
+        case 3:
+        case 8:
+          break;
+        case 1:
+          writeLSAs(out, packet.lsaArray);
+          break;
+        case 5:
+        case 6:
+          writeHeaders(out, packet.lsaHeaders);
+          break;
+        case 7:
+          writeDeltas(out, packet.deltaArray);
+          break;
+        case 0:
+        case 2:
+        case 4:
+          out.writeInt(packet.weight);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown sospfType " + packet.sospfType);
+      }
+    } catch (IOException e) {
+      // writing to a byte array does not fail
+      throw new IllegalStateException(e);
+    }
+    byte[] frame = bytes.toByteArray();
+    ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+    return frame;
+  }
+
+  /**
+   * writes the packet as one frame; the caller is responsible for flushing
+   */
+  public static void write(OutputStream out, SOSPFPacket packet) throws IOException {
+    out.write(encode(packet));
+  }
+
+  /**
+   * reads one frame and decodes it
+   *
+   * @throws java.io.EOFException if the stream ends before a complete frame was read
+   */
+  public static SOSPFPacket read(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    checkLength(length);
+    byte[] body = new byte[length];
+    in.readFully(body);
+    return decode(ByteBuffer.wrap(body));
+  }
+
+  /**
+   * decodes the part of a frame that follows the length prefix
+   */
+  public static SOSPFPacket decode(ByteBuffer body) throws IOException {
+    try {
+      byte version = body.get();
+      if (version != VERSION) {
+        throw new StreamCorruptedException("unsupported packet format version " + version);
+      }
+      short sospfType = body.getShort();
+      String srcProcessIP = intToIp(body.getInt());
+      short srcProcessPort = body.getShort();
+      String srcIP = intToIp(body.getInt());
+      String dstIP = intToIp(body.getInt());
+      String routerID = intToIp(body.getInt());
+      String neighborID = intToIp(body.getInt());
+
+      SOSPFPacket packet = new SOSPFPacket(srcProcessIP, srcProcessPort, srcIP, dstIP, sospfType, routerID, neighborID);
+      switch (sospfType) {
+        case 3:
+        case 8:
+          break;
+        case 1:
+          packet.lsaArray = readLSAs(body);
+          break;
+        case 5:
+        case 6:
+          packet.lsaHeaders = readHeaders(body);
+          break;
+        case 7:
+          packet.deltaArray = readDeltas(body);
+          break;
+        case 0:
+        case 2:
+        case 4:
+          packet.weight = body.getInt();
+          break;
+        default:
+          throw new StreamCorruptedException("unknown sospfType " + sospfType);
+      }
+      return packet;
+    } catch (BufferUnderflowException e) {
+      throw new StreamCorruptedException("truncated packet");
+    }
+  }
+
+  public static void checkLength(int length) throws StreamCorruptedException {
+    if (length <= 0 || length > MAX_FRAME_LENGTH) {
+      throw new StreamCorruptedException("invalid frame length " + length);
+    }
+  }
+
+  private static void writeLSAs(DataOutputStream out, Vector<LSA> lsaArray) throws IOException {
+    if (lsaArray == null) {
+      out.writeInt(0);
+      return;
+    }
+    out.writeInt(lsaArray.size());
+    for (LSA lsa : lsaArray) {
+      out.writeInt(ipToInt(lsa.linkStateID));
+      out.writeInt(lsa.lsaSeqNumber);
+      out.writeInt(lsa.links.size());
+      for (LinkDescription ld : lsa.links) {
+        out.writeInt(ipToInt(ld.linkID));
+        writePort(out, ld.portNum);
+        out.writeInt(ld.tosMetrics);
+      }
+    }
+  }
+
+  /**
+   * writes the port of a link description, which is a process port and thus fits in a short;
+   * anything else would wrap around on the wire
+   */
+  private static void writePort(DataOutputStream out, int portNum) throws IOException {
+    if (portNum < Short.MIN_VALUE || portNum > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("portNum out of range " + portNum);
+    }
+    out.writeShort(portNum);
+  }
+
+  private static Vector<LSA> readLSAs(ByteBuffer in) throws StreamCorruptedException {
+    int count = in.getInt();
+    // every LSA takes at least 12 bytes, anything claiming more is corrupt
+    if (count < 0 || count > in.remaining() / 12) {
+      throw new StreamCorruptedException("invalid LSA count " + count);
+    }
+    Vector<LSA> lsaArray = new Vector<LSA>(count);
+    for (int i = 0; i < count; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = intToIp(in.getInt());
+      lsa.lsaSeqNumber = in.getInt();
+      int links = in.getInt();
+      if (links < 0 || links > in.remaining() / 10) {
+        throw new StreamCorruptedException("invalid link count " + links);
+      }
+      LinkedList<LinkDescription> descriptions = new LinkedList<LinkDescription>();
+      for (int j = 0; j < links; j++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = intToIp(in.getInt());
+        ld.portNum = in.getShort();
+        ld.tosMetrics = in.getInt();
+        descriptions.add(ld);
+      }
+      lsa.links = descriptions;
+      lsaArray.add(lsa);
+    }
+    return lsaArray;
+  }
+
+  private static void writeDeltas(DataOutputStream out, Vector<LSADelta> deltas) throws IOException {
+    if (deltas == null) {
+      out.writeInt(0);
+      return;
+    }
+    out.writeInt(deltas.size());
+    for (LSADelta delta : deltas) {
+      out.writeInt(ipToInt(delta.linkStateID));
+      out.writeInt(delta.baseSeqNumber);
+      out.writeInt(delta.lsaSeqNumber);
+      out.writeInt(delta.changed.size());
+      for (LinkDescription ld : delta.changed) {
+        out.writeInt(ipToInt(ld.linkID));
+        writePort(out, ld.portNum);
+        out.writeInt(ld.tosMetrics);
+      }
+      out.writeInt(delta.removed.size());
+      for (String linkID : delta.removed) {
+        out.writeInt(ipToInt(linkID));
+      }
+    }
+  }
+
+  private static Vector<LSADelta> readDeltas(ByteBuffer in) throws StreamCorruptedException {
+    int count = in.getInt();
+    // every delta takes at least 20 bytes
+    if (count < 0 || count > in.remaining() / 20) {
+      throw new StreamCorruptedException("invalid delta count " + count);
+    }
+    Vector<LSADelta> deltas = new Vector<LSADelta>(count);
+    for (int i = 0; i < count; i++) {
+      LSADelta delta = new LSADelta();
+      delta.linkStateID = intToIp(in.getInt());
+      delta.baseSeqNumber = in.getInt();
+      delta.lsaSeqNumber = in.getInt();
+      int changed = in.getInt();
+      if (changed < 0 || changed > in.remaining() / 10) {
+        throw new StreamCorruptedException("invalid link count " + changed);
+      }
+      for (int j = 0; j < changed; j++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = intToIp(in.getInt());
+        ld.portNum = in.getShort();
+        ld.tosMetrics = in.getInt();
+        delta.changed.add(ld);
+      }
+      int removed = in.getInt();
+      if (removed < 0 || removed > in.remaining() / 4) {
+        throw new StreamCorruptedException("invalid link count " + removed);
+      }
+      for (int j = 0; j < removed; j++) {
+        delta.removed.add(intToIp(in.getInt()));
+      }
+      deltas.add(delta);
+    }
+    return deltas;
+  }
+
+  private static void writeHeaders(DataOutputStream out, Vector<LSAHeader> headers) throws IOException {
+    if (headers == null) {
+      out.writeInt(0);
+      return;
+    }
+    out.writeInt(headers.size());
+    for (LSAHeader header : headers) {
+      out.writeInt(ipToInt(header.linkStateID));
+      out.writeInt(header.lsaSeqNumber);
+    }
+  }
+
+  private static Vector<LSAHeader> readHeaders(ByteBuffer in) throws StreamCorruptedException {
+    int count = in.getInt();
+    if (count < 0 || count > in.remaining() / 8) {
+      throw new StreamCorruptedException("invalid header count " + count);
+    }
+    Vector<LSAHeader> headers = new Vector<LSAHeader>(count);
+    for (int i = 0; i < count; i++) {
+      headers.add(new LSAHeader(intToIp(in.getInt()), in.getInt()));
+    }
+    return headers;
+  }
+
+  /**
+   * converts a dotted IPv4 address to its 4-byte integer form; null becomes 0
+   */
+  public static int ipToInt(String ip) {
+    if (ip == null) {
+      return 0;
+    }
+    int value = 0;
+    int part = 0;
+    int parts = 0;
+    int digits = 0;
+    for (int i = 0; i < ip.length(); i++) {
+      char c = ip.charAt(i);
+      if (c == '.' && digits > 0 && part <= 255 && parts < 3) {
+        value = (value << 8) | part;
+        parts++;
+        part = 0;
+        digits = 0;
+      } else if (c >= '0' && c <= '9' && digits < 3) {
+        part = part * 10 + (c - '0');
+        digits++;
+      } else {
+        throw new IllegalArgumentException("not an IPv4 address: " + ip);
+      }
+    }
+    if (parts != 3 || digits == 0 || part > 255) {
+      throw new IllegalArgumentException("not an IPv4 address: " + ip);
+    }
+    return (value << 8) | part;
+  }
+
+  /**
+   * converts the 4-byte integer form back to a dotted IPv4 address; 0 becomes null
+   */
+  public static String intToIp(int value) {
+    if (value == 0) {
+      return null;
+    }
+    return ((value >>> 24) & 0xff) + "." + ((value >>> 16) & 0xff) + "." + ((value >>> 8) & 0xff) + "." + (value & 0xff);
+  }
+}
@@ -15,7 +15,7 @@ public class SOSPFPacket implements Serializable {
   public String dstIP;
 
   //common header
-  public short sospfType; //0 - HELLO, 1 - LinkState Update, 2 - Connect, 3 - Disconnect, 4 - Update Weight
+  public short sospfType; //0 - HELLO, 1 - LinkState Update, 2 - Connect, 3 - Disconnect, 4 - Update Weight, 5 - Database Description, 6 - LinkState Request, 7 - LinkState Delta Update, 8 - Keepalive
   public String routerID;
 
   //used by HELLO message to identify the sender of the message
@@ -26,6 +26,12 @@ public class SOSPFPacket implements Serializable {
   //used by LSAUPDATE
   public Vector<LSA> lsaArray = null;
 
+  //used by LSDELTA
+  public Vector<LSADelta> deltaArray = null;
+
+  //used by DBD (every LSA the sender has) and LSR (the LSAs the sender wants)
+  public Vector<LSAHeader> lsaHeaders = null;
+
   //used by CONNECT
   public int weight;
 
@@ -53,6 +59,17 @@ public class SOSPFPacket implements Serializable {
     this.lsaArray = L;
   }
 
+  public SOSPFPacket(String srcProcessIP, short srcProcessPort, String srcIP, String dstIP, short sospfType, String routerID, String neighborID, Vector<LSA> lsaArray) {
+    this.srcProcessIP = srcProcessIP;
+    this.srcProcessPort = srcProcessPort;
+    this.srcIP = srcIP;
+    this.dstIP = dstIP;
+    this.sospfType = sospfType;
+    this.routerID = routerID;
+    this.neighborID = neighborID;
+    this.lsaArray = lsaArray;
+  }
+
   public SOSPFPacket(String srcProcessIP, short srcProcessPort, String srcIP, String dstIP, short sospfType, String routerID, String neighborID, int weight) {
     this.srcProcessIP = srcProcessIP;
     this.srcProcessPort = srcProcessPort;
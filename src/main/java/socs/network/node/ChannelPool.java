@@ -0,0 +1,131 @@
+package socs.network.node;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one {@link NeighborChannel} per neighbor, keyed by the neighbor's simulated IP address,
+ * and closes channels that have been idle for longer than the configured timeout. The packets
+ * {@link NeighborChannel#post posted} to the channels are sent by one sender thread: a channel
+ * whose handshake waits for the neighbor holds up the posts to the others until it is answered,
+ * or for at most the response timeout, which a thread per busy channel would avoid at the price
+ * of many more threads in a large simulation.
+ */
+public class ChannelPool {
+
+  private final ConcurrentHashMap<String, NeighborChannel> channels = new ConcurrentHashMap<String, NeighborChannel>();
+  private final Transport transport;
+  private final RouterMetrics metrics;
+  private final long idleTimeoutMs;
+  private final int responseTimeoutMs;
+
+  // sends posted packets and closes removed channels, both of which may wait for a handshake
+  private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "channel-sender");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  public ChannelPool(Transport transport, RouterMetrics metrics, long idleTimeoutMs, int responseTimeoutMs) {
+    this.transport = transport;
+    this.metrics = metrics;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.responseTimeoutMs = responseTimeoutMs;
+
+    Thread reaper = new Thread(new Runnable() {
+      public void run() {
+        reapIdle();
+      }
+    }, "channel-reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  /**
+   * returns the channel to the given neighbor, creating it if there is none yet; a channel that
+   * points to an outdated process ip/port for the same simulated ip is replaced
+   */
+  NeighborChannel get(RouterDescription remote) {
+    while (true) {
+      NeighborChannel existing = channels.get(remote.simulatedIPAddress);
+      if (existing != null && existing.isFor(remote)) {
+        return existing;
+      }
+      NeighborChannel created = new NeighborChannel(transport, metrics, remote, responseTimeoutMs, sender);
+      boolean installed = (existing == null)
+          ? channels.putIfAbsent(remote.simulatedIPAddress, created) == null
+          : channels.replace(remote.simulatedIPAddress, existing, created);
+      if (installed) {
+        if (existing != null) {
+          closeLater(existing);
+        }
+        return created;
+      }
+    }
+  }
+
+  /**
+   * drops and closes the channel to the given neighbor, e.g. once the link is removed
+   */
+  void remove(String simulatedIP) {
+    NeighborChannel channel = channels.remove(simulatedIP);
+    if (channel != null) {
+      closeLater(channel);
+    }
+  }
+
+  /**
+   * closes the channel on the sender thread, since a handshake may hold it until the neighbor
+   * answers
+   */
+  private void closeLater(final NeighborChannel channel) {
+    try {
+      sender.execute(new Runnable() {
+        public void run() {
+          channel.close();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the router is quitting and closes every channel itself
+    }
+  }
+
+  /**
+   * sends what is still posted, waiting at most the response timeout, then closes every channel
+   */
+  void closeAll() {
+    sender.shutdown();
+    try {
+      sender.awaitTermination(responseTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (String ip : channels.keySet()) {
+      NeighborChannel channel = channels.remove(ip);
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+
+  private void reapIdle() {
+    long period = Math.max(idleTimeoutMs / 2, 100);
+    while (true) {
+      try {
+        Thread.sleep(period);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (NeighborChannel channel : channels.values()) {
+        channel.closeIfIdle(now, idleTimeoutMs);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.message.LSAHeader;
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Synchronizes the link state databases of two routers when their adjacency comes up, in the
+ * spirit of OSPF's Exchange and Loading states:
+ * <ol>
+ * <li>once a HELLO or CONNECT handshake reaches TWO_WAY, both sides send a DBD packet listing the
+ * header (origin and sequence number) of every LSA they hold</li>
+ * <li>a router receiving a DBD answers with an LSR naming the LSAs it is missing or holds in an
+ * older version</li>
+ * <li>the LSR is answered with one LSAUPDATE carrying exactly those LSAs, which the requester
+ * installs and floods to its other neighbors as usual</li>
+ * </ol>
+ * Both sides describe their database at the same time, so there is no master/slave negotiation
+ * (ExStart). A router joining a converged network thus receives each LSA once from the neighbor
+ * it joins through, instead of every router re-flooding its own LSA.
+ */
+public class DatabaseExchange {
+
+  private static final Logger log = LoggerFactory.getLogger(DatabaseExchange.class);
+
+  private final Router router;
+
+  public DatabaseExchange(Router router) {
+    this.router = router;
+  }
+
+  /**
+   * describes our database to a neighbor whose adjacency just reached TWO_WAY
+   */
+  void start(Link link) {
+    Vector<LSAHeader> headers = router.lsd.headers();
+    send(link, (short) 5, headers);
+    router.metrics.descriptionSent();
+  }
+
+  /**
+   * a neighbor described its database: request what we are missing
+   */
+  void onDescription(SOSPFPacket packet) {
+    Link link = linkTo(packet.srcIP);
+    if (link == null || packet.lsaHeaders == null) {
+      return;
+    }
+    Vector<LSAHeader> wanted = new Vector<LSAHeader>();
+    for (LSAHeader header : packet.lsaHeaders) {
+      // the neighbor has this LSA, never flood it back
+      router.flooding.markKnown(packet.srcIP, header.linkStateID, header.lsaSeqNumber);
+      LSA current = router.lsd.get(header.linkStateID);
+      if (current == null || current.lsaSeqNumber < header.lsaSeqNumber) {
+        wanted.add(header);
+      }
+    }
+    if (!wanted.isEmpty()) {
+      send(link, (short) 6, wanted);
+      router.metrics.lsasRequested(wanted.size());
+    }
+  }
+
+  /**
+   * asks a neighbor for the full version of an LSA it sent as a delta we could not apply
+   */
+  void request(String neighbor, LSAHeader header) {
+    Link link = linkTo(neighbor);
+    if (link == null) {
+      return;
+    }
+    Vector<LSAHeader> wanted = new Vector<LSAHeader>(1);
+    wanted.add(header);
+    send(link, (short) 6, wanted);
+    router.metrics.deltaFallback();
+  }
+
+  /**
+   * a neighbor asked for LSAs: send our current version of each in one LSAUPDATE
+   */
+  void onRequest(SOSPFPacket packet) {
+    Link link = linkTo(packet.srcIP);
+    if (link == null || packet.lsaHeaders == null) {
+      return;
+    }
+    Vector<LSA> lsas = new Vector<LSA>();
+    for (LSAHeader header : packet.lsaHeaders) {
+      LSA current = router.lsd.get(header.linkStateID);
+      if (current != null) {
+        router.flooding.markKnown(packet.srcIP, current.linkStateID, current.lsaSeqNumber);
+        lsas.add(current);
+      }
+    }
+    if (lsas.isEmpty()) {
+      return;
+    }
+    final String neighbor = packet.srcIP;
+    final int count = lsas.size();
+    router.channels.get(link.router2).post(router.createLSAPacket(link, (short) 1, lsas), new NeighborChannel.Failure() {
+      public void failed(IOException e) {
+        log.warn("lsa supply failed neighbor={} count={} error={}", neighbor, count, e.getMessage());
+        router.flooding.forget(neighbor);
+      }
+    });
+    router.metrics.lsasSupplied(count);
+  }
+
+  private Link linkTo(String simulatedIP) {
+    return router.ports.find(simulatedIP);
+  }
+
+  /**
+   * posts the packet to the neighbor, so that a packet handler answering a DBD or LSR never waits
+   * for it
+   */
+  private void send(Link link, final short type, final Vector<LSAHeader> headers) {
+    SOSPFPacket packet = new SOSPFPacket(
+        router.rd.processIPAddress,
+        router.rd.processPortNumber,
+        router.rd.simulatedIPAddress,
+        link.router2.simulatedIPAddress,
+        type,
+        router.rd.simulatedIPAddress,
+        link.router2.simulatedIPAddress
+    );
+    packet.lsaHeaders = headers;
+    final String neighbor = link.router2.simulatedIPAddress;
+    router.channels.get(link.router2).post(packet, new NeighborChannel.Failure() {
+      public void failed(IOException e) {
+        log.warn("{} send failed neighbor={} count={} error={}", RouterMetrics.typeName(type).toLowerCase(), neighbor, headers.size(), e.getMessage());
+      }
+    });
+  }
+}
@@ -0,0 +1,187 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which thread runs the {@link ServerRequestReceiver} of an accepted connection.
+ * <ul>
+ * <li>thread: a new platform thread per connection (the original behaviour)</li>
+ * <li>virtual: a virtual thread per connection, needs JDK 21 or newer</li>
+ * <li>bounded: a fixed pool of platform threads with a bounded queue; connections that find the
+ * queue full are rejected and closed. Neighbors keep their connection open for as long as the
+ * adjacency lives, so each one holds a pool thread: the router sizes the pool to at least its
+ * maximum degree, and a connection that has to wait in the queue, which is not served until
+ * another one closes, is logged</li>
+ * </ul>
+ * Every strategy counts submitted, completed and rejected connections so that the modes can be
+ * compared on the same workload.
+ */
+public abstract class DispatchStrategy {
+
+  private static final Logger log = LoggerFactory.getLogger(DispatchStrategy.class);
+
+  final AtomicLong submitted = new AtomicLong();
+  final AtomicLong completed = new AtomicLong();
+  final AtomicLong rejected = new AtomicLong();
+  final AtomicInteger active = new AtomicInteger();
+
+  /**
+   * runs the receiver of one connection; if it cannot be accepted, the connection is closed
+   */
+  void dispatch(final Runnable receiver, final Runnable onReject) {
+    submitted.incrementAndGet();
+    Runnable counted = new Runnable() {
+      public void run() {
+        active.incrementAndGet();
+        try {
+          receiver.run();
+        } finally {
+          active.decrementAndGet();
+          completed.incrementAndGet();
+        }
+      }
+    };
+    try {
+      execute(counted);
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      log.warn("connection rejected dispatch={} reason={}", name(), e.getMessage());
+      onReject.run();
+    }
+  }
+
+  abstract void execute(Runnable task);
+
+  abstract String name();
+
+  /**
+   * connections accepted but still waiting for a thread
+   */
+  int queued() {
+    return 0;
+  }
+
+  public String toString() {
+    return name() + ": submitted=" + submitted.get() + " active=" + active.get() + " queued=" + queued()
+        + " completed=" + completed.get() + " rejected=" + rejected.get();
+  }
+
+  /**
+   * builds the strategy named in the router conf: thread, virtual or bounded
+   */
+  static DispatchStrategy create(String mode, int poolSize, int queueCapacity) {
+    if (mode.equals("bounded")) {
+      return new Bounded(poolSize, queueCapacity);
+    } else if (mode.equals("virtual")) {
+      ExecutorService virtual = newVirtualThreadExecutor();
+      if (virtual != null) {
+        return new Pooled("virtual", virtual);
+      }
+      log.warn("virtual threads unavailable fallback=thread java={}", System.getProperty("java.version"));
+    }
+    return new ThreadPerConnection();
+  }
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor() looked up at runtime, so the project still
+   * builds and runs on older JDKs; null if it is not available
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  static class ThreadPerConnection extends DispatchStrategy {
+    void execute(Runnable task) {
+      new Thread(task).start();
+    }
+
+    String name() {
+      return "thread";
+    }
+  }
+
+  static class Pooled extends DispatchStrategy {
+    private final String name;
+    final ExecutorService executor;
+
+    Pooled(String name, ExecutorService executor) {
+      this.name = name;
+      this.executor = executor;
+    }
+
+    void execute(Runnable task) {
+      executor.execute(task);
+    }
+
+    String name() {
+      return name;
+    }
+  }
+
+  static class Bounded extends Pooled {
+    private final int poolSize;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final AtomicInteger maxQueued = new AtomicInteger();
+
+    Bounded(int poolSize, int queueCapacity) {
+      this(poolSize, new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)));
+    }
+
+    private Bounded(int poolSize, ArrayBlockingQueue<Runnable> queue) {
+      super("bounded", new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, queue,
+          new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              return new Thread(r, "request-receiver-" + count.incrementAndGet());
+            }
+          },
+          new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+              throw new RejectedExecutionException("receiver pool and queue are full");
+            }
+          }));
+      this.poolSize = poolSize;
+      this.queue = queue;
+    }
+
+    void execute(Runnable task) {
+      super.execute(task);
+      int depth = queue.size();
+      if (depth > 0) {
+        // every thread serves a connection that stays open, this one waits until one closes
+        log.warn("receiver pool saturated poolSize={} queued={}", poolSize, depth);
+      }
+      int max = maxQueued.get();
+      while (depth > max && !maxQueued.compareAndSet(max, depth)) {
+        max = maxQueued.get();
+      }
+    }
+
+    int queued() {
+      return queue.size();
+    }
+
+    public String toString() {
+      return super.toString() + " maxQueued=" + maxQueued.get() + " queueCapacity=" + (queue.size() + queue.remainingCapacity());
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.message.LSADelta;
+import socs.network.message.LSAHeader;
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floods LSAs through the network: every new LSA, identified by its origin and sequence number,
+ * is sent exactly once to each neighbor that does not have it yet.
+ * <p/>
+ * For each neighbor the engine remembers the highest sequence number per origin it has sent to,
+ * or received from, that neighbor. A neighbor that sent us an LSA obviously has it, so it never
+ * gets it back, and a second flood of the same LSA (say, when it arrives again through another
+ * neighbor) finds every neighbor already covered. The record is claimed with a compare-and-set
+ * before sending, so two receiver threads flooding the same LSA never both send it.
+ * <p/>
+ * Duplicates are recognised with one lookup in the link state database, which holds the highest
+ * sequence number seen from every origin, and dropped before anything else is done with them.
+ * <p/>
+ * LSAs for a neighbor are not sent one packet each: the first one opens an aggregation window,
+ * and everything flooded to that neighbor until it closes goes out in a single LSAUPDATE. A newer
+ * LSA of the same origin replaces the pending one, and a batch that reaches the maximum size is
+ * sent right away. A window of 0 sends every LSA on its own, as before.
+ * <p/>
+ * With deltas enabled, an LSA whose predecessor the neighbor is known to have is sent as an
+ * LSDELTA holding only the links that changed; the neighbor asks for the full LSA if it turns
+ * out not to have that predecessor after all.
+ */
+public class FloodingEngine {
+
+  private static final Logger log = LoggerFactory.getLogger(FloodingEngine.class);
+
+  /**
+   * LSAs waiting to be sent to one neighbor, at most one per origin
+   */
+  private static class Batch {
+    final LinkedHashMap<String, LSA> pending = new LinkedHashMap<String, LSA>();
+    // origin => sequence number the neighbor was known to have before the pending LSA
+    final HashMap<String, Integer> base = new HashMap<String, Integer>();
+    boolean scheduled;
+  }
+
+  private final Router router;
+  private final int batchWindowMs;
+  private final int batchMax;
+  private final boolean deltas;
+
+  // flushes batches whose window closed, null if LSAs are sent right away
+  private final ScheduledExecutorService batcher;
+
+  // neighbor simulated ip => LSAs waiting for it
+  private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+  // neighbor simulated ip => (origin => highest sequence number the neighbor is known to have)
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> known = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+
+  public FloodingEngine(Router router, int batchWindowMs, int batchMax, boolean deltas) {
+    this.router = router;
+    this.deltas = deltas;
+    this.batchWindowMs = batchWindowMs;
+    this.batchMax = Math.max(1, batchMax);
+    if (batchWindowMs > 0) {
+      batcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "lsa-batcher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    } else {
+      batcher = null;
+    }
+  }
+
+  /**
+   * installs an LSA a neighbor sent us
+   *
+   * @return true if it is new and must be flooded, false if it is a duplicate or older than the
+   * one we have
+   */
+  boolean receive(LSA lsa, String fromIP) {
+    markKnown(fromIP, lsa);
+    if (!router.lsd.install(lsa)) {
+      router.metrics.lsaReceived(false);
+      return false;
+    }
+    router.metrics.lsaReceived(true);
+    return true;
+  }
+
+  /**
+   * rebuilds the LSA a neighbor sent as a delta from the version we hold
+   *
+   * @return the full LSA, or null if it is a duplicate or we do not hold the base version, in
+   * which case the full LSA is requested from the neighbor
+   */
+  LSA expand(LSADelta delta, String fromIP) {
+    LSA current = router.lsd.get(delta.linkStateID);
+    if (current != null && current.lsaSeqNumber >= delta.lsaSeqNumber) {
+      router.metrics.lsaReceived(false);
+      markKnown(fromIP, delta.linkStateID, delta.lsaSeqNumber);
+      return null;
+    }
+    if (current == null || current.lsaSeqNumber != delta.baseSeqNumber) {
+      // the sender has this LSA even if we cannot rebuild it, never flood it back should it
+      // reach us through another neighbor before the answer
+      markKnown(fromIP, delta.linkStateID, delta.lsaSeqNumber);
+      router.exchange.request(fromIP, new LSAHeader(delta.linkStateID, delta.lsaSeqNumber));
+      return null;
+    }
+    return delta.applyTo(current);
+  }
+
+  /**
+   * sends the LSA to every neighbor except the one it came from (null for our own LSAs) that
+   * does not have it yet
+   */
+  void flood(LSA lsa, String fromIP) {
+    for (Link link : router.ports) {
+      String neighbor = link.router2.simulatedIPAddress;
+      Integer had = knownSeq(neighbor, lsa.linkStateID);
+      if (neighbor.equals(fromIP) || !markKnown(neighbor, lsa)) {
+        router.metrics.floodSuppressed();
+        continue;
+      }
+      router.metrics.lsaFlooded();
+      if (batcher == null) {
+        Vector<LSA> full = new Vector<LSA>(1);
+        Vector<LSADelta> changes = new Vector<LSADelta>(1);
+        add(lsa, had, full, changes);
+        send(link, full, changes);
+      } else {
+        enqueue(neighbor, lsa, had);
+      }
+    }
+  }
+
+  /**
+   * adds the LSA to the packet contents for a neighbor that had the given version of it
+   */
+  private void add(LSA lsa, Integer had, Vector<LSA> full, Vector<LSADelta> changes) {
+    if (deltas && lsa.delta != null && had != null && had == lsa.delta.baseSeqNumber) {
+      changes.add(lsa.delta);
+    } else {
+      full.add(lsa);
+    }
+  }
+
+  private void enqueue(final String neighbor, LSA lsa, Integer had) {
+    Batch batch = batches.get(neighbor);
+    if (batch == null) {
+      Batch created = new Batch();
+      batch = batches.putIfAbsent(neighbor, created);
+      if (batch == null) {
+        batch = created;
+      }
+    }
+    boolean full;
+    synchronized (batch) {
+      LSA queued = batch.pending.get(lsa.linkStateID);
+      if (queued != null) {
+        router.metrics.lsaCoalesced();
+        if (queued.lsaSeqNumber >= lsa.lsaSeqNumber) {
+          return;
+        }
+      } else {
+        batch.base.put(lsa.linkStateID, had);
+      }
+      batch.pending.put(lsa.linkStateID, lsa);
+      full = batch.pending.size() >= batchMax;
+      if (!full && !batch.scheduled) {
+        batch.scheduled = true;
+        batcher.schedule(new Runnable() {
+          public void run() {
+            flush(neighbor);
+          }
+        }, batchWindowMs, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full) {
+      flush(neighbor);
+    }
+  }
+
+  /**
+   * sends everything pending for the neighbor in one LSAUPDATE, plus one LSDELTA for the LSAs
+   * that can go as deltas
+   */
+  private void flush(String neighbor) {
+    Batch batch = batches.get(neighbor);
+    if (batch == null) {
+      return;
+    }
+    Vector<LSA> full = new Vector<LSA>();
+    Vector<LSADelta> changes = new Vector<LSADelta>();
+    synchronized (batch) {
+      batch.scheduled = false;
+      if (batch.pending.isEmpty()) {
+        return;
+      }
+      for (LSA lsa : batch.pending.values()) {
+        add(lsa, batch.base.get(lsa.linkStateID), full, changes);
+      }
+      batch.pending.clear();
+      batch.base.clear();
+    }
+    // the link may have gone away while the LSAs were waiting
+    Link link = router.ports.find(neighbor);
+    if (link != null) {
+      send(link, full, changes);
+    }
+  }
+
+  /**
+   * sends every pending batch right away
+   */
+  void flushAll() {
+    for (String neighbor : batches.keySet()) {
+      flush(neighbor);
+    }
+  }
+
+  /**
+   * posts the packets to the neighbor, so that flooding from a packet handler never waits for it
+   */
+  private void send(Link link, Vector<LSA> full, Vector<LSADelta> changes) {
+    NeighborChannel channel = router.channels.get(link.router2);
+    if (!full.isEmpty()) {
+      channel.post(router.createLSAPacket(link, (short) 1, full), failure(link, full.size()));
+      router.metrics.updateSent();
+    }
+    if (!changes.isEmpty()) {
+      SOSPFPacket packet = router.createLSAPacket(link, (short) 7, (Vector<LSA>) null);
+      packet.deltaArray = changes;
+      channel.post(packet, failure(link, changes.size()));
+      router.metrics.deltasSent(changes.size());
+    }
+  }
+
+  private NeighborChannel.Failure failure(Link link, final int count) {
+    final String neighbor = link.router2.simulatedIPAddress;
+    return new NeighborChannel.Failure() {
+      public void failed(IOException e) {
+        log.warn("flood failed neighbor={} count={} error={}", neighbor, count, e.getMessage());
+        // we do not know what the neighbor has anymore
+        forget(neighbor);
+      }
+    };
+  }
+
+  /**
+   * the highest sequence number of the origin's LSA the neighbor is known to have, null if none
+   */
+  private Integer knownSeq(String neighbor, String origin) {
+    ConcurrentHashMap<String, Integer> seqs = known.get(neighbor);
+    return (seqs == null) ? null : seqs.get(origin);
+  }
+
+  /**
+   * records that the neighbor has the LSA
+   *
+   * @return false if it was already known to have this LSA or a newer one
+   */
+  private boolean markKnown(String neighbor, LSA lsa) {
+    return markKnown(neighbor, lsa.linkStateID, lsa.lsaSeqNumber);
+  }
+
+  /**
+   * records that the neighbor has the given version of the origin's LSA, e.g. because it listed
+   * it in a database description
+   *
+   * @return false if it was already known to have this version or a newer one
+   */
+  boolean markKnown(String neighbor, String origin, int seq) {
+    ConcurrentHashMap<String, Integer> seqs = known.get(neighbor);
+    if (seqs == null) {
+      ConcurrentHashMap<String, Integer> created = new ConcurrentHashMap<String, Integer>();
+      seqs = known.putIfAbsent(neighbor, created);
+      if (seqs == null) {
+        seqs = created;
+      }
+    }
+    while (true) {
+      Integer current = seqs.get(origin);
+      if (current != null && current >= seq) {
+        return false;
+      }
+      boolean swapped = (current == null)
+          ? seqs.putIfAbsent(origin, seq) == null
+          : seqs.replace(origin, current, seq);
+      if (swapped) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * forgets what the neighbor has, e.g. when the link goes away or the neighbor says HELLO again
+   */
+  void forget(String neighbor) {
+    known.remove(neighbor);
+  }
+}
@@ -0,0 +1,291 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.util.IndexedMinHeap;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the shortest path tree of a link state database up to date as LSAs are replaced, without
+ * rerunning Dijkstra's algorithm over the whole topology for every change.
+ * <p/>
+ * A new LSA of one router is compared with the one it replaces. If its links only got cheaper or
+ * appeared (or the router itself is new), the improvement is propagated from the routers it
+ * reaches with a Dijkstra run seeded at those routers. If its links only got more expensive or
+ * disappeared, only the subtrees hanging below those links lose their distances; they are seeded
+ * from their cheapest link coming from outside the subtree and settled again among themselves.
+ * A change mixing both, touching many links, or invalidating a large part of the tree falls back
+ * to a full run.
+ */
+class IncrementalSpf {
+
+  // above this many changed links in one LSA, a full run is used instead
+  static final int MAX_CHANGED_LINKS = 8;
+
+  private final TopologyGraph graph;
+  private final int root;
+
+  // current tree, null if it must be computed from scratch on the next lookup
+  private ShortestPathTree tree;
+  // the tree was handed out by snapshot(), so it is copied before it is patched
+  private boolean shared;
+
+  // scratch space indexed by router number, -1 outside of update(): the cheapest link from the
+  // changed router to each target before and after the change
+  private int[] before = new int[0];
+  private int[] after = new int[0];
+
+  long fullRuns;
+  long incrementalRuns;
+
+  IncrementalSpf(TopologyGraph graph, String rootIP) {
+    this.graph = graph;
+    this.root = graph.intern(rootIP);
+  }
+
+  /**
+   * the shortest path tree of the current database; later changes never modify the returned tree
+   */
+  ShortestPathTree snapshot() {
+    if (tree == null) {
+      tree = ShortestPathTree.compute(graph, root);
+      fullRuns++;
+    }
+    shared = true;
+    return tree;
+  }
+
+  /**
+   * stores the links of a new LSA in the graph, patching the tree if there is one
+   */
+  void lsaInstalled(LSA lsa) {
+    if (tree == null) {
+      graph.setLinks(lsa);
+      return;
+    }
+    if (shared) {
+      tree = tree.copy();
+      shared = false;
+    }
+    if (update(lsa)) {
+      incrementalRuns++;
+    } else {
+      tree = null;
+    }
+  }
+
+  /**
+   * replaces the links of one router in the graph and patches the tree accordingly
+   *
+   * @return false if the change cannot be applied incrementally
+   */
+  private boolean update(LSA lsa) {
+    int x = graph.intern(lsa.linkStateID);
+    boolean isNew = !graph.hasLsa[x];
+    int[] oldTargets = Arrays.copyOfRange(graph.target, graph.offset[x], graph.offset[x + 1]);
+    int[] oldWeights = Arrays.copyOfRange(graph.weight, graph.offset[x], graph.offset[x + 1]);
+
+    graph.setLinks(lsa);
+    tree.extend(graph);
+    int n = graph.size();
+    if (before.length < n) {
+      before = new int[Math.max(n, 2 * before.length)];
+      after = new int[before.length];
+      Arrays.fill(before, -1);
+      Arrays.fill(after, -1);
+    }
+
+    // the links the full run would use: valid weights to other routers, cheapest one per target
+    for (int i = 0; i < oldTargets.length; i++) {
+      keepCheapest(before, x, oldTargets[i], oldWeights[i]);
+    }
+    for (int e = graph.offset[x]; e < graph.offset[x + 1]; e++) {
+      keepCheapest(after, x, graph.target[e], graph.weight[e]);
+    }
+
+    // links that became cheaper or appeared: {from, to, weight}
+    int[][] lowered = new int[MAX_CHANGED_LINKS][];
+    int loweredCount = 0;
+    // routers whose link from x became more expensive or disappeared
+    int[] raised = new int[MAX_CHANGED_LINKS];
+    int raisedCount = 0;
+    boolean tooMany = false;
+
+    for (int i = 0; i < oldTargets.length + graph.offset[x + 1] - graph.offset[x] && !tooMany; i++) {
+      int t = (i < oldTargets.length) ? oldTargets[i] : graph.target[graph.offset[x] + i - oldTargets.length];
+      int b = before[t];
+      int a = after[t];
+      if (b == -2 || (b == -1 && a == -1)) {
+        // already looked at, or no usable link either way
+        continue;
+      }
+      before[t] = -2;
+      if (a != -1 && (b == -1 || a < b)) {
+        if (loweredCount == MAX_CHANGED_LINKS) {
+          tooMany = true;
+        } else {
+          lowered[loweredCount++] = new int[]{x, t, a};
+        }
+      } else if (b != -1 && (a == -1 || a > b)) {
+        if (raisedCount == MAX_CHANGED_LINKS) {
+          tooMany = true;
+        } else {
+          raised[raisedCount++] = t;
+        }
+      }
+    }
+    for (int t : oldTargets) {
+      before[t] = -1;
+      after[t] = -1;
+    }
+    for (int e = graph.offset[x]; e < graph.offset[x + 1]; e++) {
+      before[graph.target[e]] = -1;
+      after[graph.target[e]] = -1;
+    }
+
+    // links to a router that only now has an LSA join the graph as well
+    if (isNew) {
+      for (int i = 0; i < graph.inCount[x] && !tooMany; i++) {
+        int from = graph.inFrom[x][i];
+        int w = graph.inWeight[x][i];
+        if (from == x || !graph.hasLsa[from] || w < 0) {
+          continue;
+        }
+        if (loweredCount == MAX_CHANGED_LINKS) {
+          tooMany = true;
+        } else {
+          lowered[loweredCount++] = new int[]{from, x, w};
+        }
+      }
+    }
+
+    if (tooMany || loweredCount + raisedCount > MAX_CHANGED_LINKS || (loweredCount > 0 && raisedCount > 0)) {
+      return false;
+    }
+    if (raisedCount > 0) {
+      return raise(x, raised, raisedCount);
+    }
+    lower(lowered, loweredCount);
+    return true;
+  }
+
+  private void keepCheapest(int[] weights, int from, int to, int w) {
+    if (to == from || w < 0 || !graph.hasLsa[to]) {
+      return;
+    }
+    if (weights[to] == -1 || w < weights[to]) {
+      weights[to] = w;
+    }
+  }
+
+  /**
+   * links only got cheaper: every router whose distance improves is reached from the ends of the
+   * changed links, so a Dijkstra run seeded there is enough
+   */
+  private void lower(int[][] lowered, int count) {
+    IndexedMinHeap heap = new IndexedMinHeap(tree.count);
+    for (int i = 0; i < count; i++) {
+      relax(heap, lowered[i][0], lowered[i][1], lowered[i][2]);
+    }
+    propagate(heap, null);
+  }
+
+  /**
+   * links out of x only got more expensive: only routers whose tree path went through one of
+   * them can be affected, i.e. the subtrees below the changed links
+   */
+  private boolean raise(int x, int[] raised, int raisedCount) {
+    int n = tree.count;
+
+    // children lists of the current tree
+    int[] firstChild = new int[n];
+    int[] nextSibling = new int[n];
+    Arrays.fill(firstChild, -1);
+    for (int r = 0; r < n; r++) {
+      int p = tree.parent[r];
+      if (p != -1) {
+        nextSibling[r] = firstChild[p];
+        firstChild[p] = r;
+      }
+    }
+
+    // collect the subtrees below the changed links that are part of the tree
+    boolean[] affected = new boolean[n];
+    int[] members = new int[n];
+    int size = 0;
+    for (int i = 0; i < raisedCount; i++) {
+      int r = raised[i];
+      if (tree.parent[r] == x) {
+        affected[r] = true;
+        members[size++] = r;
+      }
+    }
+    for (int i = 0; i < size; i++) {
+      for (int c = firstChild[members[i]]; c != -1; c = nextSibling[c]) {
+        affected[c] = true;
+        members[size++] = c;
+      }
+    }
+    if (size > n / 2) {
+      // most of the tree is invalid anyway
+      return false;
+    }
+
+    for (int i = 0; i < size; i++) {
+      int r = members[i];
+      tree.distance[r] = ShortestPathTree.UNREACHABLE;
+      tree.parent[r] = -1;
+      tree.nextHop[r] = -1;
+    }
+
+    // seed every affected router with its cheapest link from a router that kept its distance
+    IndexedMinHeap heap = new IndexedMinHeap(n);
+    for (int i = 0; i < size; i++) {
+      int r = members[i];
+      for (int j = 0; j < graph.inCount[r]; j++) {
+        int from = graph.inFrom[r][j];
+        if (!affected[from] && graph.hasLsa[from] && graph.inWeight[r][j] >= 0) {
+          relax(heap, from, r, graph.inWeight[r][j]);
+        }
+      }
+    }
+    propagate(heap, affected);
+    return true;
+  }
+
+  private void relax(IndexedMinHeap heap, int from, int to, int weight) {
+    if (tree.distance[from] == ShortestPathTree.UNREACHABLE) {
+      return;
+    }
+    int newDistance = tree.distance[from] + weight;
+    if (newDistance < tree.distance[to]) {
+      tree.distance[to] = newDistance;
+      tree.parent[to] = from;
+      tree.parentWeight[to] = weight;
+      if (heap.contains(to)) {
+        heap.decreaseKey(to, newDistance);
+      } else {
+        heap.insert(to, newDistance);
+      }
+    }
+  }
+
+  /**
+   * settles the routers in the heap, following links only into the given set (all if null)
+   */
+  private void propagate(IndexedMinHeap heap, boolean[] within) {
+    while (!heap.isEmpty()) {
+      int current = heap.poll();
+      tree.settle(current);
+      for (int e = graph.offset[current]; e < graph.offset[current + 1]; e++) {
+        int neighbour = graph.target[e];
+        if (!graph.hasLsa[neighbour] || graph.weight[e] < 0) {
+          continue;
+        }
+        if (within == null || within[neighbour]) {
+          relax(heap, current, neighbour, graph.weight[e]);
+        }
+      }
+    }
+  }
+}
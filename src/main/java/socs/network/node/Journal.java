@@ -0,0 +1,493 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.PacketCodec;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of every LSA installed in the database and every change to the ports, from
+ * which the state of a router can be rebuilt after a crash or an incident replayed offline (see
+ * {@link JournalReplay}).
+ * <p/>
+ * The journal is a directory of segment files, named after the number of their first record so
+ * that they sort in order. Every record is framed as
+ * <pre>
+ *   int    length of what follows the CRC
+ *   int    CRC32 of what follows the CRC
+ *   byte   type: 1 LSA installed, 2 port set, 3 port cleared
+ *   long   time, in ms since the epoch
+ *   LSA:         int linkStateID, int lsaSeqNumber, int number of links,
+ *                per link: int linkID, short portNum, int tosMetrics
+ *   port set:    int port, int simulated ip, int process ip, short process port, int weight
+ *   port clear:  int port
+ * </pre>
+ * A record that is cut short or fails its CRC ends the segment, as happens when the router
+ * crashes in the middle of a write.
+ * <ul>
+ * <li>group commit: records are only queued by the threads that install LSAs or change ports;
+ * one writer thread appends everything queued within the commit window with a single write and
+ * a single force, so a burst of LSAs costs one disk sync</li>
+ * <li>rotation: a segment is closed once it holds the configured number of bytes and the next
+ * record starts a new one</li>
+ * <li>compaction: once there are more closed segments than configured, they are folded into one
+ * holding only the newest LSA of every router and the ports as they were at the end of them</li>
+ * </ul>
+ * Records queued in the last commit window before a crash are lost. A group that cannot be
+ * written even after retrying it in a new segment is dropped, and the next {@link #commit()}
+ * reports it.
+ */
+public class Journal {
+
+  private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+  static final byte LSA_INSTALLED = 1;
+  static final byte PORT_SET = 2;
+  static final byte PORT_CLEARED = 3;
+
+  private static final String PREFIX = "segment-";
+  private static final String SUFFIX = ".journal";
+
+  // at most this many bytes are appended with one write
+  private static final int MAX_GROUP_BYTES = 1 << 20;
+
+  /**
+   * one decoded record
+   */
+  static class Record {
+    byte type;
+    long time;
+    LSA lsa;
+    int port;
+    RouterDescription remote;
+    int weight;
+  }
+
+  /**
+   * something for the writer thread: a record to append, or a request to commit what is queued
+   */
+  private static class Entry {
+    final byte[] record;
+    final CountDownLatch committed;
+    // set before the latch is released if records were lost since the previous commit
+    boolean failed;
+
+    Entry(byte[] record, CountDownLatch committed) {
+      this.record = record;
+      this.committed = committed;
+    }
+  }
+
+  private final File dir;
+  private final long segmentBytes;
+  private final int maxSegments;
+  private final long groupCommitMs;
+
+  private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+  // everything below is only used by the writer thread
+  private FileChannel segment;
+  private long segmentSize;
+  private long nextIndex;
+  private final List<File> closed = new ArrayList<File>();
+  private boolean droppedSinceCommit;
+
+  // records written, commits, compactions and dropped records; the router's once it opens the
+  // journal, until then counts nobody reads
+  volatile RouterMetrics metrics = new RouterMetrics();
+
+  Journal(File dir, long segmentBytes, int maxSegments, long groupCommitMs) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = Math.max(1, maxSegments);
+    this.groupCommitMs = Math.max(0, groupCommitMs);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("cannot create " + dir);
+    }
+    // never append to a segment that may end with a torn record, start a new one after it
+    File[] existing = segments(dir);
+    if (existing.length > 0) {
+      File last = existing[existing.length - 1];
+      nextIndex = indexOf(last) + read(last).size();
+      closed.addAll(Arrays.asList(existing));
+    }
+
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * the segments of the journal in the given directory, oldest first
+   */
+  static File[] segments(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    List<File> segments = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX)) {
+        segments.add(file);
+      }
+    }
+    File[] sorted = segments.toArray(new File[segments.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static long indexOf(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+
+  private File segmentFile(long index) {
+    return new File(dir, String.format("%s%020d%s", PREFIX, index, SUFFIX));
+  }
+
+  void lsaInstalled(LSA lsa) {
+    ByteBuffer out = frame(LSA_INSTALLED, 12 + 10 * lsa.links.size());
+    putLSA(out, lsa);
+    append(out);
+  }
+
+  void portSet(int port, Link link) {
+    ByteBuffer out = frame(PORT_SET, 18);
+    out.putInt(port);
+    out.putInt(PacketCodec.ipToInt(link.router2.simulatedIPAddress));
+    out.putInt(PacketCodec.ipToInt(link.router2.processIPAddress));
+    out.putShort(link.router2.processPortNumber);
+    out.putInt(link.weight);
+    append(out);
+  }
+
+  void portCleared(int port) {
+    ByteBuffer out = frame(PORT_CLEARED, 4);
+    out.putInt(port);
+    append(out);
+  }
+
+  private static ByteBuffer frame(byte type, int payload) {
+    ByteBuffer out = ByteBuffer.allocate(8 + 9 + payload);
+    out.putInt(9 + payload);
+    out.putInt(0); // patched once the record is complete
+    out.put(type);
+    out.putLong(System.currentTimeMillis());
+    return out;
+  }
+
+  private static void putLSA(ByteBuffer out, LSA lsa) {
+    out.putInt(PacketCodec.ipToInt(lsa.linkStateID));
+    out.putInt(lsa.lsaSeqNumber);
+    out.putInt(lsa.links.size());
+    for (LinkDescription ld : lsa.links) {
+      out.putInt(PacketCodec.ipToInt(ld.linkID));
+      out.putShort((short) ld.portNum);
+      out.putInt(ld.tosMetrics);
+    }
+  }
+
+  private void append(ByteBuffer out) {
+    byte[] record = out.array();
+    CRC32 crc = new CRC32();
+    crc.update(record, 8, record.length - 8);
+    out.putInt(4, (int) crc.getValue());
+    queue.add(new Entry(record, null));
+  }
+
+  /**
+   * waits until every record queued so far is on disk
+   *
+   * @return false if some records queued since the previous commit could not be written, even
+   * after retrying them in a new segment, or if interrupted while waiting
+   */
+  boolean commit() {
+    Entry entry = new Entry(null, new CountDownLatch(1));
+    queue.add(entry);
+    try {
+      entry.committed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !entry.failed;
+  }
+
+  private void writeLoop() {
+    List<Entry> group = new ArrayList<Entry>();
+    while (true) {
+      try {
+        group.add(queue.take());
+        // collect what else comes within the commit window
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitMs);
+        int size = 0;
+        while (size < MAX_GROUP_BYTES) {
+          Entry next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          group.add(next);
+          size += (next.record == null) ? 0 : next.record.length;
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+      // a failed write may leave a torn record at the end of the segment, so the group is
+      // retried once from the start of a new one
+      boolean written = false;
+      for (int attempt = 1; attempt <= 2 && !written; attempt++) {
+        try {
+          write(group);
+          written = true;
+        } catch (IOException e) {
+          log.warn("journal write failed dir={} records={} attempt={} error={}", dir, group.size(), attempt, e.getMessage());
+          closeSegment();
+        }
+      }
+      if (!written) {
+        for (Entry entry : group) {
+          if (entry.record != null) {
+            metrics.journalDropped();
+          }
+        }
+        droppedSinceCommit = true;
+      }
+      boolean failed = droppedSinceCommit;
+      for (Entry entry : group) {
+        if (entry.committed != null) {
+          entry.failed = failed;
+          entry.committed.countDown();
+          droppedSinceCommit = false;
+        }
+      }
+      group.clear();
+    }
+  }
+
+  private void write(List<Entry> group) throws IOException {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(group.size());
+    long length = 0;
+    for (Entry entry : group) {
+      if (entry.record != null) {
+        buffers.add(ByteBuffer.wrap(entry.record));
+        length += entry.record.length;
+      }
+    }
+    if (buffers.isEmpty()) {
+      return;
+    }
+    if (segment == null) {
+      RandomAccessFile file = new RandomAccessFile(segmentFile(nextIndex), "rw");
+      // left over from a group that failed half-way
+      file.setLength(0);
+      segment = file.getChannel();
+      segmentSize = 0;
+    }
+    ByteBuffer[] gather = buffers.toArray(new ByteBuffer[buffers.size()]);
+    long written = 0;
+    while (written < length) {
+      written += segment.write(gather);
+    }
+    segment.force(false);
+    segmentSize += length;
+    nextIndex += buffers.size();
+    metrics.journalCommitted(buffers.size(), length);
+
+    if (segmentSize >= segmentBytes) {
+      closeSegment();
+      if (closed.size() > maxSegments) {
+        compact();
+      }
+    }
+  }
+
+  private void closeSegment() {
+    if (segment == null) {
+      return;
+    }
+    try {
+      segment.close();
+    } catch (IOException e) {
+      // everything written was forced already
+    }
+    segment = null;
+    File[] all = segments(dir);
+    closed.clear();
+    closed.addAll(Arrays.asList(all));
+  }
+
+  /**
+   * folds the closed segments into one with the newest LSA of every router and the final ports
+   */
+  private void compact() {
+    File first = closed.get(0);
+    File tmp = new File(dir, "compacting.tmp");
+    try {
+      LinkedHashMap<String, Record> lsas = new LinkedHashMap<String, Record>();
+      TreeMap<Integer, Record> ports = new TreeMap<Integer, Record>();
+      for (File file : closed) {
+        for (Record record : read(file)) {
+          fold(record, lsas, ports);
+        }
+      }
+      RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+      try {
+        out.setLength(0);
+        for (Record record : lsas.values()) {
+          out.write(encode(record));
+        }
+        for (Record record : ports.values()) {
+          out.write(encode(record));
+        }
+        out.getChannel().force(false);
+      } finally {
+        out.close();
+      }
+      // replaying the folded segments again after the compacted one gives the same state, so a
+      // crash before all of them are deleted is harmless
+      if (!tmp.renameTo(first)) {
+        throw new IOException("cannot replace " + first);
+      }
+      for (File file : closed.subList(1, closed.size())) {
+        if (!file.delete()) {
+          log.warn("journal segment not deleted file={}", file);
+        }
+      }
+      log.info("journal compacted dir={} segments={} records={}", dir, closed.size(), lsas.size() + ports.size());
+      closed.clear();
+      closed.add(first);
+      metrics.journalCompacted();
+    } catch (IOException e) {
+      log.warn("journal compaction failed dir={} error={}", dir, e.getMessage());
+      tmp.delete();
+    }
+  }
+
+  /**
+   * applies a record to the newest LSA per router and the ports
+   */
+  static void fold(Record record, Map<String, Record> lsas, Map<Integer, Record> ports) {
+    if (record.type == LSA_INSTALLED) {
+      Record newest = lsas.get(record.lsa.linkStateID);
+      if (newest == null || newest.lsa.lsaSeqNumber < record.lsa.lsaSeqNumber) {
+        lsas.put(record.lsa.linkStateID, record);
+      }
+    } else if (record.type == PORT_SET) {
+      ports.put(record.port, record);
+    } else {
+      ports.remove(record.port);
+    }
+  }
+
+  private static byte[] encode(Record record) {
+    ByteBuffer out;
+    if (record.type == LSA_INSTALLED) {
+      out = frame(LSA_INSTALLED, 12 + 10 * record.lsa.links.size());
+      putLSA(out, record.lsa);
+    } else {
+      out = frame(PORT_SET, 18);
+      out.putInt(record.port);
+      out.putInt(PacketCodec.ipToInt(record.remote.simulatedIPAddress));
+      out.putInt(PacketCodec.ipToInt(record.remote.processIPAddress));
+      out.putShort(record.remote.processPortNumber);
+      out.putInt(record.weight);
+    }
+    out.putLong(9, record.time);
+    byte[] bytes = out.array();
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 8, bytes.length - 8);
+    out.putInt(4, (int) crc.getValue());
+    return bytes;
+  }
+
+  /**
+   * the valid records of a segment, up to the first torn or corrupt one
+   */
+  static List<Record> read(File segment) throws IOException {
+    byte[] bytes = new byte[(int) segment.length()];
+    FileInputStream in = new FileInputStream(segment);
+    try {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n < 0) {
+          throw new EOFException(segment + " shrank while reading");
+        }
+        read += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    List<Record> records = new ArrayList<Record>();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.remaining() >= 8) {
+      int length = buffer.getInt();
+      int expected = buffer.getInt();
+      if (length < 9 || length > buffer.remaining()) {
+        break;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes, buffer.position(), length);
+      byte type = bytes[buffer.position()];
+      if ((int) crc.getValue() != expected || type < LSA_INSTALLED || type > PORT_CLEARED) {
+        break;
+      }
+      records.add(decode(ByteBuffer.wrap(bytes, buffer.position(), length)));
+      buffer.position(buffer.position() + length);
+    }
+    return records;
+  }
+
+  private static Record decode(ByteBuffer in) {
+    Record record = new Record();
+    record.type = in.get();
+    record.time = in.getLong();
+    if (record.type == LSA_INSTALLED) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = PacketCodec.intToIp(in.getInt());
+      lsa.lsaSeqNumber = in.getInt();
+      int links = in.getInt();
+      for (int i = 0; i < links; i++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = PacketCodec.intToIp(in.getInt());
+        ld.portNum = in.getShort();
+        ld.tosMetrics = in.getInt();
+        lsa.links.add(ld);
+      }
+      record.lsa = lsa;
+    } else if (record.type == PORT_SET) {
+      record.port = in.getInt();
+      String simulatedIP = PacketCodec.intToIp(in.getInt());
+      String processIP = PacketCodec.intToIp(in.getInt());
+      record.remote = new RouterDescription(processIP, in.getShort(), simulatedIP);
+      record.weight = in.getInt();
+    } else {
+      record.port = in.getInt();
+    }
+    return record;
+  }
+}
@@ -0,0 +1,99 @@
+package socs.network.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds the state of a router from its {@link Journal}: every recorded LSA is installed in a
+ * fresh {@link LinkStateDatabase} as fast as possible, and the port changes are applied in order.
+ * Prints how long that took, the ports and the routing table it ends up with.
+ * <p/>
+ * Usage: {@code java -cp <classpath> socs.network.node.JournalReplay <journal dir> <simulated ip>
+ * [spfEvery]}, where the simulated ip is that of the router that wrote the journal and, if
+ * given, the routing table is recomputed after every spfEvery LSAs, as the router would while
+ * they arrive; otherwise it is computed once at the end.
+ */
+public class JournalReplay {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("usage: JournalReplay journal_dir simulated_ip [spfEvery]");
+      return;
+    }
+    File dir = new File(args[0]);
+    int spfEvery = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+
+    // decode first, so that only the installs are timed
+    File[] segments = Journal.segments(dir);
+    List<Journal.Record> records = read(segments);
+
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = args[1];
+    LinkStateDatabase lsd = new LinkStateDatabase(rd);
+    TreeMap<Integer, Journal.Record> ports = new TreeMap<Integer, Journal.Record>();
+    int lsas = 0;
+    for (Journal.Record record : records) {
+      if (record.type == Journal.LSA_INSTALLED) {
+        lsas++;
+      }
+    }
+
+    long started = System.nanoTime();
+    int installed = replay(records, lsd, ports, spfEvery);
+    String routes = lsd.getRoutingTable().toString();
+    double elapsedMs = (System.nanoTime() - started) / 1e6;
+
+    System.out.println("replayed " + records.size() + " records from " + segments.length + " segment(s) in "
+        + String.format("%.1f", elapsedMs) + "ms (" + Math.round(records.size() / Math.max(elapsedMs, 0.001) * 1000) + " records/s)");
+    System.out.println("lsas: " + lsas + " installed=" + installed + " stale=" + (lsas - installed));
+    for (Journal.Record port : ports.values()) {
+      System.out.println("port " + port.port + ": " + port.remote.simulatedIPAddress + " at "
+          + port.remote.processIPAddress + ":" + port.remote.processPortNumber + " weight " + port.weight);
+    }
+    System.out.print(routes.isEmpty() ? "No routes.\n" : routes);
+    System.out.println(lsd.spfStats());
+  }
+
+  /**
+   * the valid records of the segments, in order
+   */
+  static List<Journal.Record> read(File[] segments) throws IOException {
+    List<Journal.Record> records = new ArrayList<Journal.Record>();
+    for (File segment : segments) {
+      records.addAll(Journal.read(segment));
+    }
+    return records;
+  }
+
+  /**
+   * installs the recorded LSAs in the database and applies the port changes in order, leaving
+   * the ports attached at the end in the map; the routing table is recomputed after every
+   * spfEvery LSAs if that is positive
+   *
+   * @return the number of LSAs that were newer than the one the database held
+   */
+  static int replay(List<Journal.Record> records, LinkStateDatabase lsd, Map<Integer, Journal.Record> ports, int spfEvery) {
+    int lsas = 0;
+    int installed = 0;
+    for (Journal.Record record : records) {
+      if (record.type == Journal.LSA_INSTALLED) {
+        lsas++;
+        if (lsd.install(record.lsa)) {
+          installed++;
+        }
+        if (spfEvery > 0 && lsas % spfEvery == 0) {
+          lsd.getRoutingTable();
+        }
+      } else if (record.type == Journal.PORT_SET) {
+        ports.put(record.port, record);
+      } else {
+        ports.remove(record.port);
+      }
+    }
+    return installed;
+  }
+}
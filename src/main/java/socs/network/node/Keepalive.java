@@ -0,0 +1,199 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.SOSPFPacket;
+import socs.network.util.TimerWheel;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps track of which neighbors are alive, like OSPF's hello and dead intervals.
+ * <p/>
+ * Once an adjacency is TWO_WAY we send the neighbor a KEEPALIVE every hello interval, and expect
+ * to hear from it at least once per dead interval: any packet counts, not only its KEEPALIVEs.
+ * A neighbor that stays silent longer is declared dead: its link is removed and our LSA is
+ * originated without it, so routes stop pointing at a router that crashed.
+ * <p/>
+ * Both timers of every neighbor live on one {@link TimerWheel}. Hearing from a neighbor only
+ * records the time; when the dead timer fires it checks that time and, if the neighbor was heard
+ * from since, re-arms itself for the rest of the interval, so a busy neighbor costs no timer
+ * churn. The KEEPALIVEs are posted to the neighbor's channel, so the wheel thread never waits
+ * for a send; a failed send is counted by the channel's sender thread. Removing a dead neighbor
+ * may wait for a send in progress, so that is done on a separate thread.
+ */
+public class Keepalive {
+
+  private static final Logger log = LoggerFactory.getLogger(Keepalive.class);
+
+  private static class Neighbor {
+    final String ip;
+    volatile long lastHeard = System.currentTimeMillis();
+    volatile TimerWheel.Timeout hello;
+    volatile TimerWheel.Timeout dead;
+
+    Neighbor(String ip) {
+      this.ip = ip;
+    }
+  }
+
+  private final Router router;
+  private final TimerWheel wheel;
+  private final long helloIntervalMs;
+  private final long deadIntervalMs;
+
+  // removes dead neighbors off the wheel thread
+  private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "keepalive");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // neighbor simulated ip => its timers
+  private final ConcurrentHashMap<String, Neighbor> neighbors = new ConcurrentHashMap<String, Neighbor>();
+
+  /**
+   * @param helloIntervalMs time between two KEEPALIVEs to a neighbor, 0 to disable keepalives
+   *                        and dead neighbor detection
+   */
+  public Keepalive(Router router, TimerWheel wheel, long helloIntervalMs, long deadIntervalMs) {
+    this.router = router;
+    this.wheel = wheel;
+    this.helloIntervalMs = Math.max(0, helloIntervalMs);
+    this.deadIntervalMs = Math.max(this.helloIntervalMs, deadIntervalMs);
+  }
+
+  /**
+   * starts watching a neighbor whose adjacency just reached TWO_WAY
+   */
+  void up(Link link) {
+    if (helloIntervalMs == 0) {
+      return;
+    }
+    Neighbor created = new Neighbor(link.router2.simulatedIPAddress);
+    Neighbor neighbor = neighbors.putIfAbsent(created.ip, created);
+    if (neighbor != null) {
+      // handshake again with a neighbor we already watch
+      neighbor.lastHeard = System.currentTimeMillis();
+      return;
+    }
+    scheduleHello(created, helloIntervalMs);
+    scheduleDead(created, deadIntervalMs);
+  }
+
+  /**
+   * records that the neighbor is alive
+   */
+  void heard(String simulatedIP) {
+    Neighbor neighbor = neighbors.get(simulatedIP);
+    if (neighbor != null) {
+      neighbor.lastHeard = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * stops watching a neighbor whose link went away
+   */
+  void down(String simulatedIP) {
+    Neighbor neighbor = neighbors.remove(simulatedIP);
+    if (neighbor != null) {
+      cancel(neighbor);
+    }
+  }
+
+  private void cancel(Neighbor neighbor) {
+    TimerWheel.Timeout hello = neighbor.hello;
+    TimerWheel.Timeout dead = neighbor.dead;
+    if (hello != null) {
+      hello.cancel();
+    }
+    if (dead != null) {
+      dead.cancel();
+    }
+  }
+
+  private void scheduleHello(final Neighbor neighbor, long delayMs) {
+    neighbor.hello = wheel.schedule(new Runnable() {
+      public void run() {
+        sendKeepalive(neighbor);
+      }
+    }, delayMs);
+  }
+
+  private void scheduleDead(final Neighbor neighbor, long delayMs) {
+    neighbor.dead = wheel.schedule(new Runnable() {
+      public void run() {
+        checkDead(neighbor);
+      }
+    }, delayMs);
+  }
+
+  private void sendKeepalive(Neighbor neighbor) {
+    if (neighbors.get(neighbor.ip) != neighbor) {
+      return;
+    }
+    Link link = router.ports.find(neighbor.ip);
+    if (link == null) {
+      down(neighbor.ip);
+      return;
+    }
+    SOSPFPacket packet = new SOSPFPacket(
+        router.rd.processIPAddress,
+        router.rd.processPortNumber,
+        router.rd.simulatedIPAddress,
+        link.router2.simulatedIPAddress,
+        (short) 8,
+        router.rd.simulatedIPAddress,
+        link.router2.simulatedIPAddress
+    );
+    router.channels.get(link.router2).post(packet, new NeighborChannel.Failure() {
+      public void failed(IOException e) {
+        // the dead timer decides whether the neighbor is gone, try again next interval
+        router.metrics.keepaliveFailed();
+      }
+    });
+    router.metrics.keepaliveSent();
+    if (neighbors.get(neighbor.ip) == neighbor) {
+      scheduleHello(neighbor, helloIntervalMs);
+    }
+  }
+
+  private void checkDead(final Neighbor neighbor) {
+    if (neighbors.get(neighbor.ip) != neighbor) {
+      return;
+    }
+    final long silentMs = System.currentTimeMillis() - neighbor.lastHeard;
+    if (silentMs < deadIntervalMs) {
+      scheduleDead(neighbor, deadIntervalMs - silentMs);
+      return;
+    }
+    if (!neighbors.remove(neighbor.ip, neighbor)) {
+      return;
+    }
+    cancel(neighbor);
+    router.metrics.neighborDead();
+    // closing the channel may wait for a send in progress, keep it off the wheel thread
+    sender.execute(new Runnable() {
+      public void run() {
+        removeLink(neighbor, silentMs);
+      }
+    });
+  }
+
+  private void removeLink(Neighbor neighbor, long silentMs) {
+    int port = router.ports.portOf(neighbor.ip);
+    if (port != -1) {
+      router.ports.remove(port);
+    }
+    router.channels.remove(neighbor.ip);
+    router.flooding.forget(neighbor.ip);
+    log.warn("neighbor dead neighbor={} silentMs={} port={}", neighbor.ip, silentMs, port);
+    router.broadcastLSAUPDATE();
+  }
+}
@@ -1,191 +1,311 @@
 package socs.network.node;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import socs.network.message.LSA;
+import socs.network.message.LSADelta;
+import socs.network.message.LSAHeader;
 import socs.network.message.LinkDescription;
+import socs.network.util.Throttle;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Set;
-
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The LSAs of every known router. It is shared by all the receiver threads and the terminal, and
+ * none of them takes a lock to read or install an LSA:
+ * <ul>
+ * <li>an LSA is installed by swapping it in for the one it replaces with a compare-and-set on the
+ * router's entry, so of two concurrent installs for the same router the one with the higher
+ * sequence number always wins and neither update is lost</li>
+ * <li>an installed LSA is never modified, so readers can keep and walk any LSA they got</li>
+ * <li>dumps work on a {@link #snapshot()} and routes on a {@link RoutingTable} that never changes
+ * once built</li>
+ * </ul>
+ * Only building a new routing table is serialized; installs just queue the router for it. A
+ * snapshot is the database exactly as it was at one version: installs share a read lock among
+ * themselves, and the copy is made under the write lock, between two installs.
+ */
 public class LinkStateDatabase {
 
+  private static final Logger log = LoggerFactory.getLogger(LinkStateDatabase.class);
+
   // linkID => LSAInstance
-  HashMap<String, LSA> _store = new HashMap<String, LSA>();
+  final ConcurrentHashMap<String, LSA> _store = new ConcurrentHashMap<String, LSA>();
 
   private RouterDescription rd = null;
 
+  // bumped every time an LSA with a higher sequence number is installed
+  private final AtomicLong version = new AtomicLong();
+
+  // held shared by installs, from the swap to the version bump, and exclusively to copy _store
+  private final StampedLock installLock = new StampedLock();
+
+  // the last snapshot taken, reused while the version has not moved
+  private volatile Snapshot lastSnapshot;
+
+  // routes computed for the database at routingTable.version, null until the first lookup
+  private volatile RoutingTable routingTable = null;
+
+  // whether installed LSAs remember how they differ from the one they replace, for delta flooding
+  volatile boolean trackDeltas;
+
+  // runs SPF in the background some time after LSAs were installed, coalescing bursts; null to
+  // only compute routes when they are looked up
+  Throttle spfThrottle;
+
+  // records how long building each routing table took and how; null to not record it
+  RouterMetrics metrics;
+
+  // reserves the sequence numbers of our LSAs so a restart never reuses one; null if the
+  // database is not kept on disk
+  SnapshotFile snapshotFile;
+
+  // records every LSA installed, null if there is no journal
+  Journal journal;
+
+  // routers whose LSA changed since the graph was last brought up to date
+  private final ConcurrentLinkedQueue<String> changed = new ConcurrentLinkedQueue<String>();
+
+  // everything below is only used while holding spfLock
+  private final Object spfLock = new Object();
+
+  // the links of _store over int router numbers, which SPF runs on
+  private final TopologyGraph graph = new TopologyGraph();
+
+  // the LSA each router's links in the graph were taken from
+  private final HashMap<String, LSA> inGraph = new HashMap<String, LSA>();
+
+  // keeps the shortest path tree up to date as LSAs are installed
+  private final IncrementalSpf spf;
+
   public LinkStateDatabase(RouterDescription routerDescription) {
     rd = routerDescription;
+    spf = new IncrementalSpf(graph, rd.simulatedIPAddress);
     LSA l = initLinkStateDatabase();
     _store.put(l.linkStateID, l);
+    changed.add(l.linkStateID);
+  }
+
+  LSA get(String linkStateID) {
+    return _store.get(linkStateID);
+  }
+
+  String ownerIP() {
+    return rd.simulatedIPAddress;
+  }
+
+  /**
+   * bumped by every install, so an unchanged version means an unchanged database
+   */
+  long version() {
+    return version.get();
   }
 
   /**
-   * Returns the LSA object from the set of unsettled LSAs that has the smallest
-   * distance from the source.
-   * 
-   * @param unsettledLSAs    a set of unsettled nodes for the Dijkstra's algorithm
-   * @param distanceToSource contains LSAs and their distance to the source LSA
-   * @return the LSA with the lowest distance
+   * stores the LSA unless the database already holds one from the same router with the same or
+   * a higher sequence number
+   *
+   * @return true if the LSA was stored
    */
-  private static LSA getLowestDistanceLSA(Set<LSA> unsettledLSAs, Map<LSA, Integer> distanceToSource) {
-    LSA lowestDistanceLSA = null;
-    for (LSA lsa : unsettledLSAs) {
-      int dist = (distanceToSource.get(lsa) != null) ? distanceToSource.get(lsa) : Integer.MAX_VALUE;
-      int lowestDistance = (distanceToSource.get(lowestDistanceLSA) != null) ? distanceToSource.get(lowestDistanceLSA) : Integer.MAX_VALUE;
-      if (dist < lowestDistance) {
-        lowestDistanceLSA = lsa;
+  boolean install(LSA lsa) {
+    while (true) {
+      LSA current = _store.get(lsa.linkStateID);
+      if (current != null && current.lsaSeqNumber >= lsa.lsaSeqNumber) {
+        return false;
       }
+      if (trackDeltas && lsa.delta == null) {
+        lsa.delta = LSADelta.between(current, lsa);
+      }
+      if (swap(current, lsa)) {
+        return true;
+      }
+      // another thread installed an LSA for the same router in between, compare again
     }
-    return lowestDistanceLSA;
   }
 
   /**
-   * Adds or updates the shortest distance for the neighbour if the path
-   * containing the current target LSA
-   * is shorter.
-   * 
-   * @param currentLSA       current target node that is being evaluated
-   * @param neighbour        one of the links of the current LSA
-   * @param distanceToSource contains LSAs and their distance to the source LSA
+   * installs a new LSA of this router with the given links, numbered one past the current one
    */
-  private static void calculateMinimumDistance(LSA currentLSA, LSA neighbour, Map<LSA, Integer> distanceToSource,
-      Map<LSA, LSA> shortestEdges) {
-    Integer neighbourDistance = (distanceToSource.get(neighbour) != null) ? distanceToSource.get(neighbour)
-        : Integer.MAX_VALUE;
-    Integer currentLSADistance = (distanceToSource.get(currentLSA) != null) ? distanceToSource.get(currentLSA)
-        : Integer.MAX_VALUE;
-    Integer edgeWeight = -1;
-    // find the edge weight from current node to its neighbour
-    for (LinkDescription l : currentLSA.links) {
-      if (l.linkID.equals(neighbour.linkStateID)) {
-        edgeWeight = l.tosMetrics;
+  LSA originate(LinkedList<LinkDescription> links) {
+    while (true) {
+      LSA current = _store.get(rd.simulatedIPAddress);
+      LSA lsa = new LSA();
+      lsa.linkStateID = rd.simulatedIPAddress;
+      //init seqNumber to 0, else increment seqNumber
+      lsa.lsaSeqNumber = (current.lsaSeqNumber == Integer.MIN_VALUE) ? 0 : current.lsaSeqNumber + 1;
+      lsa.links = links;
+      SnapshotFile snapshot = snapshotFile;
+      if (snapshot != null) {
+        // a snapshot without our LSA still carries the reservation made before the restart
+        lsa.lsaSeqNumber = Math.max(lsa.lsaSeqNumber, snapshot.firstSeq());
+        try {
+          snapshot.reserve(lsa.lsaSeqNumber);
+        } catch (IOException e) {
+          log.warn("sequence reservation failed seq={} error={}", lsa.lsaSeqNumber, e.getMessage());
+        }
+      }
+      if (trackDeltas) {
+        lsa.delta = LSADelta.between(current, lsa);
+      }
+      if (swap(current, lsa)) {
+        return lsa;
       }
     }
+  }
 
-    if (edgeWeight < 0 || edgeWeight == null) {
-      System.err.println("Error: Cannot get shortest path. Edge weight is not valid.");
-      return;
+  /**
+   * replaces current, null if the router has no LSA yet, with the LSA and counts the install,
+   * as one step for snapshots
+   *
+   * @return false if another LSA replaced current in between
+   */
+  private boolean swap(LSA current, LSA lsa) {
+    long stamp = installLock.readLock();
+    try {
+      boolean swapped = (current == null)
+          ? _store.putIfAbsent(lsa.linkStateID, lsa) == null
+          : _store.replace(lsa.linkStateID, current, lsa);
+      if (swapped) {
+        installed(lsa);
+      }
+      return swapped;
+    } finally {
+      installLock.unlockRead(stamp);
     }
+  }
 
-    // if the distance to source of the neighbour previously recorded (or not
-    // recorded, meaning Integer.MAX_VALUE) is greater than
-    // the distance of the path with the currentLSA, then update
-    if (currentLSADistance + edgeWeight < neighbourDistance) {
-
-      // update distance of neighbour node
-      distanceToSource.put(neighbour, currentLSADistance + edgeWeight);
-
-      // update smallest weight edge from current node to neighbour node
-      shortestEdges.put(neighbour, currentLSA);
+  private void installed(LSA lsa) {
+    Journal j = journal;
+    if (j != null) {
+      j.lsaInstalled(lsa);
+    }
+    // queue before bumping the version, so a reader that sees the new version also sees the change
+    changed.add(lsa.linkStateID);
+    version.incrementAndGet();
+    Throttle throttle = spfThrottle;
+    if (throttle != null) {
+      throttle.request();
     }
   }
 
   /**
-   * Converts the given path of LSAs to a string.
-   * 
-   * @param path a linked list of LSAs
-   * @return the path as a string in the required formats
+   * the origin and sequence number of every LSA in the database, for a database description;
+   * the placeholder we hold for ourselves before the first origination is left out
    */
-  private static String convertPathToString(LinkedList<LSA> path) {
-    String stringPath = "";
-    int weight = -1;
-    ListIterator<LSA> pathIter = path.listIterator(0);
-
-    while (pathIter.hasNext()) {
-      LSA currentLSA = pathIter.next();
-      stringPath = stringPath + currentLSA.linkStateID;
-
-      if (pathIter.hasNext()) {
-        stringPath = stringPath + " ->";
-        int nextIndex = pathIter.nextIndex();
-        String nextLSA = path.get(nextIndex).linkStateID;
-
-        for (LinkDescription l : currentLSA.links) {
-          if (l.linkID.equals(nextLSA)) {
-            weight = l.tosMetrics;
-          }
-        }
-
-        stringPath = stringPath + "(" + weight + ") ";
+  Vector<LSAHeader> headers() {
+    Map<String, LSA> lsas = snapshot().lsas;
+    Vector<LSAHeader> headers = new Vector<LSAHeader>(lsas.size());
+    for (LSA lsa : lsas.values()) {
+      if (lsa.lsaSeqNumber != Integer.MIN_VALUE) {
+        headers.add(new LSAHeader(lsa.linkStateID, lsa.lsaSeqNumber));
       }
     }
-    return stringPath;
+    return headers;
   }
 
   /**
-   * output the shortest path from this router to the destination with the given
-   * IP address
+   * the LSAs of the database after a given number of installs, never modified
    */
-  String getShortestPath(String destinationIP) {
-
-    // build the weighted graph
-    Set<LSA> unsettledLSAs = new HashSet<LSA>();
-    Set<LSA> settledLSAs = new HashSet<LSA>();
-
-    // store neighbours and their distances of the source node
-    Map<LSA, Integer> distanceToSource = new HashMap<LSA, Integer>(); // <node, weight>
-    LinkedList<LSA> shortestPath = new LinkedList<LSA>();
-    Map<LSA, LSA> shortestEdges = new HashMap<LSA, LSA>(); // <end node, start node> direction of edge "<--"
-
-    // add the source node
-    LSA source = _store.get(rd.simulatedIPAddress);
-    unsettledLSAs.add(source);
-    distanceToSource.put(source, 0);
+  static final class Snapshot {
+    final Map<String, LSA> lsas;
+    final long version;
 
-    // keep looping while there are still unsettled nodes
-    while (unsettledLSAs.size() > 0) {
-      LSA currentLSA = getLowestDistanceLSA(unsettledLSAs, distanceToSource);
-      unsettledLSAs.remove(currentLSA);
+    Snapshot(Map<String, LSA> lsas, long version) {
+      this.lsas = lsas;
+      this.version = version;
+    }
+  }
 
-      // get neighbours of the node
-      LinkedList<LSA> adjacentLSAs = new LinkedList<LSA>();
+  /**
+   * the database as it is at the current version; taken again only once an LSA was installed
+   */
+  Snapshot snapshot() {
+    Snapshot snapshot = lastSnapshot;
+    if (snapshot != null && snapshot.version == version.get()) {
+      return snapshot;
+    }
+    long stamp = installLock.writeLock();
+    try {
+      snapshot = new Snapshot(Collections.unmodifiableMap(new HashMap<String, LSA>(_store)), version.get());
+    } finally {
+      installLock.unlockWrite(stamp);
+    }
+    lastSnapshot = snapshot;
+    return snapshot;
+  }
 
-      for (LinkDescription l : currentLSA.links) {
-        if (l.linkID != null) {
-          adjacentLSAs.add(_store.get(l.linkID));
+  /**
+   * the routing table of the current database, rebuilt only if an LSA was installed since it
+   * was last built
+   */
+  RoutingTable getRoutingTable() {
+    RoutingTable table = routingTable;
+    long current = version.get();
+    if (table != null && table.version == current) {
+      return table;
+    }
+    synchronized (spfLock) {
+      table = routingTable;
+      if (table == null || table.version != current) {
+        long started = System.nanoTime();
+        long fullRuns = spf.fullRuns;
+        long incrementalRuns = spf.incrementalRuns;
+        String id;
+        while ((id = changed.poll()) != null) {
+          LSA lsa = _store.get(id);
+          // an id is queued once per install, only the latest LSA matters
+          if (inGraph.get(id) != lsa) {
+            inGraph.put(id, lsa);
+            spf.lsaInstalled(lsa);
+          }
         }
-      }
-
-      // iterate through each neighbor, and update the distance to the shortest from
-      // source for each
-      // add to unsettled set if node has not been settled yet
-      for (LSA neighbour : adjacentLSAs) {
-        // if neighbour linkID is null, skip to next
-        if (neighbour == null)
-          continue;
-
-        // if neighbour is already in settled list, then skip
-        if (!settledLSAs.contains(neighbour)) {
-          calculateMinimumDistance(currentLSA, neighbour, distanceToSource, shortestEdges);
-          unsettledLSAs.add(neighbour);
+        table = new RoutingTable(spf.snapshot(), current);
+        routingTable = table;
+        if (metrics != null) {
+          metrics.spf.record((System.nanoTime() - started) / 1000);
+          metrics.spfRan(spf.fullRuns - fullRuns, spf.incrementalRuns - incrementalRuns);
         }
       }
-      settledLSAs.add(currentLSA);
+      return table;
     }
+  }
 
-    // Generate the shortest path
-    LSA lastLSA = _store.get(destinationIP);
+  /**
+   * how often the shortest path tree was computed from scratch and how often it was patched, and
+   * how many background SPF runs the hold-down timer saved
+   */
+  String spfStats() {
+    synchronized (spfLock) {
+      String stats = "spf: full=" + spf.fullRuns + " incremental=" + spf.incrementalRuns;
+      Throttle throttle = spfThrottle;
+      return (throttle == null) ? stats : stats + " throttle: " + throttle;
+    }
+  }
 
-    // Starting from the destinationIP router, add the routers that lead up to the
-    // current router
-    if (shortestEdges.get(lastLSA) != null) {
-      shortestPath.add(lastLSA);
-      while (shortestEdges.get(lastLSA) != null) {
-        lastLSA = shortestEdges.get(lastLSA);
-        shortestPath.add(lastLSA);
-      }
-      Collections.reverse(shortestPath);
-    } else {
-      return "Warning: There is no path.";
+  /**
+   * how many times the shortest path tree was computed, from scratch or patched
+   */
+  long spfRuns() {
+    synchronized (spfLock) {
+      return spf.fullRuns + spf.incrementalRuns;
     }
-    // Convert the path to a string to return
+  }
 
-    return convertPathToString(shortestPath);
+  /**
+   * output the shortest path from this router to the destination with the given
+   * IP address
+   */
+  String getShortestPath(String destinationIP) {
+    return getRoutingTable().pathTo(destinationIP);
   }
 
   // initialize the linkstate database by adding an entry about the router itself
@@ -203,7 +323,7 @@ public class LinkStateDatabase {
 
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    for (LSA lsa : _store.values()) {
+    for (LSA lsa : snapshot().lsas.values()) {
       sb.append(lsa.linkStateID).append("(" + lsa.lsaSeqNumber + ")").append(":\t");
       for (LinkDescription ld : lsa.links) {
         sb.append(ld.linkID).append(",").append(ld.portNum).append(",").append(ld.tosMetrics).append("\t");
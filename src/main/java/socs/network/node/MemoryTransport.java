@@ -0,0 +1,256 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+import socs.network.util.MismatchedLinkException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects routers living in the same JVM through queues instead of sockets, so that thousands
+ * of them can be simulated in one process without binding a port each.
+ * <p/>
+ * A listening router is registered under its process ip and port; connecting to that address
+ * gives a pair of queues. Packets go through {@link PacketCodec} on the way, as they would on a
+ * socket, so routers never share LSA objects and the codec is exercised like in production.
+ * <p/>
+ * Each router handles the packets of all its inbound connections on a single thread, in arrival
+ * order. Handling a packet never waits for another router: replies are queued here, and what the
+ * handler sends to other neighbors is {@link NeighborChannel#post posted} to their channels,
+ * since a handshake holds a channel while it waits for the neighbor's inbox to answer. A rejected
+ * request closes the connection, which the sender sees on its next receive, exactly as with TCP.
+ * <p/>
+ * Only the sockets are saved: every router still runs its own inbox thread, timer thread, timer
+ * wheel, channel reaper, channel sender, LSA batcher and keepalive sender, about seven threads
+ * each. A few thousand routers thus mean tens of thousands of threads, which the system's thread
+ * limit and the stack size ({@code -Xss}) have to allow for.
+ * <p/>
+ * The registry is static, shared by all the routers of the JVM; a router that closes or quits
+ * removes its address from it, so a new router can listen there again.
+ */
+public class MemoryTransport implements Transport {
+
+  private static final Logger log = LoggerFactory.getLogger(MemoryTransport.class);
+
+  // routers listening in this JVM, by process ip and port
+  private static final ConcurrentHashMap<String, Inbox> listening = new ConcurrentHashMap<String, Inbox>();
+
+  // queued for a connection whose other side closed it
+  private static final byte[] CLOSED = new byte[0];
+
+  private final AtomicLong packets = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  private static String address(String processIP, short processPort) {
+    return processIP + ":" + processPort;
+  }
+
+  /**
+   * a packet waiting to be handled by the router it was sent to
+   */
+  private static class Delivery {
+    final ServerEnd from;
+    final byte[] frame;
+
+    Delivery(ServerEnd from, byte[] frame) {
+      this.from = from;
+      this.frame = frame;
+    }
+  }
+
+  /**
+   * the packets sent to one router over all of its inbound connections
+   */
+  private static class Inbox implements Runnable {
+    final Router router;
+    final MemoryTransport transport;
+    final LinkedBlockingQueue<Delivery> queue = new LinkedBlockingQueue<Delivery>();
+    Thread thread;
+    volatile boolean stopped;
+
+    Inbox(Router router, MemoryTransport transport) {
+      this.router = router;
+      this.transport = transport;
+    }
+
+    public void run() {
+      while (!stopped) {
+        Delivery delivery;
+        try {
+          delivery = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        ServerEnd end = delivery.from;
+        if (end.closed) {
+          continue;
+        }
+        try {
+          router.packetHandler.handle(end, decode(delivery.frame));
+        } catch (StreamCorruptedException e) {
+          log.warn("bad packet error={}", e.getMessage());
+          end.close();
+        } catch (MismatchedLinkException e) {
+          // closing the connection tells the client its request was rejected
+          log.warn("request rejected reason={}", e.getMessage());
+          end.close();
+        } catch (IOException e) {
+          end.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * the accepting router's side of a connection
+   */
+  private static class ServerEnd extends PacketHandler.Session {
+    final ClientEnd client;
+    volatile boolean closed;
+
+    ServerEnd(ClientEnd client) {
+      this.client = client;
+    }
+
+    void reply(SOSPFPacket packet) throws IOException {
+      if (closed || client.closed) {
+        throw new IOException("connection closed");
+      }
+      // a reply is sent by the accepting router, count it there
+      client.replies.add(client.server.transport.encode(packet));
+    }
+
+    void close() {
+      closed = true;
+      client.replies.add(CLOSED);
+    }
+  }
+
+  /**
+   * the connecting router's side of a connection
+   */
+  private static class ClientEnd implements Connection {
+    final MemoryTransport transport;
+    final Inbox server;
+    final ServerEnd serverEnd;
+    final LinkedBlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+    volatile boolean closed;
+
+    ClientEnd(MemoryTransport transport, Inbox server) {
+      this.transport = transport;
+      this.server = server;
+      this.serverEnd = new ServerEnd(this);
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      if (closed || serverEnd.closed) {
+        throw new IOException("connection closed");
+      }
+      server.queue.add(new Delivery(serverEnd, transport.encode(packet)));
+    }
+
+    public SOSPFPacket receive(int timeoutMs) throws IOException {
+      if (closed) {
+        throw new IOException("connection closed");
+      }
+      byte[] frame;
+      try {
+        frame = replies.poll(timeoutMs, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted");
+      }
+      if (frame == null) {
+        throw new SocketTimeoutException("no reply within " + timeoutMs + "ms");
+      }
+      if (frame == CLOSED) {
+        closed = true;
+        throw new IOException("connection closed by the other side");
+      }
+      return decode(frame);
+    }
+
+    public boolean isBroken() {
+      // the accepting side queued CLOSED when it closed its end
+      return closed || serverEnd.closed || replies.peek() == CLOSED;
+    }
+
+    public void close() {
+      closed = true;
+      serverEnd.closed = true;
+    }
+  }
+
+  public Connection connect(RouterDescription remote) throws IOException {
+    Inbox server = listening.get(address(remote.processIPAddress, remote.processPortNumber));
+    if (server == null) {
+      throw new IOException("Connection refused: nothing listens on " + address(remote.processIPAddress, remote.processPortNumber));
+    }
+    return new ClientEnd(this, server);
+  }
+
+  public void listen(Router router) throws IOException {
+    Inbox inbox = new Inbox(router, this);
+    String address = address(router.rd.processIPAddress, router.rd.processPortNumber);
+    if (listening.putIfAbsent(address, inbox) != null) {
+      throw new IOException("Address already in use: " + address);
+    }
+    inbox.thread = new Thread(inbox, "memory-inbox-" + router.rd.simulatedIPAddress);
+    inbox.thread.setDaemon(true);
+    inbox.thread.start();
+  }
+
+  public void close(Router router) {
+    String address = address(router.rd.processIPAddress, router.rd.processPortNumber);
+    Inbox inbox = listening.get(address);
+    if (inbox == null || inbox.router != router || !listening.remove(address, inbox)) {
+      return;
+    }
+    inbox.stopped = true;
+    inbox.thread.interrupt();
+    // the connections that still had packets waiting see the close, as on a socket
+    Delivery delivery;
+    while ((delivery = inbox.queue.poll()) != null) {
+      delivery.from.close();
+    }
+  }
+
+  private byte[] encode(SOSPFPacket packet) {
+    byte[] frame = PacketCodec.encode(packet);
+    packets.incrementAndGet();
+    bytes.addAndGet(frame.length);
+    return frame;
+  }
+
+  /**
+   * packets sent so far by the routers using this transport
+   */
+  long packets() {
+    return packets.get();
+  }
+
+  /**
+   * bytes of the packets sent so far, frame headers included
+   */
+  long bytes() {
+    return bytes.get();
+  }
+
+  private static SOSPFPacket decode(byte[] frame) throws IOException {
+    return PacketCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4));
+  }
+
+  public String toString() {
+    return "transport: memory routers=" + listening.size() + " packets=" + packets.get() + " bytes=" + bytes.get();
+  }
+}
@@ -0,0 +1,234 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A long-lived connection to one neighbor, over the router's {@link Transport}. Every packet type (HELLO, LSAUPDATE, CONNECT,
+ * DISCONNECT and weight UPDATE) sent to that neighbor goes through the same channel instead of a
+ * new socket per packet.
+ * <p/>
+ * A request/response handshake must hold the channel's monitor for the whole exchange, e.g.
+ * <pre>
+ *   synchronized (channel) { channel.send(p); reply = channel.receive(); channel.send(p); }
+ * </pre>
+ * so that packets of different exchanges are never interleaved on the wire.
+ * <p/>
+ * Packets sent while handling an inbound packet are {@link #post posted} instead: they are queued
+ * and sent in order by the pool's sender thread, so a packet handler never waits for a handshake
+ * that holds the monitor while the neighbor answers.
+ */
+public class NeighborChannel {
+
+  // a connection unused for this long is checked before it is written to; a peer cannot go
+  // away and come back any faster, and a write right after it went away fails on the next one
+  private static final long PROBE_AFTER_IDLE_MS = 100;
+
+  private final Transport transport;
+  private final RouterMetrics metrics;
+  private final RouterDescription remote;
+  private final int responseTimeoutMs;
+
+  private final Executor sender;
+
+  private Transport.Connection connection;
+  private volatile long lastUsed;
+
+  // the last packet sent, and whether it went out on a connection opened for it
+  private SOSPFPacket lastSent;
+  private boolean sentOnNewConnection;
+
+  // posted packets not sent yet, guarded by itself rather than the channel's monitor
+  private final ArrayDeque<Posted> outbox = new ArrayDeque<Posted>();
+  private boolean draining;
+
+  /**
+   * told on the sending thread when a posted packet could not be sent
+   */
+  interface Failure {
+    void failed(IOException e);
+  }
+
+  private static class Posted {
+    final SOSPFPacket packet;
+    final Failure failure;
+
+    Posted(SOSPFPacket packet, Failure failure) {
+      this.packet = packet;
+      this.failure = failure;
+    }
+  }
+
+  NeighborChannel(Transport transport, RouterMetrics metrics, RouterDescription remote, int responseTimeoutMs, Executor sender) {
+    this.transport = transport;
+    this.metrics = metrics;
+    this.remote = remote;
+    this.responseTimeoutMs = responseTimeoutMs;
+    this.sender = sender;
+    this.lastUsed = System.currentTimeMillis();
+  }
+
+  RouterDescription getRemote() {
+    return remote;
+  }
+
+  /**
+   * true if this channel points to the same process ip and port as the given router
+   */
+  boolean isFor(RouterDescription r) {
+    return remote.processIPAddress.equals(r.processIPAddress) && remote.processPortNumber == r.processPortNumber;
+  }
+
+  private void open() throws IOException {
+    try {
+      connection = transport.connect(remote);
+    } catch (IOException e) {
+      metrics.connectionFailed();
+      throw e;
+    }
+  }
+
+  private void write(SOSPFPacket packet) throws IOException {
+    connection.send(packet);
+    metrics.sent(packet.sospfType);
+  }
+
+  /**
+   * sends a packet, opening the connection first if needed; if the connection was already open
+   * and turns out to be broken, it is re-established and the packet is sent once more
+   * <p/>
+   * A write to a peer that went away usually succeeds locally, so a connection that was idle is
+   * checked first and replaced if the peer closed it, rather than losing the packet.
+   */
+  synchronized void send(SOSPFPacket packet) throws IOException {
+    long now = System.currentTimeMillis();
+    if (connection != null && now - lastUsed >= PROBE_AFTER_IDLE_MS && connection.isBroken()) {
+      close();
+    }
+    lastUsed = now;
+    lastSent = packet;
+    sentOnNewConnection = (connection == null);
+    if (connection == null) {
+      open();
+      write(packet);
+      return;
+    }
+    try {
+      write(packet);
+    } catch (IOException e) {
+      close();
+      open();
+      sentOnNewConnection = true;
+      write(packet);
+    }
+  }
+
+  /**
+   * queues a packet to be sent after every packet posted before it, and returns right away
+   *
+   * @param failure told if the packet could not be sent, may be null
+   */
+  void post(SOSPFPacket packet, Failure failure) {
+    synchronized (outbox) {
+      outbox.add(new Posted(packet, failure));
+      if (draining) {
+        return;
+      }
+      draining = true;
+    }
+    try {
+      sender.execute(new Runnable() {
+        public void run() {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the router is quitting, what was posted since is dropped
+      synchronized (outbox) {
+        outbox.clear();
+        draining = false;
+      }
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Posted posted;
+      synchronized (outbox) {
+        posted = outbox.poll();
+        if (posted == null) {
+          draining = false;
+          return;
+        }
+      }
+      try {
+        send(posted.packet);
+      } catch (IOException e) {
+        if (posted.failure != null) {
+          posted.failure.failed(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * blocks until the neighbor answers on this channel, or the response timeout elapses
+   * <p/>
+   * If the connection ends or fails instead, and the request went out on a connection that was
+   * already open, the peer may have gone away since: the connection is re-established, the
+   * request sent once more and the answer awaited on the new connection.
+   */
+  synchronized SOSPFPacket receive() throws IOException {
+    if (connection == null) {
+      throw new IOException("channel to " + remote.simulatedIPAddress + " is not connected");
+    }
+    lastUsed = System.currentTimeMillis();
+    try {
+      return connection.receive(responseTimeoutMs);
+    } catch (InterruptedIOException e) {
+      // no answer in time, a peer that is gone would have ended the stream instead
+      close();
+      throw e;
+    } catch (IOException e) {
+      // the stream is unusable once a read has failed half-way; this includes the neighbor
+      // rejecting the exchange, which it does by hanging up
+      close();
+      if (sentOnNewConnection || lastSent == null) {
+        throw e;
+      }
+    }
+    open();
+    sentOnNewConnection = true;
+    write(lastSent);
+    try {
+      return connection.receive(responseTimeoutMs);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * closes the connection if nothing was sent or received for the given time
+   */
+  synchronized boolean closeIfIdle(long now, long idleTimeoutMs) {
+    if (connection != null && now - lastUsed >= idleTimeoutMs) {
+      close();
+      return true;
+    }
+    return false;
+  }
+
+  synchronized void close() {
+    if (connection == null) {
+      return;
+    }
+    connection.close();
+    connection = null;
+  }
+}
@@ -0,0 +1,261 @@
+package socs.network.node;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+import socs.network.util.MismatchedLinkException;
+
+/**
+ * Selector based alternative to {@link ServerSimulator}. Accepted connections are spread over a
+ * small fixed set of event-loop threads, each multiplexing its connections on one
+ * {@link Selector} with non-blocking reads. Incoming bytes are cut into frames using the length
+ * prefix of the wire format and every decoded packet is passed to the router's
+ * {@link PacketHandler}, so it handles exactly the same packets as {@link ServerRequestReceiver}.
+ * <p/>
+ * An event loop only ever waits in its selector: replies that do not fit into the socket buffer
+ * are queued until it is writable, and the handler posts whatever it sends to other neighbors to
+ * their channels, so a neighbor that is slow to answer never holds up the reads of the other
+ * connections.
+ */
+public class NioServerEngine implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(NioServerEngine.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private Router router;
+    private short port;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+
+    /**
+     * binds the port and opens a selector for every event loop
+     *
+     * @throws IOException if the port cannot be bound or a selector cannot be opened; nothing
+     *                     is left open then
+     */
+    public NioServerEngine(Router r, short p, int eventLoops) throws IOException {
+        router = r;
+        port = p;
+        loops = new EventLoop[Math.max(1, eventLoops)];
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new IOException("nio server setup failed on port " + port + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.selector.close();
+                }
+            }
+        } catch (IOException ignored) {
+            // the setup already failed, that is what gets reported
+        }
+    }
+
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread loop = new Thread(loops[i], "nio-event-loop-" + i);
+            loop.start();
+        }
+
+        // accept on this thread and hand every connection to the next event loop, round robin
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                log.error("nio accept failed port={} error={}", port, e.toString());
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(IDLE_CHECK_INTERVAL_MS);
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (MismatchedLinkException e) {
+                            // closing the connection tells the client its request was rejected
+                            log.warn("request rejected reason={}", e.getMessage());
+                            connection.close();
+                        } catch (IOException e) {
+                            // connection closed by the client or unreadable frame
+                            connection.close();
+                        }
+                    }
+
+                    closeIdle();
+                } catch (IOException e) {
+                    log.error("nio event loop failed error={}", e.toString());
+                }
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            }
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_INTERVAL_MS) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && now - connection.lastRead >= router.inboundIdleTimeoutMs) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one accepted connection: the partially received frame and replies that did not
+     * fit into the socket buffer yet. Only ever touched by the event loop that owns it.
+     */
+    private class Connection extends PacketHandler.Session {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private long lastRead = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException, MismatchedLinkException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            lastRead = System.currentTimeMillis();
+
+            // decode every complete frame in the buffer
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                PacketCodec.checkLength(length);
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                ByteBuffer frame = in.duplicate();
+                frame.position(in.position() + 4);
+                frame.limit(in.position() + 4 + length);
+                in.position(in.position() + 4 + length);
+
+                SOSPFPacket packet = PacketCodec.decode(frame);
+                router.packetHandler.handle(this, packet);
+                if (!channel.isOpen()) {
+                    return;
+                }
+            }
+
+            // keep the incomplete frame, growing the buffer if the frame does not fit
+            if (in.remaining() >= 4 && 4 + in.getInt(in.position()) > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(in.position()));
+                bigger.put(in);
+                in = bigger;
+            } else {
+                in.compact();
+            }
+        }
+
+        void reply(SOSPFPacket packet) throws IOException {
+            ByteBuffer frame = ByteBuffer.wrap(PacketCodec.encode(packet));
+            if (out.isEmpty()) {
+                channel.write(frame);
+            }
+            if (frame.hasRemaining()) {
+                out.add(frame);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer frame = out.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package socs.network.node;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.message.LSADelta;
+import socs.network.message.LinkDescription;
+import socs.network.message.SOSPFPacket;
+import socs.network.util.MismatchedLinkException;
+
+/**
+ * Server side of the protocol: reacts to every packet a neighbor sends on an inbound connection.
+ * It does not do any I/O of its own, so the same logic is used by the thread-per-connection
+ * {@link ServerRequestReceiver} and by the selector based {@link NioServerEngine}. Nor does it
+ * wait for any other router: what it sends to neighbors other than through the session is
+ * {@link NeighborChannel#post posted} to their channels.
+ */
+public class PacketHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(PacketHandler.class);
+
+    /**
+     * One inbound connection as seen by the handler. Besides a way to answer the sender, it
+     * remembers a HELLO or CONNECT handshake that is waiting for the sender's second packet.
+     */
+    public static abstract class Session {
+
+        private Link handshakeLink;
+        private short handshakeType = -1;
+
+        /**
+         * sends a packet back to the router on the other end of this connection
+         */
+        abstract void reply(SOSPFPacket packet) throws IOException;
+    }
+
+    private Router router;
+
+    public PacketHandler(Router r) {
+        router = r;
+    }
+
+    private void reply(Session session, SOSPFPacket packet) throws IOException {
+        session.reply(packet);
+        router.metrics.sent(packet.sospfType);
+    }
+
+    /**
+     * handles one packet received on the given session
+     *
+     * @throws MismatchedLinkException if the request cannot be accepted; the caller closes the
+     *                                 connection, which tells the sender it was rejected
+     */
+    void handle(Session session, SOSPFPacket packetReceived) throws IOException, MismatchedLinkException {
+        router.metrics.received(packetReceived.sospfType);
+        if (log.isDebugEnabled()) {
+            log.debug("packet received neighbor={} type={}", packetReceived.srcIP, RouterMetrics.typeName(packetReceived.sospfType));
+        }
+        // any packet shows the sender is alive
+        router.keepalive.heard(packetReceived.srcIP);
+
+        // second packet of a HELLO or CONNECT handshake started on this connection
+        if (session.handshakeType != -1) {
+            Link link = session.handshakeLink;
+            short type = session.handshakeType;
+            session.handshakeLink = null;
+            session.handshakeType = -1;
+            if (packetReceived.sospfType == type) {
+                // second HELLO or CONNECT received, set status to TWO_WAY
+                link.router2.status = RouterStatus.TWO_WAY;
+                link.router1.status = RouterStatus.TWO_WAY;
+                log.info("{} received neighbor={} state=TWO_WAY", (type == 0) ? "hello" : "connect", packetReceived.srcIP);
+                // describe our database so the neighbor can request what it misses, and announce
+                // the new link in our own LSA
+                router.exchange.start(link);
+                router.broadcastLSAUPDATE();
+                router.keepalive.up(link);
+                return;
+            }
+        }
+
+        if (packetReceived.sospfType == 0) {
+            handleHello(session, packetReceived);
+        // FOR LSD SYNCHRONIZATION/BROADCAST
+        } else if (packetReceived.sospfType == 1) {
+            handleLSAUpdate(packetReceived);
+        // FOR PROCESS CONNECT
+        } else if (packetReceived.sospfType == 2) {
+            handleConnect(session, packetReceived);
+        // FOR PROCESS DISCONNECT
+        } else if (packetReceived.sospfType == 3) {
+            handleDisconnect(session, packetReceived);
+        // FOR UPDATE WEIGHT
+        } else if (packetReceived.sospfType == 4) {
+            handleUpdateWeight(session, packetReceived);
+        // FOR DATABASE SYNCHRONIZATION ON A NEW ADJACENCY
+        } else if (packetReceived.sospfType == 5) {
+            router.exchange.onDescription(packetReceived);
+        } else if (packetReceived.sospfType == 6) {
+            router.exchange.onRequest(packetReceived);
+        // FOR LSAs FLOODED AS DELTAS
+        } else if (packetReceived.sospfType == 7) {
+            handleLSADelta(packetReceived);
+        // FOR KEEPALIVE, nothing to do beyond noting the sender is alive
+        } else if (packetReceived.sospfType == 8) {
+            return;
+        }
+    }
+
+    /**
+     * finds the link to the sender and sets it to INIT, attaching the sender to a free port if it
+     * is not linked yet
+     */
+    private Link initLink(SOSPFPacket packetReceived) throws MismatchedLinkException {
+        // Change the status of the link to INIT
+        Link link = router.ports.find(packetReceived.srcIP);
+        if (link == null) {
+            RouterDescription r2 = new RouterDescription(packetReceived.srcProcessIP, packetReceived.srcProcessPort, packetReceived.srcIP);
+            int port = router.ports.attach(new Link(router.rd, r2, packetReceived.weight));
+            // the sender may have been attached by another connection in the meantime
+            link = (port == -1) ? router.ports.find(packetReceived.srcIP) : router.ports.get(port);
+            if (link == null) {
+                throw new MismatchedLinkException("No more free ports for " + packetReceived.srcIP);
+            }
+        }
+        link.router2.status = RouterStatus.INIT;
+        link.router1.status = RouterStatus.INIT;
+        log.info("{} received neighbor={} state=INIT", RouterMetrics.typeName(packetReceived.sospfType).toLowerCase(), packetReceived.srcIP);
+        return link;
+    }
+
+    private SOSPFPacket createResponse(Link link, short type, SOSPFPacket packetReceived) {
+        return new SOSPFPacket(
+            router.rd.processIPAddress,
+            router.rd.processPortNumber,
+            router.rd.simulatedIPAddress,
+            link.router2.simulatedIPAddress,
+            type,
+            router.rd.simulatedIPAddress,
+            packetReceived.srcIP
+        );
+    }
+
+    private void handleHello(Session session, SOSPFPacket packetReceived) throws IOException, MismatchedLinkException {
+        Link link = initLink(packetReceived);
+        // a new adjacency starts without any of our LSAs
+        router.flooding.forget(packetReceived.srcIP);
+
+        // Otherwise, create HELLO packet to set for TWO_WAY and send it back to the client
+        reply(session, createResponse(link, (short) 0, packetReceived));
+
+        // Wait for the second HELLO packet from client
+        session.handshakeLink = link;
+        session.handshakeType = 0;
+    }
+
+    private void handleLSAUpdate(SOSPFPacket packetReceived) {
+        boolean reoriginate = false;
+        // an update may carry several LSAs batched by the sender, take them in order
+        for (LSA received : packetReceived.lsaArray) {
+            reoriginate |= handleLSA(received, packetReceived.srcIP);
+        }
+
+        // re-originate our LSA from the ports, at most once per received update
+        if (reoriginate) {
+            router.broadcastLSAUPDATE();
+        }
+    }
+
+    private void handleLSADelta(SOSPFPacket packetReceived) {
+        boolean reoriginate = false;
+        for (LSADelta delta : packetReceived.deltaArray) {
+            // rebuilt from the LSA we hold, null if it is a duplicate or we lack the base
+            LSA received = router.flooding.expand(delta, packetReceived.srcIP);
+            if (received != null) {
+                reoriginate |= handleLSA(received, packetReceived.srcIP);
+            }
+        }
+
+        if (reoriginate) {
+            router.broadcastLSAUPDATE();
+        }
+    }
+
+    /**
+     * installs and floods one received LSA
+     *
+     * @return true if our own LSA must be re-originated because of it
+     */
+    private boolean handleLSA(LSA received, String fromIP) {
+        // duplicates and outdated LSAs stop here
+        if (!router.flooding.receive(received, fromIP)) {
+            log.debug("lsa stale origin={} seq={} neighbor={}", received.linkStateID, received.lsaSeqNumber, fromIP);
+            return false;
+        }
+        log.debug("lsa installed origin={} seq={} neighbor={}", received.linkStateID, received.lsaSeqNumber, fromIP);
+
+        // if the origin is linked to us, take over the weight it announces for the link
+        boolean weightChanged = false;
+        Link link = router.ports.find(received.linkStateID);
+        if (link != null) {
+            for (LinkDescription l : received.links) {
+                // old weight => need to update
+                if (router.rd.simulatedIPAddress.equals(l.linkID) && l.tosMetrics > -1 && l.tosMetrics != link.weight) {
+                    router.ports.setWeight(link, l.tosMetrics);
+                    weightChanged = true;
+                }
+            }
+        }
+
+        // forward the LSA once to every other neighbor; a new router learns about us from the
+        // database exchange with its neighbors, so there is no need to re-originate for it
+        router.flooding.flood(received, fromIP);
+        return weightChanged;
+    }
+
+    private void handleConnect(Session session, SOSPFPacket packetReceived) throws IOException, MismatchedLinkException {
+        Link link = initLink(packetReceived);
+        router.flooding.forget(packetReceived.srcIP);
+
+        // Otherwise, create CONNECT packet to set for TWO_WAY and send it back to the client
+        reply(session, createResponse(link, (short) 2, packetReceived));
+
+        // Wait for the second CONNECT packet from client
+        session.handshakeLink = link;
+        session.handshakeType = 2;
+    }
+
+    private void handleDisconnect(Session session, SOSPFPacket packetReceived) throws IOException, MismatchedLinkException {
+        // check for link
+        int port = router.ports.portOf(packetReceived.srcIP);
+        Link link = router.ports.get(port);
+        if (link == null) {
+            // If there are no links (i.e. ports array empty or no matchin simulatedIPAddress), throw exception
+            throw new MismatchedLinkException("packet received from " + packetReceived.srcIP + " is not linked to this router. No further actions.");
+        }
+
+        //send the response to the source so it can update it's link state database
+        reply(session, createResponse(link, (short) 3, packetReceived));
+
+        //proceed to update link state database
+        router.ports.remove(port);
+        router.keepalive.down(packetReceived.srcIP);
+        router.channels.remove(packetReceived.srcIP);
+        router.flooding.forget(packetReceived.srcIP);
+        log.info("disconnect received neighbor={} port={}", packetReceived.srcIP, port);
+        router.broadcastLSAUPDATE();
+    }
+
+    private void handleUpdateWeight(Session session, SOSPFPacket packetReceived) throws IOException, MismatchedLinkException {
+        Link link = initLink(packetReceived);
+        // take the new weight now rather than waiting for the sender's LSA, so a pending LSA of
+        // ours cannot announce the old weight back to it
+        if (link.weight != packetReceived.weight) {
+            router.ports.setWeight(link, packetReceived.weight);
+            router.broadcastLSAUPDATE();
+        }
+
+        // Otherwise, create UPDATE packet to set for TWO_WAY and send it back to the client
+        reply(session, createResponse(link, (short) 4, packetReceived));
+
+        // The client does not answer an UPDATE a second time; the reply completes the
+        // exchange, so set status to TWO_WAY right away
+        link.router2.status = RouterStatus.TWO_WAY;
+        link.router1.status = RouterStatus.TWO_WAY;
+        log.info("update received neighbor={} weight={} state=TWO_WAY", packetReceived.srcIP, link.weight);
+    }
+}
@@ -0,0 +1,193 @@
+package socs.network.node;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The links of a router, each attached at a port number, looked up in constant time either by
+ * port or by the simulated ip of the router at the other end.
+ * <p/>
+ * A new link takes the lowest free port, so port numbers stay as small as the number of links
+ * allows, and the table grows as links are attached up to the maximum degree. Lookups and
+ * iteration read an immutable array that every attach, replace or remove swaps for an updated
+ * copy; links change rarely compared to how often they are looked up, and no reader ever needs
+ * a lock.
+ */
+public class PortTable implements Iterable<Link> {
+
+  private final int maxDegree;
+
+  // port => link, null where the port is free; replaced as a whole on every change
+  private volatile Link[] slots;
+
+  // neighbor simulated ip => port
+  private final ConcurrentHashMap<String, Integer> byIP = new ConcurrentHashMap<String, Integer>();
+
+  // ports in use, guarded by this
+  private final BitSet used = new BitSet();
+
+  // records every change, null if there is no journal
+  Journal journal;
+
+  public PortTable(int maxDegree) {
+    this.maxDegree = Math.max(1, maxDegree);
+    this.slots = new Link[Math.min(this.maxDegree, 4)];
+  }
+
+  /**
+   * the link at the port, null if the port is free or out of range
+   */
+  public Link get(int port) {
+    Link[] s = slots;
+    return (port >= 0 && port < s.length) ? s[port] : null;
+  }
+
+  /**
+   * the link to the router with the given simulated ip, null if there is none
+   */
+  public Link find(String simulatedIP) {
+    Integer port = byIP.get(simulatedIP);
+    return (port == null) ? null : get(port);
+  }
+
+  /**
+   * the port of the link to the router with the given simulated ip, -1 if there is none
+   */
+  public int portOf(String simulatedIP) {
+    Integer port = byIP.get(simulatedIP);
+    return (port == null) ? -1 : port;
+  }
+
+  /**
+   * attaches the link at the lowest free port
+   *
+   * @return the port, or -1 if the router already has the maximum number of links or a link to
+   * the same router
+   */
+  public synchronized int attach(Link link) {
+    String ip = link.router2.simulatedIPAddress;
+    int port = used.nextClearBit(0);
+    if (port >= maxDegree || byIP.containsKey(ip)) {
+      return -1;
+    }
+    Link[] s = slots;
+    // grow by doubling, up to the maximum degree
+    Link[] updated = (port < s.length) ? s.clone()
+        : Arrays.copyOf(s, Math.min(maxDegree, Math.max(port + 1, 2 * s.length)));
+    updated[port] = link;
+    used.set(port);
+    slots = updated;
+    byIP.put(ip, port);
+    if (journal != null) {
+      journal.portSet(port, link);
+    }
+    return port;
+  }
+
+  /**
+   * puts a new link to the same router in place of the one at the port
+   */
+  public synchronized void replace(int port, Link link) {
+    Link old = get(port);
+    if (old == null || !old.router2.simulatedIPAddress.equals(link.router2.simulatedIPAddress)) {
+      throw new IllegalArgumentException("port " + port + " is not linked to " + link.router2.simulatedIPAddress);
+    }
+    Link[] updated = slots.clone();
+    updated[port] = link;
+    slots = updated;
+    if (journal != null) {
+      journal.portSet(port, link);
+    }
+  }
+
+  /**
+   * changes the weight of an attached link in place
+   */
+  public synchronized void setWeight(Link link, int weight) {
+    link.weight = weight;
+    int port = portOf(link.router2.simulatedIPAddress);
+    if (journal != null && get(port) == link) {
+      journal.portSet(port, link);
+    }
+  }
+
+  /**
+   * frees the port
+   *
+   * @return the link that was attached at it, null if it was free
+   */
+  public synchronized Link remove(int port) {
+    Link old = get(port);
+    if (old == null) {
+      return null;
+    }
+    Link[] updated = slots.clone();
+    updated[port] = null;
+    used.clear(port);
+    byIP.remove(old.router2.simulatedIPAddress);
+    slots = updated;
+    if (journal != null) {
+      journal.portCleared(port);
+    }
+    return old;
+  }
+
+  /**
+   * number of links attached
+   */
+  public synchronized int size() {
+    return used.cardinality();
+  }
+
+  public boolean isEmpty() {
+    return byIP.isEmpty();
+  }
+
+  /**
+   * one past the highest port that may be in use, to walk the ports in order
+   */
+  public int limit() {
+    return slots.length;
+  }
+
+  public int maxDegree() {
+    return maxDegree;
+  }
+
+  /**
+   * the attached links in port order, as they were when iteration started
+   */
+  public Iterator<Link> iterator() {
+    final Link[] s = slots;
+    return new Iterator<Link>() {
+      private int next = advance(0);
+
+      private int advance(int from) {
+        while (from < s.length && s[from] == null) {
+          from++;
+        }
+        return from;
+      }
+
+      public boolean hasNext() {
+        return next < s.length;
+      }
+
+      public Link next() {
+        if (next >= s.length) {
+          throw new NoSuchElementException();
+        }
+        Link link = s[next];
+        next = advance(next + 1);
+        return link;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
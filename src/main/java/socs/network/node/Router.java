@@ -1,38 +1,244 @@
 package socs.network.node;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import socs.network.message.LSA;
 import socs.network.message.LinkDescription;
 import socs.network.message.SOSPFPacket;
 import socs.network.util.Configuration;
 import socs.network.util.MismatchedLinkException;
+import socs.network.util.Throttle;
+import socs.network.util.TimerWheel;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Router {
 
+  private static final Logger log = LoggerFactory.getLogger(Router.class);
+
   protected LinkStateDatabase lsd;
   protected boolean started;
 
   RouterDescription rd = new RouterDescription();
 
-  //assuming that all routers are with 4 ports
-  Link[] ports = new Link[4];
+  // links to the neighbors by port number and by simulated ip, up to the configured degree
+  PortTable ports;
 
-  public Router(Configuration config) {
+  // carries the packets to and from the neighbors
+  Transport transport;
+
+  // persistent connections to the neighbors, shared by every packet type
+  ChannelPool channels;
+
+  // idle time after which the server side drops an inbound connection; kept above the client
+  // side idle timeout so the sender is always the one that closes a channel
+  int inboundIdleTimeoutMs;
+
+  // server side of the protocol, shared by all inbound connections
+  PacketHandler packetHandler = new PacketHandler(this);
+
+  // sends every LSA once to each neighbor that does not have it yet
+  FloodingEngine flooding;
+
+  // synchronizes the database with a neighbor when the adjacency comes up
+  DatabaseExchange exchange = new DatabaseExchange(this);
+
+  // picks the thread serving each inbound connection of the blocking server engine
+  DispatchStrategy dispatch;
+
+  // runs the hold-down timers below
+  ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "router-timers");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // coalesces bursts of link changes into one origination of our LSA
+  Throttle lsaThrottle;
+
+  // runs the per-neighbor keepalive and dead timers
+  TimerWheel wheel = new TimerWheel("timer-wheel", 100, 512);
+
+  // sends KEEPALIVEs to the neighbors and removes those that went silent
+  Keepalive keepalive;
+
+  // packet counts, LSA installs, SPF and handshake times, shown by the stats command
+  RouterMetrics metrics = new RouterMetrics();
+
+  // keeps a copy of the database on disk for a warm restart, null if not configured
+  SnapshotFile snapshotFile;
+
+  // records every LSA installed and every port change, null if not configured
+  Journal journal;
+
+  // the start command gives up on neighbors that did not complete the HELLO handshake by then
+  long startDeadlineMs;
+
+  private static final int MAX_PARALLEL_HELLOS = 32;
+
+  /**
+   * @param transport how to reach the neighbors, null for the one named in the conf
+   */
+  public Router(Configuration config, Transport transport) {
     rd.simulatedIPAddress = config.getString("socs.network.router.ip");
     rd.processPortNumber = config.getShort("socs.network.router.portNumber");
     rd.processIPAddress = "127.0.0.1";
     started = false;
+    ports = new PortTable(config.getInt("socs.network.router.maxDegree", 4));
 
     // Start LSD
     lsd = new LinkStateDatabase(rd);
+    lsd.metrics = metrics;
+    metrics.register(rd.simulatedIPAddress);
+    openSnapshot(config.getString("socs.network.router.snapshotFile", ""),
+            config.getLong("socs.network.router.snapshotIntervalMs", 5000));
+    openJournal(config.getString("socs.network.router.journalDir", ""),
+            config.getLong("socs.network.router.journalSegmentBytes", 4L << 20),
+            config.getInt("socs.network.router.journalMaxSegments", 8),
+            config.getLong("socs.network.router.journalGroupCommitMs", 5));
+
+    // Start neighbor connection pool
+    int idleTimeoutMs = config.getInt("socs.network.router.channelIdleTimeoutMs", 30000);
+    int responseTimeoutMs = config.getInt("socs.network.router.responseTimeoutMs", 5000);
+    this.transport = (transport != null) ? transport : createTransport(config);
+    channels = new ChannelPool(this.transport, metrics, idleTimeoutMs, responseTimeoutMs);
+    inboundIdleTimeoutMs = 2 * idleTimeoutMs;
+    startDeadlineMs = config.getLong("socs.network.router.startDeadlineMs", 2L * responseTimeoutMs);
+    keepalive = new Keepalive(this, wheel,
+            config.getLong("socs.network.router.helloIntervalMs", 10000),
+            config.getLong("socs.network.router.deadIntervalMs", 40000));
+
+    // Start hold-down timers for our LSA and for SPF runs
+    lsaThrottle = new Throttle(timers, 0,
+            config.getLong("socs.network.router.lsaMinIntervalMs", 100),
+            config.getLong("socs.network.router.lsaMaxWaitMs", 5000),
+            new Runnable() {
+              public void run() {
+                originateLSA();
+              }
+            });
+    lsd.spfThrottle = new Throttle(timers,
+            config.getLong("socs.network.router.spfInitialDelayMs", 50),
+            config.getLong("socs.network.router.spfHoldMs", 100),
+            config.getLong("socs.network.router.spfMaxWaitMs", 5000),
+            new Runnable() {
+              public void run() {
+                lsd.getRoutingTable();
+              }
+            });
+    metrics.lsaThrottle = lsaThrottle;
+    metrics.spfThrottle = lsd.spfThrottle;
+
+    // Start flooding, batching the LSAs for each neighbor over a short window and, if enabled,
+    // sending only what changed in an LSA to neighbors holding its previous version
+    boolean deltaLSAs = config.getBoolean("socs.network.router.deltaLSAs", false);
+    lsd.trackDeltas = deltaLSAs;
+    flooding = new FloodingEngine(this, config.getInt("socs.network.router.lsaBatchWindowMs", 5),
+            config.getInt("socs.network.router.lsaBatchMax", 64), deltaLSAs);
 
     // Start server side
-    Thread serverSim = new Thread(new ServerSimulator(this, rd.processPortNumber));
-    serverSim.start();
+    try {
+      this.transport.listen(this);
+    } catch (IOException e) {
+      System.out.println(e.toString());
+    }
+  }
+
+  public Router(Configuration config) {
+    this(config, null);
+  }
+
+  /**
+   * starts recording LSA installs and port changes in the journal directory, if one is
+   * configured; the LSAs loaded from a snapshot are recorded too
+   */
+  private void openJournal(String path, long segmentBytes, int maxSegments, long groupCommitMs) {
+    if (path.isEmpty()) {
+      return;
+    }
+    try {
+      journal = new Journal(new File(path), segmentBytes, maxSegments, groupCommitMs);
+    } catch (IOException e) {
+      log.warn("journal unavailable dir={} error={}", path, e.getMessage());
+      return;
+    }
+    journal.metrics = metrics;
+    for (LSA lsa : lsd.snapshot().lsas.values()) {
+      if (lsa.lsaSeqNumber != Integer.MIN_VALUE) {
+        journal.lsaInstalled(lsa);
+      }
+    }
+    lsd.journal = journal;
+    ports.journal = journal;
+  }
+
+  /**
+   * loads the database from the snapshot file, if one is configured, and writes it back there
+   * at the given interval while it changes
+   */
+  private void openSnapshot(final String path, long intervalMs) {
+    if (path.isEmpty()) {
+      return;
+    }
+    try {
+      final SnapshotFile snapshot = new SnapshotFile(new File(path), lsd);
+      int loaded = snapshot.load();
+      lsd.snapshotFile = snapshot;
+      snapshotFile = snapshot;
+      log.info("snapshot loaded file={} lsas={}", path, loaded);
+      if (intervalMs > 0) {
+        timers.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              snapshot.write();
+            } catch (IOException e) {
+              log.warn("snapshot write failed file={} error={}", path, e.getMessage());
+            }
+          }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+      }
+    } catch (IOException e) {
+      log.warn("snapshot unavailable file={} error={}", path, e.getMessage());
+    }
+  }
+
+  /**
+   * builds the transport named in the router conf: tcp, served either one thread per connection
+   * or by the selector based engine, or memory for routers sharing this JVM
+   */
+  private Transport createTransport(Configuration config) {
+    if (config.getString("socs.network.router.transport", "tcp").equals("memory")) {
+      return new MemoryTransport();
+    }
+    if (config.getString("socs.network.router.serverEngine", "blocking").equals("nio")) {
+      return new TcpTransport(true, config.getInt("socs.network.router.nioEventLoops", 2), null);
+    }
+    String mode = config.getString("socs.network.router.dispatch", "thread");
+    // every neighbor keeps one connection to us open, and with it a thread of a bounded pool
+    int poolSize = config.getInt("socs.network.router.dispatchPoolSize", 16);
+    if (mode.equals("bounded") && poolSize < ports.maxDegree()) {
+      log.warn("dispatch pool raised to the maximum degree poolSize={} maxDegree={}", poolSize, ports.maxDegree());
+      poolSize = ports.maxDegree();
+    }
+    dispatch = DispatchStrategy.create(mode, poolSize,
+            config.getInt("socs.network.router.dispatchQueueCapacity", 64));
+    return new TcpTransport(false, 0, dispatch);
   }
 
   /**
@@ -65,35 +271,22 @@ public class Router {
     }
 
     // case 2: simulatedIP is already attached to a port
-    for ( Link port : ports ) {
-      if ( port != null && port.router2.simulatedIPAddress.equals(simulatedIP) ) {
-        System.err.println("attach denied: already attached to router " + simulatedIP);
-        return;
-      }
-    }
-
-    int freePort = -1;
-    for ( int i = 0; i < 4; i++ ) {
-      if ( ports[i] == null ) {
-        freePort = i;
-        break;
-      }
-    }
-    
-    // case 3: no free ports
-    if ( freePort == -1 ) { 
-      System.err.println("attach denied: no ports available");
+    if ( ports.find(simulatedIP) != null ) {
+      System.err.println("attach denied: already attached to router " + simulatedIP);
       return;
-    } 
+    }
 
-    // case 4: port number out of range (0 and 65535)
+    // case 3: port number out of range (0 and 65535)
     if ( processPort < 0 || processPort > 65535 ) {
       System.err.println("attach denied: invalid port number");
       return;
     }
 
-    // case 5: processIP <-> simulatedIP attached
-    ports[freePort] = new Link(rd, remote, weight);
+    // case 4: no free ports, otherwise processIP <-> simulatedIP attached
+    if ( ports.attach(new Link(rd, remote, weight)) == -1 ) {
+      System.err.println("attach denied: no ports available");
+      return;
+    }
     System.out.println("attach accepted");
   }
 
@@ -112,7 +305,7 @@ public class Router {
     );
     return p;
   }
-  private SOSPFPacket createLSAPacket(Link link, short pType, LSA lsa) {
+  SOSPFPacket createLSAPacket(Link link, short pType, Vector<LSA> lsaArray) {
     SOSPFPacket p = new SOSPFPacket(
       rd.processIPAddress,
       rd.processPortNumber,
@@ -121,7 +314,7 @@ public class Router {
       pType,
       rd.simulatedIPAddress,
       rd.simulatedIPAddress,
-      lsa
+      lsaArray
     );
     return p;
   }
@@ -140,179 +333,170 @@ public class Router {
   }
 
   /*
-   * updates the current LSD: creates new LSAs, forwards received LSAs
+   * updates the current LSD: asks for a new LSA of this router to be created from its ports and
+   * flooded; requests made in quick succession are coalesced by lsaThrottle
    */
-  void broadcastLSAUPDATE(SOSPFPacket toForward) {
-    if ( toForward == null ) {
-      // make new LSA
-      LSA L = new LSA();
-      L.linkStateID = this.rd.simulatedIPAddress;
-
-      //init seqNumber to 0
-      if (lsd._store.get(this.rd.simulatedIPAddress).lsaSeqNumber == Integer.MIN_VALUE) {
-          L.lsaSeqNumber = 0;
-      //else increment seqNumber
-      } else {
-          int seq = lsd._store.get(this.rd.simulatedIPAddress).lsaSeqNumber;
-          L.lsaSeqNumber = seq + 1;
-      }
-
-      // get links from ports array to initialize the linkedlist of LSA
-      LinkedList<LinkDescription> tempLinks = new LinkedList<LinkDescription>();
-      for (int i=0; i<ports.length; i++) {
-        if (ports[i] != null && ports[i].router2.status != null) {
-          // create new LinkDescription to add to links
-          LinkDescription description = new LinkDescription();
-          description.linkID = ports[i].router2.simulatedIPAddress;
-          description.portNum = ports[i].router2.processPortNumber;
-          description.tosMetrics = ports[i].weight;
-          tempLinks.add(description);
-        }
-        L.links = tempLinks;
-      }
+  void broadcastLSAUPDATE() {
+    lsaThrottle.request();
+  }
 
-      // update LSD
-      lsd._store.put(L.linkStateID, L);
-
-      // send LSAUPDATE to all neighbors
-      for (int i = 0; i < ports.length; i++) {
-        if (ports[i] != null) {
-          try {
-            Socket client = new Socket(ports[i].router2.processIPAddress, ports[i].router2.processPortNumber);
-            ObjectOutputStream outToServer = new ObjectOutputStream(client.getOutputStream());
-            SOSPFPacket LSAUPDATE = createLSAPacket(ports[i], (short) 1, L);
-            outToServer.writeObject(LSAUPDATE);
-
-            //clean
-            client.close();
-            outToServer.close();
-          } catch (UnknownHostException e) {
-            System.err.println("Error: Socket could not be created. IP address of host could not be found.");
-            return;
-          } catch (IOException e) {
-            System.err.println("Error: I/O error occured during socket creation. Stream headers could not be written.");
-            return;
-          } 
-        }
-      }
-    } else {
-      // forward packet to all neighbors
-      for (int i = 0; i < ports.length; i++) {
-        if (ports[i] != null) {
-          try {
-            Socket client = new Socket(ports[i].router2.processIPAddress, ports[i].router2.processPortNumber);
-            ObjectOutputStream outToServer = new ObjectOutputStream(client.getOutputStream());
-            outToServer.writeObject(toForward);
-
-            //clean
-            client.close();
-            outToServer.close();
-          } catch (UnknownHostException e) {
-            System.err.println("Error: Socket could not be create. IP address of host could not be found.");
-            return;
-          } catch (IOException e) {
-            System.err.println("Error: I/O error occured during socket creation. Stream headers could not be written.");
-            return;
-          } 
-        }
+  /*
+   * creates a new LSA of this router from its ports and floods it
+   */
+  private void originateLSA() {
+    // get links from ports array to initialize the linkedlist of LSA
+    LinkedList<LinkDescription> tempLinks = new LinkedList<LinkDescription>();
+    for (Link port : ports) {
+      if (port.router2.status != null) {
+        // create new LinkDescription to add to links
+        LinkDescription description = new LinkDescription();
+        description.linkID = port.router2.simulatedIPAddress;
+        description.portNum = port.router2.processPortNumber;
+        description.tosMetrics = port.weight;
+        tempLinks.add(description);
       }
     }
+
+    // make new LSA with the next sequence number and update LSD
+    LSA L = lsd.originate(tempLinks);
+
+    // send LSAUPDATE to all neighbors
+    flooding.flood(L, null);
   }
 
   /**
    * broadcast Hello to neighbors
+   * <p/>
+   * The handshakes with all neighbors run at the same time and must finish within the start
+   * deadline; once they are done, our LSA is originated once for all the new adjacencies. A
+   * handshake given up on may still complete afterwards (a blocked socket read is not
+   * interrupted), and then originates our LSA itself. Each handshake logs its own outcome, only
+   * the number of TWO_WAY neighbors is printed.
    */
   private void processStart() throws MismatchedLinkException {
-    Socket client;
-    SOSPFPacket clientPacket;
-    SOSPFPacket serverPacket = null;
-    ObjectOutputStream outToServer;
-    ObjectInputStream inFromServer;
-    boolean isEmpty = true;
-
     started = true;
 
     // Ensure there exists a connection for this router
-    for (Link p : ports) {
-      if (p != null) {
-        isEmpty = false;
-        break;
-      }
-    }
-    if (isEmpty) {
+    if (ports.isEmpty()) {
       System.err.println("Process has started but no links are connected to this router " + rd.simulatedIPAddress + ".");
-    } 
+      return;
+    }
 
     // Send HELLO to every connected router
-    for (int i=0; i<ports.length; i++) {
-      
-      // Check that the ports element is not empty, otherwise skip to next array element
-      if (ports[i] == null) {
-        continue;
+    Vector<Link> links = new Vector<Link>();
+    Vector<Callable<Void>> handshakes = new Vector<Callable<Void>>();
+    // set once the handshakes are counted; one that completes later is not among them
+    final AtomicBoolean counted = new AtomicBoolean();
+    for (final Link port : ports) {
+      links.add(port);
+      handshakes.add(new Callable<Void>() {
+        public Void call() throws IOException {
+          hello(port, counted);
+          return null;
+        }
+      });
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(links.size(), MAX_PARALLEL_HELLOS), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "hello");
+        t.setDaemon(true);
+        return t;
       }
+    });
+    List<Future<Void>> results;
+    try {
+      results = pool.invokeAll(handshakes, startDeadlineMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } finally {
+      pool.shutdown();
+    }
+    counted.set(true);
 
-      String serverName = ports[i].router2.processIPAddress;
-      short port = ports[i].router2.processPortNumber;
-      
+    // one line per neighbor, in port order
+    int up = 0;
+    int timedOut = 0;
+    for (int i = 0; i < links.size(); i++) {
+      String neighbor = links.get(i).router2.simulatedIPAddress;
       try {
-        // initialize the HELLO packet to broadcast to neighbors
-        clientPacket = createPacket(ports[i], (short) 0);
-        
-        // send packet to server and wait for response
-        client = new Socket(serverName, port);
-
-        outToServer = new ObjectOutputStream(client.getOutputStream());
-        outToServer.writeObject(clientPacket);
-
-        inFromServer = new ObjectInputStream(client.getInputStream());
-        try {
-          serverPacket = (SOSPFPacket) inFromServer.readObject();
-        } catch (ClassNotFoundException e) {
-          System.err.println("Packet received is not correct or cannot be used.");
-          client.close();
-          outToServer.close();
-          inFromServer.close();
-          return;
-        } catch (ClassCastException e) {
-          System.err.println("Unexpected packet type.");
-          client.close();
-          outToServer.close();
-          inFromServer.close();
-          return;
-        }
+        results.get(i).get();
+        up++;
+        System.out.println("HELLO to " + neighbor + ": ok");
+      } catch (CancellationException e) {
+        timedOut++;
+        log.warn("hello timed out neighbor={} deadlineMs={}", neighbor, startDeadlineMs);
+        System.out.println("HELLO to " + neighbor + ": timed out after " + startDeadlineMs + "ms");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        String reason = (cause.getMessage() != null) ? cause.getMessage() : cause.toString();
+        log.warn("hello failed neighbor={} error={}", neighbor, reason);
+        System.out.println("HELLO to " + neighbor + ": failed: " + reason);
+      }
+    }
+    System.out.println(up + " of " + links.size() + " neighbors are TWO_WAY.");
 
-        // Check that response is a HELLO
-        if (serverPacket != null && serverPacket.sospfType == 0) {
-          System.out.println("received HELLO from " + serverPacket.srcIP + ";");
-          // If HELLO received, set status of R2 as TWO_WAY
-          ports[i].router2.status = RouterStatus.TWO_WAY;
-          System.out.println("set " + serverName + " STATE to TWO_WAY");
+    //broadcast LSAUPDATE to neighbors, once for all of them; a handshake that timed out may have
+    // reached TWO_WAY just before being counted, without originating our LSA itself
+    if (up > 0 || timedOut > 0) {
+      broadcastLSAUPDATE();
+    }
+  }
 
-          // Respond with HELLO packet for server to set state to TWO_WAY as well
-          outToServer.writeObject(clientPacket);
-        } else {
-          System.out.println("HELLO packet not returned. STATE unchanged.");
-          client.close();
-          outToServer.close();
-          inFromServer.close();
-          return;
-        }
+  /**
+   * runs the HELLO handshake with one neighbor and describes our database to it
+   *
+   * @param counted set once the start command has counted the handshakes; if it is set by the
+   *                time the neighbor is TWO_WAY, our LSA is originated here
+   * @throws IOException with the reason if the neighbor did not reach TWO_WAY
+   */
+  private void hello(Link port, AtomicBoolean counted) throws IOException {
+    String neighbor = port.router2.simulatedIPAddress;
+    NeighborChannel channel = channels.get(port.router2);
+    SOSPFPacket serverPacket;
+
+    // initialize the HELLO packet to broadcast to neighbors
+    // the weight lets a neighbor that was not attached to us use the same weight
+    SOSPFPacket clientPacket = createConnectPacket(port, (short) 0, port.weight);
+    // a new adjacency starts without any of our LSAs
+    flooding.forget(port.router2.simulatedIPAddress);
+
+    synchronized (channel) {
+      // send packet to server and wait for response
+      long started = System.nanoTime();
+      try {
+        channel.send(clientPacket);
+      } catch (UnknownHostException e) {
+        throw new UnknownHostException("unknown host " + port.router2.processIPAddress);
+      }
+      serverPacket = channel.receive();
 
-        //broadcast LSAUPDATE to neighbors
-        broadcastLSAUPDATE(null);
+      // Check that response is a HELLO
+      if (serverPacket != null && serverPacket.sospfType == 0) {
+        // If HELLO received, set status of R2 as TWO_WAY
+        port.router2.status = RouterStatus.TWO_WAY;
+        log.info("hello received neighbor={} state=TWO_WAY", serverPacket.srcIP);
 
-        // Close streams and socket
-        client.close();
-        outToServer.close();
-        inFromServer.close();
+        // Respond with HELLO packet for server to set state to TWO_WAY as well
+        channel.send(clientPacket);
+        metrics.handshakes.record((System.nanoTime() - started) / 1000);
+      } else {
+        channel.close();
+        throw new IOException("no HELLO in reply, got "
+                + ((serverPacket == null) ? "none" : RouterMetrics.typeName(serverPacket.sospfType)));
+      }
+    }
 
-      } catch (UnknownHostException e) {
-        System.err.println("Error: Socket could not be created. IP address of host could not be found.");
-        return;
-      } catch (IOException e) {
-        System.err.println("Error: I/O error occured during socket creation. Stream headers could not be written.");
-        return;
-      } 
+    // describe our database so the neighbor can request what it misses
+    exchange.start(port);
+    keepalive.up(port);
+    if (counted.get()) {
+      log.info("hello completed after the deadline neighbor={}", neighbor);
+      broadcastLSAUPDATE();
     }
   }
 
@@ -332,73 +516,55 @@ public class Router {
     // Attach the remote router to the current router
     processAttach(processIP, processPort, simulatedIP, weight);
 
-    // Get the index in ports of the previously attached remote router
-    int index = -1;
-    for (int i=0; i<4; i++) {
-      if (ports[i] != null && ports[i].router2.simulatedIPAddress.equals(simulatedIP)) {
-        index = i;
-      }
+    // Get the link to the previously attached remote router
+    Link link = ports.find(simulatedIP);
+    if (link == null) {
+      return;
     }
 
     // Start the connection and set to TWO_WAY
-    Socket client;
     SOSPFPacket clientPacket;
     SOSPFPacket serverPacket = null;
-    ObjectOutputStream outToServer;
-    ObjectInputStream inFromServer;
 
-    String serverName = ports[index].router2.processIPAddress;
-    short port = ports[index].router2.processPortNumber;
+    NeighborChannel channel = channels.get(link.router2);
     
     try {
       // initialize the CONNECT packet for the remote router
-      clientPacket = createConnectPacket(ports[index], (short) 2, weight);
+      clientPacket = createConnectPacket(link, (short) 2, weight);
+      flooding.forget(link.router2.simulatedIPAddress);
       
-      // send packet to server and wait for response
-      client = new Socket(serverName, port);
-
-      outToServer = new ObjectOutputStream(client.getOutputStream());
-      outToServer.writeObject(clientPacket);
+      synchronized (channel) {
+        // send packet to server and wait for response
+        long started = System.nanoTime();
+        channel.send(clientPacket);
+        try {
+          serverPacket = channel.receive();
+        } catch (StreamCorruptedException e) {
+          System.err.println("Packet received is not correct or cannot be used.");
+          return;
+        }
 
-      inFromServer = new ObjectInputStream(client.getInputStream());
-      try {
-        serverPacket = (SOSPFPacket) inFromServer.readObject();
-      } catch (ClassNotFoundException e) {
-        System.err.println("Packet received is not correct or cannot be used.");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
-        return;
-      } catch (ClassCastException e) {
-        System.err.println("Unexpected packet type.");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
-        return;
+        // Check that response is a CONNECT packet
+        if (serverPacket != null && serverPacket.sospfType == 2) {
+          // If CONNECT received, set status of R2 as TWO_WAY
+          link.router2.status = RouterStatus.TWO_WAY;
+          link.router1.status = RouterStatus.TWO_WAY;
+          // Respond with CONNECT packet for server to set state to TWO_WAY as well
+          channel.send(clientPacket);
+          metrics.handshakes.record((System.nanoTime() - started) / 1000);
+        } else {
+          System.err.println("Error: Connection was unsuccessfull!");
+          channel.close();
+          return;
+        }
       }
 
-      // Check that response is a CONNECT packet
-      if (serverPacket != null && serverPacket.sospfType == 2) {
-        // If CONNECT received, set status of R2 as TWO_WAY
-        ports[index].router2.status = RouterStatus.TWO_WAY;
-        ports[index].router1.status = RouterStatus.TWO_WAY;
-        // Respond with CONNECT packet for server to set state to TWO_WAY as well
-        outToServer.writeObject(clientPacket);
-      } else {
-        System.err.println("Error: Connection was unsuccessfull!");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
-        return;
-      }
+      // describe our database so the neighbor can request what it misses
+      exchange.start(link);
+      keepalive.up(link);
 
       //broadcast LSAUPDATE to neighbors
-      broadcastLSAUPDATE(null);
-
-      // Close streams and socket
-      client.close();
-      outToServer.close();
-      inFromServer.close();
+      broadcastLSAUPDATE();
 
     } catch (UnknownHostException e) {
       System.err.println("Error: Socket could not be created. IP address of host could not be found.");
@@ -418,40 +584,35 @@ public class Router {
    */
   private void processDisconnect(short portNumber) {
     //is port number valid AND not null AND two-way 
-    if (portNumber < 0 || 
-        portNumber > 3 || 
-        ports[portNumber] == null || 
-        ports[portNumber].router2.status != RouterStatus.TWO_WAY) {
+    Link link = ports.get(portNumber);
+    if (link == null || link.router2.status != RouterStatus.TWO_WAY) {
 
       System.err.println("Invalid port error.");
       return;
     }
 
-    RouterDescription remote = ports[portNumber].router2;
+    RouterDescription remote = link.router2;
 
     // try to delete links
     boolean deleted = true;
     // connect with router
+    NeighborChannel channel = channels.get(remote);
     try {
       // send disconnect request packet
-      Socket client = new Socket(remote.processIPAddress, remote.processPortNumber);
-      ObjectOutputStream outToServer = new ObjectOutputStream(client.getOutputStream());
-      ObjectInputStream inFromServer = new ObjectInputStream(client.getInputStream());
-      SOSPFPacket disconnectRequest = createPacket(ports[portNumber], (short) 3);
-      outToServer.writeObject(disconnectRequest);
-
-      // see if response is also disconnect request packet
-      SOSPFPacket serverPacket = (SOSPFPacket) inFromServer.readObject();
+      SOSPFPacket disconnectRequest = createPacket(link, (short) 3);
+      SOSPFPacket serverPacket;
+      synchronized (channel) {
+        channel.send(disconnectRequest);
+
+        // see if response is also disconnect request packet
+        serverPacket = channel.receive();
+      }
       if (serverPacket.sospfType == 3) {
         deleted = true;
       } else {
         deleted =  false;
       }
-      // Close streams and socket
-      client.close();
-      outToServer.close();
-      inFromServer.close();
-    } catch (ClassNotFoundException e){
+    } catch (StreamCorruptedException e){
       System.err.println("Error: couldn't read message from server");
     } catch (UnknownHostException e) {
       System.err.println("Error: Socket could not be created. IP address of host could not be found.");
@@ -461,13 +622,28 @@ public class Router {
 
     // Broadcast disconnect update
     if (deleted) {
-        ports[portNumber] = null;
-        broadcastLSAUPDATE(null);
+        ports.remove(portNumber);
+        keepalive.down(remote.simulatedIPAddress);
+        channels.remove(remote.simulatedIPAddress);
+        flooding.forget(remote.simulatedIPAddress);
+        broadcastLSAUPDATE();
     } else {
         System.err.println("Error: couldn't broadcast disconnect.");
     }
   }
 
+  /**
+   * output the next hop and cost of every reachable destination
+   */
+  private void processRoutes() {
+    String routes = lsd.getRoutingTable().toString();
+    if (routes.isEmpty()) {
+      System.out.println("No routes.");
+    } else {
+      System.out.print(routes);
+    }
+  }
+
   /**
    * output the neighbors of the routers
    */
@@ -475,23 +651,18 @@ public class Router {
     int oneWay = 0, twoWay = 0;    
     
     // check if all ports are empty for current router
-    boolean empty = true;
-    for ( Link port : ports ) {
-      if ( port != null ) {
-          empty = false;
-          oneWay += 1;
-      }
-    } 
+    oneWay = ports.size();
     
     // case 1: all ports of processIP are empty
-    if ( empty ) {
+    if ( oneWay == 0 ) {
         System.err.println("Ports are empty. No neighbors.");
     } else {
-        for ( int i = 0; i < ports.length; i++ ) {
+        for ( int i = 0; i < ports.limit(); i++ ) {
             
           // case 2: if there's a connection on both sides, then they are neighbors (two ways)
-            if ( ports[i] != null && ports[i].router2.status != null ) {
-                System.out.println("IP Address of neighbor " + (i + 1) + ": " + ports[i].router2.simulatedIPAddress);
+            Link port = ports.get(i);
+            if ( port != null && port.router2.status != null ) {
+                System.out.println("IP Address of neighbor " + (i + 1) + ": " + port.router2.simulatedIPAddress);
                 twoWay += 1;
             }
         }
@@ -509,13 +680,32 @@ public class Router {
   private void processQuit() {
     // Disconnect all connected routers
     for (Link port : this.ports) {
-      if (port != null && port.router1.status == RouterStatus.TWO_WAY) {
-        processDisconnect((short) 0);
+      if (port.router1.status == RouterStatus.TWO_WAY) {
+        processDisconnect((short) ports.portOf(port.router2.simulatedIPAddress));
       }
     }
+    close();
     System.exit(0);
   }
 
+  /**
+   * stops the router without ending the process: sends what is pending, closes the channels and
+   * the files of the database, and releases the router's address on the transport
+   */
+  void close() {
+    // let a pending LSA and the batches still waiting for their window go out
+    lsaThrottle.flush();
+    flooding.flushAll();
+    channels.closeAll();
+    if (snapshotFile != null) {
+      snapshotFile.close();
+    }
+    if (journal != null && !journal.commit()) {
+      System.err.println("Error: the last records could not be written to the journal.");
+    }
+    transport.close(this);
+  }
+
   /**
    * update the weight of an attached link
    */
@@ -539,12 +729,7 @@ public class Router {
 
     System.out.println("This is simulatedIP " + simulatedIP);
     // case 3: given simulatedIP is not attached
-    int index = -1;
-    for (int i=0; i<4; i++) {
-      if (ports[i] != null && ports[i].router2.simulatedIPAddress.equals(simulatedIP)) {
-        index = i;
-      }
-    }
+    int index = ports.portOf(simulatedIP);
 
     if (index == -1) {
       System.err.println("update weight failed: given simulatedIP is not attached.");
@@ -552,71 +737,49 @@ public class Router {
     }
 
     // case 4: simulatedIP's weight is the same
-    if (ports[index].weight == weight) {
+    if (ports.get(index).weight == weight) {
       System.err.println("The weight is already the given value. No changes made.");
       return;
     }
 
     // Set the new link
-    ports[index] = new Link(rd, remote, weight);
+    Link link = new Link(rd, remote, weight);
+    ports.replace(index, link);
 
     // Send packet to target router so they update as well
-    Socket client;
     SOSPFPacket clientPacket;
     SOSPFPacket serverPacket = null;
-    ObjectOutputStream outToServer;
-    ObjectInputStream inFromServer;
 
-    String serverName = ports[index].router2.processIPAddress;
-    short port = ports[index].router2.processPortNumber;
+    NeighborChannel channel = channels.get(link.router2);
 
     try {
       // initialize the UPDATE packet for the remote router
-      clientPacket = createConnectPacket(ports[index], (short) 4, weight);
-
-      // send packet to server and wait for response
-      client = new Socket(serverName, port);
-
-      outToServer = new ObjectOutputStream(client.getOutputStream());
-      outToServer.writeObject(clientPacket);
+      clientPacket = createConnectPacket(link, (short) 4, weight);
 
-      inFromServer = new ObjectInputStream(client.getInputStream());
-      try {
-        serverPacket = (SOSPFPacket) inFromServer.readObject();
-      } catch (ClassNotFoundException e) {
-        System.err.println("Packet received is not correct or cannot be used.");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
-        return;
-      } catch (ClassCastException e) {
-        System.err.println("Unexpected packet type.");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
-        return;
+      synchronized (channel) {
+        // send packet to server and wait for response
+        channel.send(clientPacket);
+        try {
+          serverPacket = channel.receive();
+        } catch (StreamCorruptedException e) {
+          System.err.println("Packet received is not correct or cannot be used.");
+          return;
+        }
       }
       // Check that response is a UPDATE packet
       if (serverPacket != null && serverPacket.sospfType == 4) {
         // If UPDATE received,
         // set status as TWO_WAY
-        ports[index].router2.status = RouterStatus.TWO_WAY;
-        ports[index].router1.status = RouterStatus.TWO_WAY;
+        link.router2.status = RouterStatus.TWO_WAY;
+        link.router1.status = RouterStatus.TWO_WAY;
       } else {
         System.err.println("Error: Connection was unsuccessfull!");
-        client.close();
-        outToServer.close();
-        inFromServer.close();
+        channel.close();
         return;
       }
 
       //broadcast LSAUPDATE to neighbors
-      broadcastLSAUPDATE(null);
-
-      // Close streams and socket
-      client.close();
-      outToServer.close();
-      inFromServer.close();
+      broadcastLSAUPDATE();
     } catch (UnknownHostException e) {
       System.err.println("Error: Socket could not be created. IP address of host could not be found.");
       return;
@@ -626,42 +789,79 @@ public class Router {
     } 
   }
 
+  /**
+   * output how inbound connections have been dispatched to threads so far
+   */
+  private void processDispatch() {
+    if (dispatch == null) {
+      System.out.println("connections are not dispatched to threads by this transport.");
+    } else {
+      System.out.println(dispatch);
+    }
+    System.out.println(transport);
+  }
+
+  /**
+   * runs one terminal command
+   *
+   * @return false if the command is not one of ours
+   */
+  boolean execute(String command) throws Exception {
+    if (command.startsWith("detect ")) {
+      String[] cmdLine = command.split(" ");
+      processDetect(cmdLine[1]);
+    } else if (command.startsWith("disconnect ")) {
+      String[] cmdLine = command.split(" ");
+      processDisconnect(Short.parseShort(cmdLine[1]));
+    } else if (command.startsWith("quit")) {
+      processQuit();
+    } else if (command.startsWith("attach ")) {
+      String[] cmdLine = command.split(" ");
+      processAttach(cmdLine[1], Short.parseShort(cmdLine[2]),
+              cmdLine[3], Short.parseShort(cmdLine[4]));
+    } else if (command.equals("start")) {
+      processStart();
+    } else if (command.startsWith("connect ")) {
+      String[] cmdLine = command.split(" ");
+      processConnect(cmdLine[1], Short.parseShort(cmdLine[2]),
+              cmdLine[3], Short.parseShort(cmdLine[4]));
+    } else if (command.equals("neighbors")) {
+      //output neighbors
+      processNeighbors();
+    } else if (command.startsWith("update ")) {
+      String[] cmdLine = command.split(" ");
+      updateWeight(cmdLine[1], Short.parseShort(cmdLine[2]),
+              cmdLine[3], Short.parseShort(cmdLine[4]));
+    } else if (command.equals("routes")) {
+      processRoutes();
+    } else if (command.equals("dispatch")) {
+      processDispatch();
+    } else if (command.equals("stats")) {
+      processStats();
+    } else {
+      //invalid command
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * output the router's counters and latency histograms, and where its database is kept
+   */
+  private void processStats() {
+    System.out.println(metrics);
+    if (snapshotFile != null) {
+      System.out.println(snapshotFile);
+    }
+  }
+
   public void terminal() {
     try {
       InputStreamReader isReader = new InputStreamReader(System.in);
       BufferedReader br = new BufferedReader(isReader);
       System.out.print(">> ");
       String command = br.readLine();
-      while (true) {
-        if (command.startsWith("detect ")) {
-          String[] cmdLine = command.split(" ");
-          processDetect(cmdLine[1]);
-        } else if (command.startsWith("disconnect ")) {
-          String[] cmdLine = command.split(" ");
-          processDisconnect(Short.parseShort(cmdLine[1]));
-        } else if (command.startsWith("quit")) {
-          processQuit();
-        } else if (command.startsWith("attach ")) {
-          String[] cmdLine = command.split(" ");
-          processAttach(cmdLine[1], Short.parseShort(cmdLine[2]),
-                  cmdLine[3], Short.parseShort(cmdLine[4]));
-        } else if (command.equals("start")) {
-          processStart();
-        } else if (command.startsWith("connect ")) {
-          String[] cmdLine = command.split(" ");
-          processConnect(cmdLine[1], Short.parseShort(cmdLine[2]),
-                  cmdLine[3], Short.parseShort(cmdLine[4]));
-        } else if (command.equals("neighbors")) {
-          //output neighbors
-          processNeighbors();
-        } else if (command.startsWith("update ")) {
-          String[] cmdLine = command.split(" ");
-          updateWeight(cmdLine[1], Short.parseShort(cmdLine[2]),
-                  cmdLine[3], Short.parseShort(cmdLine[4]));
-        } else {
-          //invalid command
-          break;
-        }
+      while (execute(command)) {
         System.out.print(">> ");
         command = br.readLine();
       }
@@ -0,0 +1,411 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.util.Histogram;
+import socs.network.util.Throttle;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one router, shown by the {@code stats} command and
+ * exported over JMX. Everything is recorded without locks, from whichever thread handled the
+ * event, so the counters can stay on the packet path. Flooding, keepalives, the database
+ * exchange and the journal record here rather than keeping counters of their own; the hold-down
+ * timers are shared utilities, so their counters are read from them.
+ */
+public class RouterMetrics implements RouterMetricsMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(RouterMetrics.class);
+
+  // sospfType => name
+  static final String[] TYPES = {"HELLO", "LSAUPDATE", "CONNECT", "DISCONNECT", "UPDATE", "DBD", "LSR", "LSDELTA", "KEEPALIVE"};
+
+  static String typeName(short sospfType) {
+    return (sospfType >= 0 && sospfType < TYPES.length) ? TYPES[sospfType] : String.valueOf(sospfType);
+  }
+
+  private final LongAdder[] received = adders(TYPES.length);
+  private final LongAdder[] sent = adders(TYPES.length);
+
+  // LSAs received that replaced an older one, and those we already had or had newer
+  private final LongAdder lsasInstalled = new LongAdder();
+  private final LongAdder lsasStale = new LongAdder();
+
+  // time to build a routing table, in microseconds
+  final Histogram spf = new Histogram();
+
+  // time from sending a HELLO or CONNECT to the neighbor being TWO_WAY, in microseconds
+  final Histogram handshakes = new Histogram();
+
+  // connections to a neighbor that could not be opened
+  private final LongAdder connectionFailures = new LongAdder();
+
+  // shortest path trees computed from scratch and patched
+  private final LongAdder spfFullRuns = new LongAdder();
+  private final LongAdder spfIncrementalRuns = new LongAdder();
+
+  // LSAs handed to a neighbor, and those not sent because the neighbor had them or sent them
+  private final LongAdder lsasFlooded = new LongAdder();
+  private final LongAdder floodsSuppressed = new LongAdder();
+  // LSAs that replaced one of the same origin waiting in a batch
+  private final LongAdder lsasCoalesced = new LongAdder();
+  // LSAUPDATE and LSDELTA packets, and the changed LSAs sent as deltas
+  private final LongAdder updatePackets = new LongAdder();
+  private final LongAdder deltasSent = new LongAdder();
+
+  private final LongAdder keepalivesSent = new LongAdder();
+  private final LongAdder keepalivesFailed = new LongAdder();
+  private final LongAdder neighborsDeclaredDead = new LongAdder();
+
+  // database descriptions and link state requests sent, the LSAs asked for in them, the LSAs
+  // supplied to neighbors' requests, and the deltas that had to be asked for in full
+  private final LongAdder descriptionsSent = new LongAdder();
+  private final LongAdder requestsSent = new LongAdder();
+  private final LongAdder lsasRequested = new LongAdder();
+  private final LongAdder lsasSupplied = new LongAdder();
+  private final LongAdder deltaFallbacks = new LongAdder();
+
+  private final LongAdder journalRecords = new LongAdder();
+  private final LongAdder journalCommits = new LongAdder();
+  private final LongAdder journalBytes = new LongAdder();
+  private final LongAdder journalCompactions = new LongAdder();
+  private final LongAdder journalDropped = new LongAdder();
+
+  // the hold-down timers of our LSA and of SPF runs, null until the router creates them
+  volatile Throttle lsaThrottle;
+  volatile Throttle spfThrottle;
+
+  private static LongAdder[] adders(int n) {
+    LongAdder[] adders = new LongAdder[n];
+    for (int i = 0; i < n; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  private static long[] sums(LongAdder[] adders) {
+    long[] sums = new long[adders.length];
+    for (int i = 0; i < adders.length; i++) {
+      sums[i] = adders[i].sum();
+    }
+    return sums;
+  }
+
+  private static long total(LongAdder[] adders) {
+    long total = 0;
+    for (LongAdder adder : adders) {
+      total += adder.sum();
+    }
+    return total;
+  }
+
+  void received(short sospfType) {
+    if (sospfType >= 0 && sospfType < TYPES.length) {
+      received[sospfType].increment();
+    }
+  }
+
+  void sent(short sospfType) {
+    if (sospfType >= 0 && sospfType < TYPES.length) {
+      sent[sospfType].increment();
+    }
+  }
+
+  void lsaReceived(boolean installed) {
+    (installed ? lsasInstalled : lsasStale).increment();
+  }
+
+  void connectionFailed() {
+    connectionFailures.increment();
+  }
+
+  void spfRan(long full, long incremental) {
+    spfFullRuns.add(full);
+    spfIncrementalRuns.add(incremental);
+  }
+
+  void lsaFlooded() {
+    lsasFlooded.increment();
+  }
+
+  void floodSuppressed() {
+    floodsSuppressed.increment();
+  }
+
+  void lsaCoalesced() {
+    lsasCoalesced.increment();
+  }
+
+  void updateSent() {
+    updatePackets.increment();
+  }
+
+  void deltasSent(int changes) {
+    updatePackets.increment();
+    deltasSent.add(changes);
+  }
+
+  void keepaliveSent() {
+    keepalivesSent.increment();
+  }
+
+  void keepaliveFailed() {
+    keepalivesFailed.increment();
+  }
+
+  void neighborDead() {
+    neighborsDeclaredDead.increment();
+  }
+
+  void descriptionSent() {
+    descriptionsSent.increment();
+  }
+
+  void lsasRequested(int count) {
+    requestsSent.increment();
+    lsasRequested.add(count);
+  }
+
+  void deltaFallback() {
+    lsasRequested(1);
+    deltaFallbacks.increment();
+  }
+
+  void lsasSupplied(int count) {
+    lsasSupplied.add(count);
+  }
+
+  void journalCommitted(int records, long bytes) {
+    journalRecords.add(records);
+    journalBytes.add(bytes);
+    journalCommits.increment();
+  }
+
+  void journalCompacted() {
+    journalCompactions.increment();
+  }
+
+  void journalDropped() {
+    journalDropped.increment();
+  }
+
+  /**
+   * exports the metrics over the platform MBean server under the router's simulated ip
+   */
+  void register(String simulatedIP) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("socs.network:type=Router,name=" + simulatedIP));
+    } catch (JMException e) {
+      log.warn("metrics not exported over jmx router={} error={}", simulatedIP, e.getMessage());
+    }
+  }
+
+  public long[] getPacketsReceivedByType() {
+    return sums(received);
+  }
+
+  public long[] getPacketsSentByType() {
+    return sums(sent);
+  }
+
+  public long getPacketsReceived() {
+    return total(received);
+  }
+
+  public long getPacketsSent() {
+    return total(sent);
+  }
+
+  public long getLsasInstalled() {
+    return lsasInstalled.sum();
+  }
+
+  public long getLsasStale() {
+    return lsasStale.sum();
+  }
+
+  public long getSpfRuns() {
+    return spf.count();
+  }
+
+  public double getSpfMeanMicros() {
+    return spf.mean();
+  }
+
+  public long getSpfP50Micros() {
+    return spf.percentile(50);
+  }
+
+  public long getSpfP99Micros() {
+    return spf.percentile(99);
+  }
+
+  public long getSpfMaxMicros() {
+    return spf.max();
+  }
+
+  public long getHandshakes() {
+    return handshakes.count();
+  }
+
+  public double getHandshakeMeanMicros() {
+    return handshakes.mean();
+  }
+
+  public long getHandshakeP50Micros() {
+    return handshakes.percentile(50);
+  }
+
+  public long getHandshakeP99Micros() {
+    return handshakes.percentile(99);
+  }
+
+  public long getHandshakeMaxMicros() {
+    return handshakes.max();
+  }
+
+  public long getConnectionFailures() {
+    return connectionFailures.sum();
+  }
+
+  public long getSpfFullRuns() {
+    return spfFullRuns.sum();
+  }
+
+  public long getSpfIncrementalRuns() {
+    return spfIncrementalRuns.sum();
+  }
+
+  public long getSpfRequests() {
+    Throttle throttle = spfThrottle;
+    return (throttle == null) ? 0 : throttle.requests.get();
+  }
+
+  public long getSpfRequestsSuppressed() {
+    Throttle throttle = spfThrottle;
+    return (throttle == null) ? 0 : throttle.suppressed.get();
+  }
+
+  public long getLsaOriginationRequests() {
+    Throttle throttle = lsaThrottle;
+    return (throttle == null) ? 0 : throttle.requests.get();
+  }
+
+  public long getLsaOriginations() {
+    Throttle throttle = lsaThrottle;
+    return (throttle == null) ? 0 : throttle.runs.get();
+  }
+
+  public long getLsaOriginationsSuppressed() {
+    Throttle throttle = lsaThrottle;
+    return (throttle == null) ? 0 : throttle.suppressed.get();
+  }
+
+  public long getLsasFlooded() {
+    return lsasFlooded.sum();
+  }
+
+  public long getFloodsSuppressed() {
+    return floodsSuppressed.sum();
+  }
+
+  public long getLsasCoalesced() {
+    return lsasCoalesced.sum();
+  }
+
+  public long getUpdatePackets() {
+    return updatePackets.sum();
+  }
+
+  public long getDeltasSent() {
+    return deltasSent.sum();
+  }
+
+  public long getKeepalivesSent() {
+    return keepalivesSent.sum();
+  }
+
+  public long getKeepalivesFailed() {
+    return keepalivesFailed.sum();
+  }
+
+  public long getNeighborsDeclaredDead() {
+    return neighborsDeclaredDead.sum();
+  }
+
+  public long getDescriptionsSent() {
+    return descriptionsSent.sum();
+  }
+
+  public long getRequestsSent() {
+    return requestsSent.sum();
+  }
+
+  public long getLsasRequested() {
+    return lsasRequested.sum();
+  }
+
+  public long getLsasSupplied() {
+    return lsasSupplied.sum();
+  }
+
+  public long getDeltaFallbacks() {
+    return deltaFallbacks.sum();
+  }
+
+  public long getJournalRecords() {
+    return journalRecords.sum();
+  }
+
+  public long getJournalCommits() {
+    return journalCommits.sum();
+  }
+
+  public long getJournalBytes() {
+    return journalBytes.sum();
+  }
+
+  public long getJournalCompactions() {
+    return journalCompactions.sum();
+  }
+
+  public long getJournalDropped() {
+    return journalDropped.sum();
+  }
+
+  private static String byType(LongAdder[] adders) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < adders.length; i++) {
+      out.append(TYPES[i]).append('=').append(adders[i].sum()).append(' ');
+    }
+    return out.append("total=").append(total(adders)).toString();
+  }
+
+  public String toString() {
+    return "packets received: " + byType(received) + "\n"
+        + "packets sent: " + byType(sent) + "\n"
+        + "lsas: installed=" + lsasInstalled.sum() + " stale=" + lsasStale.sum() + "\n"
+        + "spf (us): " + spf + "\n"
+        + "spf runs: full=" + spfFullRuns.sum() + " incremental=" + spfIncrementalRuns.sum()
+        + " requests=" + getSpfRequests() + " suppressed=" + getSpfRequestsSuppressed() + "\n"
+        + "lsa originations: requests=" + getLsaOriginationRequests() + " runs=" + getLsaOriginations()
+        + " suppressed=" + getLsaOriginationsSuppressed() + "\n"
+        + "flooding: sent=" + lsasFlooded.sum() + " suppressed=" + floodsSuppressed.sum()
+        + " coalesced=" + lsasCoalesced.sum() + " packets=" + updatePackets.sum() + " deltas=" + deltasSent.sum() + "\n"
+        + "exchange: descriptions=" + descriptionsSent.sum() + " requests=" + requestsSent.sum()
+        + " requested=" + lsasRequested.sum() + " supplied=" + lsasSupplied.sum()
+        + " deltaFallbacks=" + deltaFallbacks.sum() + "\n"
+        + "keepalives: sent=" + keepalivesSent.sum() + " failed=" + keepalivesFailed.sum()
+        + " dead=" + neighborsDeclaredDead.sum() + "\n"
+        + "journal: records=" + journalRecords.sum() + " commits=" + journalCommits.sum()
+        + " bytes=" + journalBytes.sum() + " compactions=" + journalCompactions.sum()
+        + " dropped=" + journalDropped.sum() + "\n"
+        + "handshakes (us): " + handshakes + "\n"
+        + "connection failures: " + connectionFailures.sum();
+  }
+}
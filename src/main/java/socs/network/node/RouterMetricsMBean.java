@@ -0,0 +1,92 @@
+package socs.network.node;
+
+/**
+ * What a router exports over JMX, as socs.network:type=Router,name=&lt;simulated ip&gt;. Packet
+ * counts by type are indexed by sospfType; durations are in microseconds.
+ */
+public interface RouterMetricsMBean {
+
+  long[] getPacketsReceivedByType();
+
+  long[] getPacketsSentByType();
+
+  long getPacketsReceived();
+
+  long getPacketsSent();
+
+  long getLsasInstalled();
+
+  long getLsasStale();
+
+  long getSpfRuns();
+
+  double getSpfMeanMicros();
+
+  long getSpfP50Micros();
+
+  long getSpfP99Micros();
+
+  long getSpfMaxMicros();
+
+  long getHandshakes();
+
+  double getHandshakeMeanMicros();
+
+  long getHandshakeP50Micros();
+
+  long getHandshakeP99Micros();
+
+  long getHandshakeMaxMicros();
+
+  long getConnectionFailures();
+
+  long getSpfFullRuns();
+
+  long getSpfIncrementalRuns();
+
+  long getSpfRequests();
+
+  long getSpfRequestsSuppressed();
+
+  long getLsaOriginationRequests();
+
+  long getLsaOriginations();
+
+  long getLsaOriginationsSuppressed();
+
+  long getLsasFlooded();
+
+  long getFloodsSuppressed();
+
+  long getLsasCoalesced();
+
+  long getUpdatePackets();
+
+  long getDeltasSent();
+
+  long getKeepalivesSent();
+
+  long getKeepalivesFailed();
+
+  long getNeighborsDeclaredDead();
+
+  long getDescriptionsSent();
+
+  long getRequestsSent();
+
+  long getLsasRequested();
+
+  long getLsasSupplied();
+
+  long getDeltaFallbacks();
+
+  long getJournalRecords();
+
+  long getJournalCommits();
+
+  long getJournalBytes();
+
+  long getJournalCompactions();
+
+  long getJournalDropped();
+}
@@ -0,0 +1,50 @@
+package socs.network.node;
+
+/**
+ * Routes from this router to every destination in the link state database: the full shortest
+ * path tree plus the next hop and cost of each destination.
+ * <p/>
+ * A table is built for one version of the database and stays valid until an LSA with a higher
+ * sequence number is installed, so repeated lookups against a stable topology only walk the
+ * path of the destination instead of rerunning Dijkstra's algorithm.
+ */
+class RoutingTable {
+
+  // version of the link state database this table was computed from
+  final long version;
+
+  private final ShortestPathTree tree;
+
+  RoutingTable(ShortestPathTree tree, long version) {
+    this.tree = tree;
+    this.version = version;
+  }
+
+  ShortestPathTree getTree() {
+    return tree;
+  }
+
+  String pathTo(String destinationIP) {
+    return tree.pathTo(destinationIP);
+  }
+
+  String nextHop(String destinationIP) {
+    return tree.nextHop(destinationIP);
+  }
+
+  int distanceTo(String destinationIP) {
+    return tree.distanceTo(destinationIP);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tree.size(); i++) {
+      String destination = tree.routerAt(i);
+      String nextHop = tree.nextHop(destination);
+      if (nextHop != null) {
+        sb.append(destination).append("\tvia ").append(nextHop).append("\tcost ").append(tree.distanceTo(destination)).append("\n");
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -2,21 +2,23 @@ package socs.network.node;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.net.Socket;
 
 /**
  * Starts the server application of the router to be able to continuously accept clients and 
- * read incoming packets
+ * read incoming packets. Which thread serves an accepted connection is left to the router's
+ * {@link DispatchStrategy}.
  */
 public class ServerSimulator implements Runnable {
 
     private Router router;
     private ServerSocket socket;
     private short port;
+    private DispatchStrategy dispatch;
 
-    public ServerSimulator(Router r, short p) {
+    public ServerSimulator(Router r, short p, DispatchStrategy d) {
         router = r;
         port = p;
+        dispatch = d;
         try {
             socket = new ServerSocket(port);
         } catch (IOException e) {
@@ -30,9 +32,13 @@ public class ServerSimulator implements Runnable {
         while (true) {
             try {
                 // Accepts client socket connection
-                Socket lSocket = socket.accept();
-                Thread requestReceiver = new Thread(new ServerRequestReceiver(lSocket, router));
-                requestReceiver.start();
+                final Transport.Connection connection = new TcpTransport.SocketConnection(socket.accept());
+                dispatch.dispatch(new ServerRequestReceiver(connection, router), new Runnable() {
+                    public void run() {
+                        // no thread left to serve it; the client sees the connection closed
+                        connection.close();
+                    }
+                });
             } catch (IOException e) {
                 System.out.println(e.toString());
                 System.err.println("Error: server socket connection failure.");
@@ -0,0 +1,234 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.util.IndexedMinHeap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Shortest path tree rooted at one router, computed with Dijkstra's algorithm over the
+ * {@link TopologyGraph} of a link state database.
+ * <p/>
+ * Routers are kept in an {@link IndexedMinHeap} by their number in the graph, so the next router
+ * to settle is found in O(log V) and a shorter distance is recorded with a decrease-key instead of
+ * a rescan. Each link is looked at exactly once, when the router announcing it is settled, giving
+ * O(E log V) for the whole run; the links are read straight from the graph's int arrays.
+ * <p/>
+ * The tree can be patched in place by {@link IncrementalSpf} when a single LSA changes.
+ */
+class ShortestPathTree {
+
+  private static final Logger log = LoggerFactory.getLogger(ShortestPathTree.class);
+
+  static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  // shared with the graph, which only ever appends to them; routers from count on are not in
+  // this tree
+  String[] ids;                     // router number -> simulated ip
+  final Map<String, Integer> index; // simulated ip -> router number
+  final int root;
+  int[] distance;
+  int[] parent;                     // previous router on the shortest path, -1 for none
+  int[] parentWeight;               // weight of the link from parent
+  int[] nextHop;                    // first router after the root on the shortest path, -1 for none
+  int count;
+
+  private ShortestPathTree(TopologyGraph graph, int root) {
+    this.ids = graph.ids;
+    this.index = graph.index;
+    this.root = root;
+    this.count = graph.size();
+    distance = new int[count];
+    parent = new int[count];
+    parentWeight = new int[count];
+    nextHop = new int[count];
+    Arrays.fill(distance, UNREACHABLE);
+    Arrays.fill(parent, -1);
+    Arrays.fill(nextHop, -1);
+  }
+
+  /**
+   * runs Dijkstra's algorithm from the given source over the given LSAs
+   */
+  static ShortestPathTree compute(Map<String, LSA> store, String sourceIP) {
+    return compute(TopologyGraph.build(store, sourceIP), 0);
+  }
+
+  /**
+   * runs Dijkstra's algorithm from the given router over the graph
+   */
+  static ShortestPathTree compute(TopologyGraph graph, int source) {
+    ShortestPathTree tree = new ShortestPathTree(graph, source);
+    int n = graph.size();
+    IndexedMinHeap unsettled = new IndexedMinHeap(n);
+    boolean[] settled = new boolean[n];
+    int[] offset = graph.offset;
+    int[] target = graph.target;
+    int[] weight = graph.weight;
+    boolean[] hasLsa = graph.hasLsa;
+
+    tree.distance[source] = 0;
+    unsettled.insert(source, 0);
+
+    while (!unsettled.isEmpty()) {
+      int current = unsettled.poll();
+      settled[current] = true;
+      tree.settle(current);
+      int currentDistance = tree.distance[current];
+
+      // relax every link of the router once
+      for (int e = offset[current]; e < offset[current + 1]; e++) {
+        int neighbour = target[e];
+        // skip links to routers whose LSA has not arrived yet
+        if (!hasLsa[neighbour] || settled[neighbour]) {
+          continue;
+        }
+        if (weight[e] < 0) {
+          log.warn("spf link skipped from={} to={} weight={}", graph.ids[current], graph.ids[neighbour], weight[e]);
+          continue;
+        }
+
+        int newDistance = currentDistance + weight[e];
+        if (newDistance < tree.distance[neighbour]) {
+          tree.distance[neighbour] = newDistance;
+          tree.parent[neighbour] = current;
+          tree.parentWeight[neighbour] = weight[e];
+          if (unsettled.contains(neighbour)) {
+            unsettled.decreaseKey(neighbour, newDistance);
+          } else {
+            unsettled.insert(neighbour, newDistance);
+          }
+        }
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * records the next hop of a router once its parent is final; the parent is always settled
+   * before its children, so the parent's next hop is already known
+   */
+  void settle(int router) {
+    if (router != root) {
+      int p = parent[router];
+      nextHop[router] = (p == root) ? router : nextHop[p];
+    }
+  }
+
+  /**
+   * takes in the routers numbered in the graph since the tree was computed, unreachable for now
+   */
+  void extend(TopologyGraph graph) {
+    ids = graph.ids;
+    int old = count;
+    count = graph.size();
+    if (count > distance.length) {
+      int capacity = Math.max(count, 2 * distance.length);
+      distance = Arrays.copyOf(distance, capacity);
+      parent = Arrays.copyOf(parent, capacity);
+      parentWeight = Arrays.copyOf(parentWeight, capacity);
+      nextHop = Arrays.copyOf(nextHop, capacity);
+    }
+    Arrays.fill(distance, old, count, UNREACHABLE);
+    Arrays.fill(parent, old, count, -1);
+    Arrays.fill(nextHop, old, count, -1);
+  }
+
+  /**
+   * an independent copy that can be patched without changing this tree
+   */
+  ShortestPathTree copy() {
+    ShortestPathTree copy = new ShortestPathTree(this);
+    copy.distance = distance.clone();
+    copy.parent = parent.clone();
+    copy.parentWeight = parentWeight.clone();
+    copy.nextHop = nextHop.clone();
+    return copy;
+  }
+
+  private ShortestPathTree(ShortestPathTree other) {
+    this.ids = other.ids;
+    this.index = other.index;
+    this.root = other.root;
+    this.count = other.count;
+  }
+
+  /**
+   * the number of a router in this tree, -1 if it was unknown when the tree was built
+   */
+  private int lookup(String ip) {
+    Integer r = index.get(ip);
+    return (r == null || r >= count) ? -1 : r;
+  }
+
+  String getRoot() {
+    return ids[root];
+  }
+
+  /**
+   * number of routers known to the database, the root included; use {@link #distanceTo} to tell
+   * whether one can actually be reached
+   */
+  int size() {
+    return count;
+  }
+
+  String routerAt(int router) {
+    return ids[router];
+  }
+
+  /**
+   * the neighbor of the root that the shortest path to the destination goes through, null if
+   * the destination cannot be reached
+   */
+  String nextHop(String destinationIP) {
+    int destination = lookup(destinationIP);
+    if (destination == -1 || nextHop[destination] == -1) {
+      return null;
+    }
+    return ids[nextHop[destination]];
+  }
+
+  /**
+   * total weight of the shortest path to the destination, -1 if it cannot be reached
+   */
+  int distanceTo(String destinationIP) {
+    int destination = lookup(destinationIP);
+    if (destination == -1 || distance[destination] == UNREACHABLE) {
+      return -1;
+    }
+    return distance[destination];
+  }
+
+  /**
+   * the path from the root to the destination in the format
+   * "root ->(weight) ip ->(weight) ... destination", or a warning if there is none
+   */
+  String pathTo(String destinationIP) {
+    int destination = lookup(destinationIP);
+    if (destination == -1 || parent[destination] == -1) {
+      return "Warning: There is no path.";
+    }
+
+    // walk back from the destination, then print the hops front to back
+    int hops = 0;
+    for (int r = destination; parent[r] != -1; r = parent[r]) {
+      hops++;
+    }
+    int[] path = new int[hops + 1];
+    int r = destination;
+    for (int i = hops; i >= 0; i--) {
+      path[i] = r;
+      r = parent[r];
+    }
+
+    StringBuilder sb = new StringBuilder(ids[path[0]]);
+    for (int i = 1; i <= hops; i++) {
+      sb.append(" ->(").append(parentWeight[path[i]]).append(") ").append(ids[path[i]]);
+    }
+    return sb.toString();
+  }
+}
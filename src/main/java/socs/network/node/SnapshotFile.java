@@ -0,0 +1,244 @@
+package socs.network.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.PacketCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A copy of the link state database kept in a memory-mapped file, so that a restarted router
+ * can compute routes right away and, once started, only request from its neighbors the LSAs
+ * that changed meanwhile (see {@link DatabaseExchange}).
+ * <p/>
+ * The file holds a header followed by the LSAs in the layout of {@link PacketCodec}:
+ * <pre>
+ *   int    magic "LSDB"
+ *   byte   format version
+ *   int    reserved sequence number: our LSAs never get this one or a higher one until the
+ *          reservation is moved up
+ *   int    length of the body
+ *   int    CRC32 of the body
+ *   body:  int ip of the router, int number of LSAs
+ *   per LSA:   int linkStateID, int lsaSeqNumber, int number of links
+ *   per link:  int linkID, short portNum, int tosMetrics
+ * </pre>
+ * The sequence numbers of our LSAs are reserved in blocks: before originating an LSA numbered at
+ * or above the reservation, the reservation is moved a block up and forced to disk. A restarted
+ * router numbers its first LSA from the reservation, so it never reuses a sequence number that
+ * may already be out in the network, even if it crashed long after the last snapshot.
+ * <p/>
+ * The body is rewritten in place and only taken once its CRC matches, so a snapshot torn by a
+ * crash is ignored; the reservation is stored apart from the body and survives it.
+ */
+public class SnapshotFile {
+
+  private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+
+  private static final int MAGIC = 0x4C534442;
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 17;
+  private static final int RESERVED_OFFSET = 5;
+
+  // sequence numbers reserved at a time, i.e. originations between two writes of the header
+  static final int SEQ_BLOCK = 1024;
+
+  private final File file;
+  private final LinkStateDatabase lsd;
+  private final RandomAccessFile raf;
+  private MappedByteBuffer map;
+
+  // the first sequence number not reserved yet
+  private int reserved;
+
+  // the reservation found in the file when it was loaded, 0 if there was none
+  private int restored;
+
+  // database version last written, -1 for none
+  private long writtenVersion = -1;
+
+  long writes;
+  private int lsas;
+
+  SnapshotFile(File file, LinkStateDatabase lsd) throws IOException {
+    this.file = file;
+    this.lsd = lsd;
+    raf = new RandomAccessFile(file, "rw");
+    map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(4096, raf.length()));
+  }
+
+  /**
+   * installs the LSAs of the snapshot, our own numbered just below the reservation so that our
+   * next LSA gets the reserved number; the reservation is taken even if the body is unreadable
+   * or does not hold our LSA (see {@link #firstSeq()})
+   *
+   * @return the number of LSAs installed
+   */
+  synchronized int load() {
+    ByteBuffer in = map.duplicate();
+    if (in.getInt(0) != MAGIC || in.get(4) != VERSION) {
+      return 0;
+    }
+    reserved = in.getInt(RESERVED_OFFSET);
+    restored = reserved;
+    int length = in.getInt(9);
+    int crc = in.getInt(13);
+    if (length < 8 || HEADER_LENGTH + length > in.capacity() || crc != crc(HEADER_LENGTH, length)) {
+      log.warn("snapshot unreadable file={} reserved={}", file, reserved);
+      return 0;
+    }
+    in.position(HEADER_LENGTH);
+    String owner = PacketCodec.intToIp(in.getInt());
+    if (!owner.equals(lsd.ownerIP())) {
+      log.warn("snapshot of another router file={} owner={}", file, owner);
+      reserved = 0;
+      restored = 0;
+      return 0;
+    }
+    int count = in.getInt();
+    int installed = 0;
+    for (int i = 0; i < count; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = PacketCodec.intToIp(in.getInt());
+      lsa.lsaSeqNumber = in.getInt();
+      int links = in.getInt();
+      for (int l = 0; l < links; l++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = PacketCodec.intToIp(in.getInt());
+        ld.portNum = in.getShort();
+        ld.tosMetrics = in.getInt();
+        lsa.links.add(ld);
+      }
+      if (lsa.linkStateID.equals(owner)) {
+        lsa.lsaSeqNumber = Math.max(lsa.lsaSeqNumber, reserved - 1);
+      }
+      if (lsd.install(lsa)) {
+        installed++;
+      }
+    }
+    lsas = count;
+    writtenVersion = lsd.version();
+    return installed;
+  }
+
+  /**
+   * the lowest sequence number our next LSA may get: the reservation found when the file was
+   * loaded, since any number below it may already be out in the network
+   */
+  synchronized int firstSeq() {
+    return restored;
+  }
+
+  /**
+   * makes sure the given sequence number of ours is reserved, moving the reservation up and
+   * forcing it to disk if it is not
+   */
+  synchronized void reserve(int seq) throws IOException {
+    if (seq < reserved) {
+      return;
+    }
+    reserved = seq + SEQ_BLOCK;
+    writeHeader(map.getInt(9), map.getInt(13));
+    map.force();
+  }
+
+  /**
+   * writes the database unless it is unchanged since the last write
+   */
+  synchronized void write() throws IOException {
+    LinkStateDatabase.Snapshot snapshot = lsd.snapshot();
+    if (snapshot.version == writtenVersion) {
+      return;
+    }
+    Map<String, LSA> store = snapshot.lsas;
+    int length = 8;
+    int count = 0;
+    for (LSA lsa : store.values()) {
+      if (lsa.lsaSeqNumber != Integer.MIN_VALUE) {
+        length += 12 + 10 * lsa.links.size();
+        count++;
+      }
+    }
+    ensureCapacity(HEADER_LENGTH + length);
+
+    ByteBuffer out = map.duplicate();
+    out.position(HEADER_LENGTH);
+    out.putInt(PacketCodec.ipToInt(lsd.ownerIP()));
+    out.putInt(count);
+    for (LSA lsa : store.values()) {
+      if (lsa.lsaSeqNumber == Integer.MIN_VALUE) {
+        continue;
+      }
+      out.putInt(PacketCodec.ipToInt(lsa.linkStateID));
+      out.putInt(lsa.lsaSeqNumber);
+      out.putInt(lsa.links.size());
+      for (LinkDescription ld : lsa.links) {
+        out.putInt(PacketCodec.ipToInt(ld.linkID));
+        out.putShort((short) ld.portNum);
+        out.putInt(ld.tosMetrics);
+      }
+    }
+    writeHeader(length, crc(HEADER_LENGTH, length));
+    map.force();
+    writtenVersion = snapshot.version;
+    lsas = count;
+    writes++;
+  }
+
+  /**
+   * writes and closes the file
+   */
+  synchronized void close() {
+    try {
+      write();
+      raf.close();
+    } catch (IOException e) {
+      log.warn("snapshot write failed file={} error={}", file, e.getMessage());
+    }
+  }
+
+  private void writeHeader(int length, int crc) {
+    map.putInt(0, MAGIC);
+    map.put(4, VERSION);
+    map.putInt(RESERVED_OFFSET, reserved);
+    map.putInt(9, length);
+    map.putInt(13, crc);
+  }
+
+  private int crc(int offset, int length) {
+    ByteBuffer body = map.duplicate();
+    body.position(offset);
+    body.limit(offset + length);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * maps a larger part of the file if the snapshot does not fit, keeping what is mapped
+   */
+  private void ensureCapacity(int size) throws IOException {
+    if (size <= map.capacity()) {
+      return;
+    }
+    long capacity = map.capacity();
+    while (capacity < size) {
+      capacity *= 2;
+    }
+    map.force();
+    map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  public synchronized String toString() {
+    return "snapshot: file=" + file + " writes=" + writes + " lsas=" + lsas + " reserved=" + reserved;
+  }
+}
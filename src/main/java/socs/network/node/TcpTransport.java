@@ -0,0 +1,119 @@
+package socs.network.node;
+
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * The socket transport: a router listens on its process port, either with
+ * {@link ServerSimulator} (a thread per connection, picked by the dispatch strategy) or with the
+ * {@link NioServerEngine}, and opens a TCP connection per neighbor.
+ */
+public class TcpTransport implements Transport {
+
+  /**
+   * a TCP connection, carrying packets in the frames of {@link PacketCodec}
+   */
+  static class SocketConnection implements Connection {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    SocketConnection(Socket socket) throws IOException {
+      this.socket = socket;
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      PacketCodec.write(out, packet);
+      out.flush();
+    }
+
+    public SOSPFPacket receive(int timeoutMs) throws IOException {
+      socket.setSoTimeout(timeoutMs);
+      return PacketCodec.read(in);
+    }
+
+    /**
+     * the accepting side only ever answers requests, so outside of an exchange there is nothing
+     * to read: waiting one millisecond for a byte finds either the end of the stream the peer
+     * left when it went away, or nothing if it is still there
+     */
+    public boolean isBroken() {
+      try {
+        if (in.available() > 0) {
+          // a reply nobody waited for, the stream is out of step
+          return true;
+        }
+        socket.setSoTimeout(1);
+        // returns only at the end of the stream, or with a byte nobody waited for
+        in.read();
+        return true;
+      } catch (SocketTimeoutException e) {
+        return false;
+      } catch (IOException e) {
+        return true;
+      }
+    }
+
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to clean up
+      }
+    }
+  }
+
+  private final boolean nio;
+  private final int nioEventLoops;
+  private final DispatchStrategy dispatch;
+
+  /**
+   * @param dispatch picks the thread serving each inbound connection, unused with nio
+   */
+  public TcpTransport(boolean nio, int nioEventLoops, DispatchStrategy dispatch) {
+    this.nio = nio;
+    this.nioEventLoops = nioEventLoops;
+    this.dispatch = dispatch;
+  }
+
+  public Connection connect(RouterDescription remote) throws IOException {
+    Socket socket = new Socket(remote.processIPAddress, remote.processPortNumber);
+    try {
+      socket.setTcpNoDelay(true);
+      return new SocketConnection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  public void listen(Router router) throws IOException {
+    Runnable server;
+    if (nio) {
+      server = new NioServerEngine(router, router.rd.processPortNumber, nioEventLoops);
+    } else {
+      server = new ServerSimulator(router, router.rd.processPortNumber, dispatch);
+    }
+    Thread serverSim = new Thread(server);
+    serverSim.start();
+  }
+
+  public void close(Router router) {
+    // a router on this transport is a process of its own, quitting it releases the port
+  }
+
+  public String toString() {
+    return "transport: tcp" + (nio ? " nio" : "");
+  }
+}
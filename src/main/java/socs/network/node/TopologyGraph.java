@@ -0,0 +1,172 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The links of a link state database as a compact graph over int router numbers, so that SPF
+ * and other walks over the topology neither hash simulated ips nor follow linked lists per link.
+ * <p/>
+ * Routers are numbered densely in the order they are first seen, either as the originator of an
+ * LSA or as the target of a link, and keep their number for good. The links announced by router
+ * r are stored in compressed sparse row form: they are target[offset[r]] .. target[offset[r+1]-1]
+ * with the matching entries of weight. Replacing the LSA of one router only rewrites its row; if
+ * the number of links changed, the rows after it are shifted with a single array copy.
+ * <p/>
+ * The reverse links (who announces a link to r) are kept per router as well, for walks that need
+ * to go backwards, such as the incremental SPF.
+ */
+class TopologyGraph {
+
+  // router number -> simulated ip; append-only, so an old array stays valid for its first entries
+  String[] ids = new String[16];
+  // simulated ip -> router number; entries are never removed, so readers may look up at any time
+  final Map<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+  // whether the router's own LSA is in the database; links to routers without one are ignored
+  boolean[] hasLsa = new boolean[16];
+  int count;
+
+  // forward links in compressed sparse row form, offset has count+1 entries
+  int[] offset = new int[17];
+  int[] target = new int[64];
+  int[] weight = new int[64];
+
+  // reverse links: inFrom[r][0 .. inCount[r]-1] announce a link to r with the matching inWeight
+  int[][] inFrom = new int[16][];
+  int[][] inWeight = new int[16][];
+  int[] inCount = new int[16];
+
+  /**
+   * a graph of all the LSAs of a database, the given router being number 0
+   */
+  static TopologyGraph build(Map<String, LSA> store, String rootIP) {
+    TopologyGraph graph = new TopologyGraph();
+    graph.intern(rootIP);
+    for (LSA lsa : store.values()) {
+      graph.setLinks(lsa);
+    }
+    return graph;
+  }
+
+  int size() {
+    return count;
+  }
+
+  int edges() {
+    return offset[count];
+  }
+
+  /**
+   * the number of the given router, numbering it with no links if it is new
+   */
+  int intern(String ip) {
+    Integer id = index.get(ip);
+    if (id != null) {
+      return id;
+    }
+    if (count == ids.length) {
+      grow(2 * count);
+    }
+    int r = count;
+    ids[r] = ip;
+    offset[r + 1] = offset[r];
+    count++;
+    index.put(ip, r);
+    return r;
+  }
+
+  /**
+   * replaces the links of the router that originated the LSA with the ones it announces
+   *
+   * @return the number of the router
+   */
+  int setLinks(LSA lsa) {
+    int r = intern(lsa.linkStateID);
+    // number every target first, which may add empty rows after r
+    int links = 0;
+    for (LinkDescription l : lsa.links) {
+      if (l.linkID != null) {
+        intern(l.linkID);
+        links++;
+      }
+    }
+
+    for (int e = offset[r]; e < offset[r + 1]; e++) {
+      removeIn(target[e], r);
+    }
+    resizeRow(r, links);
+    int e = offset[r];
+    for (LinkDescription l : lsa.links) {
+      if (l.linkID != null) {
+        int t = index.get(l.linkID);
+        target[e] = t;
+        weight[e] = l.tosMetrics;
+        addIn(t, r, l.tosMetrics);
+        e++;
+      }
+    }
+    hasLsa[r] = true;
+    return r;
+  }
+
+  /**
+   * makes room for exactly the given number of links in the row of r
+   */
+  private void resizeRow(int r, int links) {
+    int delta = links - (offset[r + 1] - offset[r]);
+    if (delta == 0) {
+      return;
+    }
+    int total = offset[count];
+    if (total + delta > target.length) {
+      int capacity = Math.max(2 * target.length, total + delta);
+      target = Arrays.copyOf(target, capacity);
+      weight = Arrays.copyOf(weight, capacity);
+    }
+    int tail = offset[r + 1];
+    System.arraycopy(target, tail, target, tail + delta, total - tail);
+    System.arraycopy(weight, tail, weight, tail + delta, total - tail);
+    for (int i = r + 1; i <= count; i++) {
+      offset[i] += delta;
+    }
+  }
+
+  private void addIn(int to, int from, int w) {
+    int n = inCount[to];
+    if (inFrom[to] == null) {
+      inFrom[to] = new int[4];
+      inWeight[to] = new int[4];
+    } else if (n == inFrom[to].length) {
+      inFrom[to] = Arrays.copyOf(inFrom[to], 2 * n);
+      inWeight[to] = Arrays.copyOf(inWeight[to], 2 * n);
+    }
+    inFrom[to][n] = from;
+    inWeight[to][n] = w;
+    inCount[to] = n + 1;
+  }
+
+  private void removeIn(int to, int from) {
+    int n = inCount[to];
+    for (int i = 0; i < n; i++) {
+      if (inFrom[to][i] == from) {
+        inFrom[to][i] = inFrom[to][n - 1];
+        inWeight[to][i] = inWeight[to][n - 1];
+        inCount[to] = n - 1;
+        return;
+      }
+    }
+  }
+
+  private void grow(int capacity) {
+    ids = Arrays.copyOf(ids, capacity);
+    hasLsa = Arrays.copyOf(hasLsa, capacity);
+    offset = Arrays.copyOf(offset, capacity + 1);
+    inFrom = Arrays.copyOf(inFrom, capacity);
+    inWeight = Arrays.copyOf(inWeight, capacity);
+    inCount = Arrays.copyOf(inCount, capacity);
+  }
+}
@@ -0,0 +1,67 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+
+/**
+ * How a router reaches its neighbors: opens connections to other routers, identified by their
+ * process ip and port, and accepts the connections other routers open to it.
+ * <ul>
+ * <li>{@link TcpTransport}: real sockets, one process per router (the original behaviour)</li>
+ * <li>{@link MemoryTransport}: queues between routers living in the same JVM, so thousands of
+ * them can be simulated without binding a single port</li>
+ * </ul>
+ * Both carry the same packets in both directions, so the rest of the router does not know which
+ * one it runs on.
+ */
+public interface Transport {
+
+  /**
+   * One connection between two routers. The side that opened it sends requests and receives
+   * the replies, the accepting side receives the requests and sends the replies.
+   */
+  interface Connection {
+
+    void send(SOSPFPacket packet) throws IOException;
+
+    /**
+     * blocks until a packet arrives
+     *
+     * @throws java.net.SocketTimeoutException if none arrived within the timeout
+     * @throws IOException                      if the connection is closed, including by the
+     *                                          other side
+     */
+    SOSPFPacket receive(int timeoutMs) throws IOException;
+
+    /**
+     * true if the other side is known to have closed the connection, checked by the side that
+     * opened it before reusing it; a packet written to a peer that is gone may look sent
+     */
+    boolean isBroken();
+
+    void close();
+  }
+
+  /**
+   * opens a connection to the router with the given process ip and port
+   */
+  Connection connect(RouterDescription remote) throws IOException;
+
+  /**
+   * starts accepting connections to the router's process ip and port; every packet received on
+   * them is passed to the router's {@link PacketHandler}
+   */
+  void listen(Router router) throws IOException;
+
+  /**
+   * stops accepting connections to the router's process ip and port, so that another router
+   * can listen there
+   */
+  void close(Router router);
+
+  /**
+   * name of the transport and what it has carried so far
+   */
+  String toString();
+}
@@ -15,6 +15,13 @@ public class Configuration {
     _config = ConfigFactory.parseFile(new File(path));
   }
 
+  /**
+   * an empty configuration, to be filled with {@link #addEntry}
+   */
+  public Configuration() {
+    _config = ConfigFactory.empty();
+  }
+
   public String getString(String key) {
     return _config.getString(key);
   }
@@ -35,6 +42,26 @@ public class Configuration {
     return _config.getDouble(key);
   }
 
+  public boolean hasPath(String key) {
+    return _config.hasPath(key);
+  }
+
+  public int getInt(String key, int defaultValue) {
+    return _config.hasPath(key) ? _config.getInt(key) : defaultValue;
+  }
+
+  public long getLong(String key, long defaultValue) {
+    return _config.hasPath(key) ? _config.getLong(key) : defaultValue;
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    return _config.hasPath(key) ? _config.getBoolean(key) : defaultValue;
+  }
+
+  public String getString(String key, String defaultValue) {
+    return _config.hasPath(key) ? _config.getString(key) : defaultValue;
+  }
+
   public void addEntry(String key, String value) {
     _config = _config.withValue(key, ConfigValueFactory.fromAnyRef(value));
   }
@@ -0,0 +1,99 @@
+package socs.network.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts recorded values in buckets of logarithmically growing width, like an HDR histogram
+ * with two significant digits: values below 16 get a bucket each, above that every power of two
+ * is split into 16 buckets, so a percentile is off by at most 1/16 of its value.
+ * <p/>
+ * Recording is lock free (one increment of a bucket, a sum and a max), so any thread can record
+ * on the hot path; reading walks the buckets and may miss values recorded meanwhile.
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 4;
+
+  // 16 buckets below 16, then 16 per power of two up to 2^62
+  private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+    public long applyAsLong(long left, long right) {
+      return Math.max(left, right);
+    }
+  }, 0);
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * the highest value falling into the given bucket
+   */
+  private static long highestOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  /**
+   * records a value; negative values count as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    buckets.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = count.sum();
+    return (n == 0) ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * the value below which the given percentage of the recorded values fall, 0 if none was
+   * recorded
+   */
+  public long percentile(double percent) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(highestOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return "count=" + count() + " mean=" + Math.round(mean()) + " p50=" + percentile(50)
+        + " p99=" + percentile(99) + " max=" + max();
+  }
+}
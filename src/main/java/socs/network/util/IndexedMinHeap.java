@@ -0,0 +1,126 @@
+package socs.network.util;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap over the integers 0..capacity-1 keyed by an int priority. Each item's position
+ * in the heap is tracked, so {@link #decreaseKey} runs in O(log n) instead of requiring a search.
+ */
+public class IndexedMinHeap {
+
+  private int[] heap;   // heap slot -> item
+  private int[] pos;    // item -> heap slot, -1 if the item is not in the heap
+  private int[] key;    // item -> priority
+  private int size;
+
+  public IndexedMinHeap(int capacity) {
+    heap = new int[capacity];
+    pos = new int[capacity];
+    key = new int[capacity];
+    Arrays.fill(pos, -1);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(int item) {
+    return pos[item] != -1;
+  }
+
+  public int keyOf(int item) {
+    return key[item];
+  }
+
+  public void insert(int item, int priority) {
+    if (pos[item] != -1) {
+      throw new IllegalArgumentException("item " + item + " is already in the heap");
+    }
+    key[item] = priority;
+    heap[size] = item;
+    pos[item] = size;
+    siftUp(size++);
+  }
+
+  /**
+   * lowers the priority of an item already in the heap
+   */
+  public void decreaseKey(int item, int priority) {
+    if (priority > key[item]) {
+      throw new IllegalArgumentException("new priority " + priority + " is larger than " + key[item]);
+    }
+    key[item] = priority;
+    siftUp(pos[item]);
+  }
+
+  /**
+   * removes and returns the item with the smallest priority
+   */
+  public int poll() {
+    if (size == 0) {
+      throw new IllegalStateException("heap is empty");
+    }
+    int top = heap[0];
+    pos[top] = -1;
+    size--;
+    if (size > 0) {
+      int last = heap[size];
+      heap[0] = last;
+      pos[last] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+  /**
+   * empties the heap; only touches the items that are still in it
+   */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      pos[heap[i]] = -1;
+    }
+    size = 0;
+  }
+
+  private void siftUp(int slot) {
+    int item = heap[slot];
+    int k = key[item];
+    while (slot > 0) {
+      int parentSlot = (slot - 1) >>> 1;
+      int parent = heap[parentSlot];
+      if (key[parent] <= k) {
+        break;
+      }
+      heap[slot] = parent;
+      pos[parent] = slot;
+      slot = parentSlot;
+    }
+    heap[slot] = item;
+    pos[item] = slot;
+  }
+
+  private void siftDown(int slot) {
+    int item = heap[slot];
+    int k = key[item];
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = 2 * slot + 1;
+      int right = child + 1;
+      if (right < size && key[heap[right]] < key[heap[child]]) {
+        child = right;
+      }
+      if (k <= key[heap[child]]) {
+        break;
+      }
+      heap[slot] = heap[child];
+      pos[heap[slot]] = slot;
+      slot = child;
+    }
+    heap[slot] = item;
+    pos[item] = slot;
+  }
+}
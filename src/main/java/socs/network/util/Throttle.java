@@ -0,0 +1,104 @@
+package socs.network.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs an action at most once per hold interval however often it is requested, backing off
+ * exponentially while requests keep coming.
+ * <p/>
+ * A request runs the action after the initial delay, unless the last run is less than the current
+ * hold interval ago: then it waits for the hold interval to pass, and the hold interval doubles,
+ * up to the maximum wait. A request that comes while a run is already pending is folded into it.
+ * Once no run was needed for a whole maximum wait, the hold interval starts over.
+ */
+public class Throttle {
+
+  private static final Logger log = LoggerFactory.getLogger(Throttle.class);
+
+  private final ScheduledExecutorService timers;
+  private final Runnable action;
+  private final long initialDelayMs;
+  private final long holdMs;
+  private final long maxWaitMs;
+
+  private long currentHoldMs;
+  private long lastRun = -1;
+  private boolean pending;
+
+  public final AtomicLong requests = new AtomicLong();
+  public final AtomicLong runs = new AtomicLong();
+  public final AtomicLong suppressed = new AtomicLong();
+
+  public Throttle(ScheduledExecutorService timers, long initialDelayMs, long holdMs, long maxWaitMs, Runnable action) {
+    this.timers = timers;
+    this.action = action;
+    this.initialDelayMs = Math.max(0, initialDelayMs);
+    this.holdMs = Math.max(0, holdMs);
+    this.maxWaitMs = Math.max(this.holdMs, maxWaitMs);
+    this.currentHoldMs = this.holdMs;
+  }
+
+  /**
+   * asks for the action to run; returns right away, the action runs on the timer thread
+   */
+  public void request() {
+    requests.incrementAndGet();
+    long delay;
+    synchronized (this) {
+      if (pending) {
+        suppressed.incrementAndGet();
+        return;
+      }
+      pending = true;
+      long now = System.currentTimeMillis();
+      if (lastRun >= 0 && now - lastRun >= maxWaitMs) {
+        currentHoldMs = holdMs;
+      }
+      if (lastRun < 0 || now - lastRun >= currentHoldMs) {
+        delay = initialDelayMs;
+      } else {
+        // still inside the hold interval: wait for it and back off
+        delay = Math.max(initialDelayMs, lastRun + currentHoldMs - now);
+        currentHoldMs = Math.min(2 * currentHoldMs, maxWaitMs);
+      }
+    }
+    timers.schedule(new Runnable() {
+      public void run() {
+        runPending();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * runs a pending action right away on the calling thread, e.g. before shutting down
+   */
+  public void flush() {
+    runPending();
+  }
+
+  private void runPending() {
+    synchronized (this) {
+      if (!pending) {
+        return;
+      }
+      pending = false;
+      lastRun = System.currentTimeMillis();
+    }
+    runs.incrementAndGet();
+    try {
+      action.run();
+    } catch (RuntimeException e) {
+      log.error("throttled action failed error={}", e.toString());
+    }
+  }
+
+  public synchronized String toString() {
+    return "requests=" + requests.get() + " runs=" + runs.get() + " suppressed=" + suppressed.get()
+        + " hold=" + currentHoldMs + "ms";
+  }
+}
@@ -0,0 +1,200 @@
+package socs.network.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timer wheel: one thread runs any number of timers at a resolution of one tick.
+ * <p/>
+ * The wheel is a ring of buckets, each holding the timers that expire when the wheel's hand
+ * reaches it; a timer further away than one turn also counts the turns left. Scheduling and
+ * cancelling cost O(1) whatever the number of timers, and each tick only looks at one bucket,
+ * so thousands of neighbor timers share a single thread. Timers fire up to one tick late, and
+ * their tasks run on the wheel thread, so they must be short and must not block.
+ */
+public class TimerWheel {
+
+  private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+  /**
+   * a scheduled task, which may be cancelled until it runs
+   */
+  public static final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private long rounds;
+    private volatile boolean cancelled;
+
+    // bucket list, only touched by the wheel thread
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * keeps the task from running; has no effect once it ran
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout t) {
+      t.prev = tail;
+      if (tail == null) {
+        head = t;
+      } else {
+        tail.next = t;
+      }
+      tail = t;
+    }
+
+    void remove(Timeout t) {
+      if (t.prev == null) {
+        head = t.next;
+      } else {
+        t.prev.next = t.next;
+      }
+      if (t.next == null) {
+        tail = t.prev;
+      } else {
+        t.next.prev = t.prev;
+      }
+      t.next = t.prev = null;
+    }
+  }
+
+  private final long tickMs;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long start;
+
+  // timers scheduled by other threads, moved into the wheel on the next tick
+  private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+  private final Thread worker;
+  private volatile boolean stopped;
+  private long tick;
+
+  public final AtomicLong scheduled = new AtomicLong();
+  public final AtomicLong expired = new AtomicLong();
+  public final AtomicLong cancelled = new AtomicLong();
+
+  /**
+   * @param tickMs    resolution of the timers
+   * @param wheelSize number of buckets, rounded up to a power of two; one turn of the wheel
+   *                  covers tickMs * wheelSize
+   */
+  public TimerWheel(String name, long tickMs, int wheelSize) {
+    this.tickMs = Math.max(1, tickMs);
+    int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+    wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    mask = size - 1;
+    start = System.nanoTime();
+    worker = new Thread(new Runnable() {
+      public void run() {
+        work();
+      }
+    }, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * runs the task on the wheel thread after the delay
+   */
+  public Timeout schedule(Runnable task, long delayMs) {
+    Timeout t = new Timeout(task, elapsedMs() + Math.max(0, delayMs));
+    scheduled.incrementAndGet();
+    added.add(t);
+    return t;
+  }
+
+  /**
+   * stops the wheel; pending timers never run
+   */
+  public void stop() {
+    stopped = true;
+    worker.interrupt();
+  }
+
+  private long elapsedMs() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private void work() {
+    while (!stopped) {
+      // sleep until the end of the current tick
+      long sleepMs = (tick + 1) * tickMs - elapsedMs();
+      if (sleepMs > 0) {
+        try {
+          Thread.sleep(sleepMs);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+      transferAdded();
+      expire(wheel[(int) (tick & mask)]);
+      tick++;
+    }
+  }
+
+  private void transferAdded() {
+    Timeout t;
+    while ((t = added.poll()) != null) {
+      if (t.cancelled) {
+        cancelled.incrementAndGet();
+        continue;
+      }
+      // a timer already due goes in the current bucket
+      long due = Math.max(tick, t.deadline / tickMs);
+      t.rounds = (due - tick) / wheel.length;
+      wheel[(int) (due & mask)].add(t);
+    }
+  }
+
+  private void expire(Bucket bucket) {
+    Timeout t = bucket.head;
+    while (t != null) {
+      Timeout next = t.next;
+      if (t.cancelled) {
+        bucket.remove(t);
+        cancelled.incrementAndGet();
+      } else if (t.rounds <= 0) {
+        bucket.remove(t);
+        expired.incrementAndGet();
+        try {
+          t.task.run();
+        } catch (RuntimeException e) {
+          log.error("timer task failed error={}", e.toString());
+        }
+      } else {
+        t.rounds--;
+      }
+      t = next;
+    }
+  }
+
+  public String toString() {
+    return "timers: scheduled=" + scheduled.get() + " expired=" + expired.get() + " cancelled=" + cancelled.get()
+        + " tick=" + tickMs + "ms buckets=" + wheel.length;
+  }
+}
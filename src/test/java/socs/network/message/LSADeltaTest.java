@@ -0,0 +1,153 @@
+package socs.network.message;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applying the delta between two consecutive LSAs to the first must give back the second, and
+ * no delta may be made where it would not be both correct and smaller.
+ */
+public class LSADeltaTest {
+
+  private static LinkDescription link(String linkID, int portNum, int tosMetrics) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = portNum;
+    ld.tosMetrics = tosMetrics;
+    return ld;
+  }
+
+  private static LSA lsa(int seq, int links) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = "192.168.1.1";
+    lsa.lsaSeqNumber = seq;
+    lsa.links.add(link("192.168.1.1", -1, 0));
+    for (int i = 0; i < links; i++) {
+      lsa.links.add(link("10.0.0." + i, i, 1 + i));
+    }
+    return lsa;
+  }
+
+  private static LSA next(LSA base) {
+    LSA next = new LSA();
+    next.linkStateID = base.linkStateID;
+    next.lsaSeqNumber = base.lsaSeqNumber + 1;
+    for (LinkDescription ld : base.links) {
+      next.links.add(link(ld.linkID, ld.portNum, ld.tosMetrics));
+    }
+    return next;
+  }
+
+  /**
+   * the links of the LSA in a form that does not depend on their order
+   */
+  private static String links(LSA lsa) {
+    TreeSet<String> links = new TreeSet<String>();
+    for (LinkDescription ld : lsa.links) {
+      links.add(ld.toString());
+    }
+    return links.toString();
+  }
+
+  private static void assertRoundTrip(LSA base, LSA next) {
+    LSADelta delta = LSADelta.between(base, next);
+    assertTrue(delta != null);
+    LSA rebuilt = delta.applyTo(base);
+    assertEquals(next.linkStateID, rebuilt.linkStateID);
+    assertEquals(next.lsaSeqNumber, rebuilt.lsaSeqNumber);
+    assertEquals(links(next), links(rebuilt));
+    assertSame(delta, rebuilt.delta);
+  }
+
+  @Test
+  public void changedLinkRoundTrips() {
+    LSA base = lsa(4, 6);
+    LSA next = next(base);
+    next.links.get(3).tosMetrics = 42;
+    assertRoundTrip(base, next);
+    assertEquals(1, LSADelta.between(base, next).changed.size());
+  }
+
+  @Test
+  public void addedAndRemovedLinksRoundTrip() {
+    LSA base = lsa(4, 6);
+    LSA next = next(base);
+    next.links.remove(2);
+    next.links.add(link("10.0.1.1", 7, 9));
+    assertRoundTrip(base, next);
+    LSADelta delta = LSADelta.between(base, next);
+    assertEquals(1, delta.changed.size());
+    assertEquals(1, delta.removed.size());
+  }
+
+  @Test
+  public void portChangeIsAChange() {
+    LSA base = lsa(0, 4);
+    LSA next = next(base);
+    next.links.get(1).portNum = 3;
+    assertRoundTrip(base, next);
+  }
+
+  @Test
+  public void randomChangesRoundTrip() {
+    Random random = new Random(14);
+    LSA base = lsa(0, 20);
+    int made = 0;
+    for (int step = 0; step < 500; step++) {
+      LSA next = next(base);
+      int change = random.nextInt(3);
+      if (change == 0 && next.links.size() > 1) {
+        next.links.remove(1 + random.nextInt(next.links.size() - 1));
+      } else if (change == 1 && next.links.size() > 1) {
+        next.links.get(1 + random.nextInt(next.links.size() - 1)).tosMetrics = random.nextInt(100);
+      } else {
+        next.links.add(link("10.1." + step / 256 + "." + step % 256, random.nextInt(8), random.nextInt(100)));
+      }
+      LSADelta delta = LSADelta.between(base, next);
+      if (delta != null) {
+        assertRoundTrip(base, next);
+        made++;
+      }
+      base = next;
+    }
+    assertTrue(made > 400);
+  }
+
+  @Test
+  public void noDeltaWhereItWouldNotHelp() {
+    LSA base = lsa(4, 3);
+    // not consecutive
+    LSA skipped = next(next(base));
+    assertNull(LSADelta.between(base, skipped));
+    // no base, or the placeholder before the first origination
+    assertNull(LSADelta.between(null, next(base)));
+    LSA placeholder = lsa(Integer.MIN_VALUE, 3);
+    assertNull(LSADelta.between(placeholder, next(placeholder)));
+    // every link changed: the full LSA is as small
+    LSA all = next(base);
+    for (LinkDescription ld : all.links) {
+      ld.tosMetrics += 10;
+    }
+    assertNull(LSADelta.between(base, all));
+    // the same router in two links cannot be told apart
+    LSA twice = next(base);
+    twice.links.add(link("10.0.0.0", 9, 9));
+    assertNull(LSADelta.between(base, twice));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wrongBaseIsRefused() {
+    LSA base = lsa(4, 6);
+    LSA next = next(base);
+    next.links.get(1).tosMetrics = 42;
+    LSADelta delta = LSADelta.between(base, next);
+    delta.applyTo(next);
+  }
+}
@@ -0,0 +1,243 @@
+package socs.network.message;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Every packet type must come back from a frame as it went in, and a frame that is not one this
+ * version wrote must be refused rather than decoded into garbage.
+ */
+public class PacketCodecTest {
+
+  private static LinkDescription link(String linkID, int portNum, int tosMetrics) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = portNum;
+    ld.tosMetrics = tosMetrics;
+    return ld;
+  }
+
+  private static LSA lsa(String linkStateID, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = linkStateID;
+    lsa.lsaSeqNumber = seq;
+    lsa.links.add(link(linkStateID, -1, 0));
+    lsa.links.add(link("192.168.1.2", 20000, 3));
+    lsa.links.add(link("192.168.1.3", Short.MIN_VALUE, 7));
+    return lsa;
+  }
+
+  private static SOSPFPacket packet(int sospfType) {
+    SOSPFPacket packet = new SOSPFPacket("127.0.0.1", (short) 40001, "192.168.1.1", "192.168.1.2",
+        (short) sospfType, "192.168.1.1", "192.168.1.2");
+    switch (sospfType) {
+      case 1:
+        packet.lsaArray = new Vector<LSA>();
+        packet.lsaArray.add(lsa("192.168.1.1", 4));
+        packet.lsaArray.add(lsa("10.0.0.1", Integer.MIN_VALUE));
+        break;
+      case 5:
+      case 6:
+        packet.lsaHeaders = new Vector<LSAHeader>();
+        packet.lsaHeaders.add(new LSAHeader("192.168.1.1", 4));
+        packet.lsaHeaders.add(new LSAHeader("10.0.0.1", -3));
+        break;
+      case 7:
+        LSADelta delta = new LSADelta();
+        delta.linkStateID = "192.168.1.1";
+        delta.baseSeqNumber = 4;
+        delta.lsaSeqNumber = 5;
+        delta.changed.add(link("192.168.1.4", 30000, 9));
+        delta.removed.add("192.168.1.3");
+        packet.deltaArray = new Vector<LSADelta>();
+        packet.deltaArray.add(delta);
+        break;
+      case 0:
+      case 2:
+      case 4:
+        packet.weight = 42 + sospfType;
+        break;
+      default:
+        break;
+    }
+    return packet;
+  }
+
+  private static SOSPFPacket roundTrip(SOSPFPacket packet) throws IOException {
+    return PacketCodec.read(new DataInputStream(new ByteArrayInputStream(PacketCodec.encode(packet))));
+  }
+
+  private static void assertLinksEqual(Iterable<LinkDescription> expected, Iterable<LinkDescription> actual) {
+    assertEquals(String.valueOf(expected), String.valueOf(actual));
+  }
+
+  private static void assertPacketEquals(SOSPFPacket expected, SOSPFPacket actual) {
+    assertEquals(expected.sospfType, actual.sospfType);
+    assertEquals(expected.srcProcessIP, actual.srcProcessIP);
+    assertEquals(expected.srcProcessPort, actual.srcProcessPort);
+    assertEquals(expected.srcIP, actual.srcIP);
+    assertEquals(expected.dstIP, actual.dstIP);
+    assertEquals(expected.routerID, actual.routerID);
+    assertEquals(expected.neighborID, actual.neighborID);
+    assertEquals(expected.weight, actual.weight);
+
+    if (expected.lsaArray == null) {
+      assertNull(actual.lsaArray);
+    } else {
+      assertEquals(expected.lsaArray.size(), actual.lsaArray.size());
+      for (int i = 0; i < expected.lsaArray.size(); i++) {
+        LSA e = expected.lsaArray.get(i);
+        LSA a = actual.lsaArray.get(i);
+        assertEquals(e.linkStateID, a.linkStateID);
+        assertEquals(e.lsaSeqNumber, a.lsaSeqNumber);
+        assertLinksEqual(e.links, a.links);
+      }
+    }
+
+    if (expected.lsaHeaders == null) {
+      assertNull(actual.lsaHeaders);
+    } else {
+      assertEquals(expected.lsaHeaders.size(), actual.lsaHeaders.size());
+      for (int i = 0; i < expected.lsaHeaders.size(); i++) {
+        assertEquals(expected.lsaHeaders.get(i).linkStateID, actual.lsaHeaders.get(i).linkStateID);
+        assertEquals(expected.lsaHeaders.get(i).lsaSeqNumber, actual.lsaHeaders.get(i).lsaSeqNumber);
+      }
+    }
+
+    if (expected.deltaArray == null) {
+      assertNull(actual.deltaArray);
+    } else {
+      assertEquals(expected.deltaArray.size(), actual.deltaArray.size());
+      for (int i = 0; i < expected.deltaArray.size(); i++) {
+        LSADelta e = expected.deltaArray.get(i);
+        LSADelta a = actual.deltaArray.get(i);
+        assertEquals(e.linkStateID, a.linkStateID);
+        assertEquals(e.baseSeqNumber, a.baseSeqNumber);
+        assertEquals(e.lsaSeqNumber, a.lsaSeqNumber);
+        assertLinksEqual(e.changed, a.changed);
+        assertEquals(e.removed, a.removed);
+      }
+    }
+  }
+
+  @Test
+  public void everyTypeRoundTrips() throws IOException {
+    for (int type = 0; type <= 8; type++) {
+      SOSPFPacket packet = packet(type);
+      assertPacketEquals(packet, roundTrip(packet));
+    }
+  }
+
+  @Test
+  public void emptyArraysRoundTrip() throws IOException {
+    SOSPFPacket update = packet(1);
+    update.lsaArray = new Vector<LSA>();
+    assertPacketEquals(update, roundTrip(update));
+
+    SOSPFPacket dbd = packet(5);
+    dbd.lsaHeaders = new Vector<LSAHeader>();
+    assertPacketEquals(dbd, roundTrip(dbd));
+
+    SOSPFPacket deltas = packet(7);
+    deltas.deltaArray = null;
+    assertEquals(0, roundTrip(deltas).deltaArray.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownTypeIsNotEncoded() {
+    PacketCodec.encode(packet(9));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void portOutOfShortRangeIsNotEncoded() {
+    SOSPFPacket packet = packet(1);
+    packet.lsaArray.get(0).links.add(link("192.168.1.9", Short.MAX_VALUE + 1, 1));
+    PacketCodec.encode(packet);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void deltaPortOutOfShortRangeIsNotEncoded() {
+    SOSPFPacket packet = packet(7);
+    packet.deltaArray.get(0).changed.add(link("192.168.1.9", Short.MIN_VALUE - 1, 1));
+    PacketCodec.encode(packet);
+  }
+
+  private static ByteBuffer body(byte[] frame) {
+    return ByteBuffer.wrap(frame, 4, frame.length - 4).slice();
+  }
+
+  private static void assertCorrupted(ByteBuffer body) throws IOException {
+    try {
+      PacketCodec.decode(body);
+      fail("decoded a malformed frame");
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  @Test
+  public void wrongVersionIsRejected() throws IOException {
+    byte[] frame = PacketCodec.encode(packet(0));
+    frame[4] = PacketCodec.VERSION - 1;
+    assertCorrupted(body(frame));
+    frame[4] = PacketCodec.VERSION + 1;
+    assertCorrupted(body(frame));
+  }
+
+  @Test
+  public void unknownTypeIsRejected() throws IOException {
+    byte[] frame = PacketCodec.encode(packet(0));
+    ByteBuffer.wrap(frame).putShort(5, (short) 9);
+    assertCorrupted(body(frame));
+  }
+
+  @Test
+  public void truncatedFrameIsRejected() throws IOException {
+    for (int type = 0; type <= 8; type++) {
+      byte[] frame = PacketCodec.encode(packet(type));
+      // every prefix of the body short of the whole is missing something the header promised
+      for (int length = 0; length < frame.length - 4; length++) {
+        assertCorrupted(ByteBuffer.wrap(Arrays.copyOfRange(frame, 4, 4 + length)));
+      }
+    }
+  }
+
+  @Test
+  public void invalidCountIsRejected() throws IOException {
+    byte[] frame = PacketCodec.encode(packet(1));
+    // the LSA count follows the 25 byte header
+    ByteBuffer.wrap(frame).putInt(4 + 25, -1);
+    assertCorrupted(body(frame));
+  }
+
+  @Test
+  public void badLengthPrefixIsRejected() throws IOException {
+    for (int length : new int[]{0, -1, PacketCodec.MAX_FRAME_LENGTH + 1, Integer.MAX_VALUE}) {
+      byte[] frame = PacketCodec.encode(packet(8));
+      ByteBuffer.wrap(frame).putInt(0, length);
+      try {
+        PacketCodec.read(new DataInputStream(new ByteArrayInputStream(frame)));
+        fail("read a frame of length " + length);
+      } catch (StreamCorruptedException expected) {
+      }
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void lengthPrefixPastEndOfStreamIsEof() throws IOException {
+    byte[] frame = PacketCodec.encode(packet(8));
+    ByteBuffer.wrap(frame).putInt(0, frame.length);
+    PacketCodec.read(new DataInputStream(new ByteArrayInputStream(frame)));
+  }
+}
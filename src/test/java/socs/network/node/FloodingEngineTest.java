@@ -0,0 +1,284 @@
+package socs.network.node;
+
+import org.junit.After;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.SOSPFPacket;
+import socs.network.util.Configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every LSA must reach each neighbor exactly once: never back to the neighbor it came from, never
+ * again when it arrives through another neighbor, and never twice when several threads flood it.
+ * Within the batch window, the LSAs for a neighbor share one LSAUPDATE.
+ */
+public class FloodingEngineTest {
+
+  private static final AtomicInteger routers = new AtomicInteger();
+
+  private static final String[] NEIGHBORS = {"192.168.2.1", "192.168.2.2", "192.168.2.3"};
+
+  /**
+   * records what is sent to each neighbor instead of sending it
+   */
+  private static class RecordingTransport implements Transport {
+    final ConcurrentHashMap<String, List<SOSPFPacket>> sent = new ConcurrentHashMap<String, List<SOSPFPacket>>();
+
+    public Connection connect(final RouterDescription remote) {
+      sent.putIfAbsent(remote.simulatedIPAddress, new CopyOnWriteArrayList<SOSPFPacket>());
+      final List<SOSPFPacket> packets = sent.get(remote.simulatedIPAddress);
+      return new Connection() {
+        public void send(SOSPFPacket packet) {
+          packets.add(packet);
+        }
+
+        public SOSPFPacket receive(int timeoutMs) throws IOException {
+          throw new IOException("nothing to receive");
+        }
+
+        public boolean isBroken() {
+          return false;
+        }
+
+        public void close() {
+        }
+      };
+    }
+
+    public void listen(Router router) {
+    }
+
+    public void close(Router router) {
+    }
+
+    /**
+     * the LSAs of the given origin the neighbor was sent, in order
+     */
+    List<Integer> lsas(String neighbor, String origin) {
+      List<Integer> seqs = new ArrayList<Integer>();
+      List<SOSPFPacket> packets = sent.get(neighbor);
+      if (packets == null) {
+        return seqs;
+      }
+      for (SOSPFPacket packet : packets) {
+        if (packet.sospfType == 1) {
+          for (LSA lsa : packet.lsaArray) {
+            if (lsa.linkStateID.equals(origin)) {
+              seqs.add(lsa.lsaSeqNumber);
+            }
+          }
+        }
+      }
+      return seqs;
+    }
+
+    int packets(String neighbor) {
+      List<SOSPFPacket> packets = sent.get(neighbor);
+      return (packets == null) ? 0 : packets.size();
+    }
+  }
+
+  private final RecordingTransport transport = new RecordingTransport();
+  private Router router;
+
+  /**
+   * a router linked to every one of the neighbors, flooding with the given batch window
+   */
+  private Router router(int batchWindowMs, int batchMax) {
+    Configuration config = new Configuration();
+    config.addEntry("socs.network.router.ip", "192.168.1." + routers.incrementAndGet());
+    config.addEntry("socs.network.router.portNumber", "40000");
+    config.addEntry("socs.network.router.lsaBatchWindowMs", String.valueOf(batchWindowMs));
+    config.addEntry("socs.network.router.lsaBatchMax", String.valueOf(batchMax));
+    router = new Router(config, transport);
+    for (int i = 0; i < NEIGHBORS.length; i++) {
+      RouterDescription remote = new RouterDescription("127.0.0.1", (short) (40001 + i), NEIGHBORS[i]);
+      assertTrue(router.ports.attach(new Link(router.rd, remote, 1)) >= 0);
+    }
+    return router;
+  }
+
+  @After
+  public void quit() {
+    if (router != null) {
+      router.channels.closeAll();
+    }
+  }
+
+  private static LSA lsa(String origin, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = origin;
+    lsa.lsaSeqNumber = seq;
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = origin;
+    ld.portNum = -1;
+    lsa.links.add(ld);
+    return lsa;
+  }
+
+  /**
+   * waits until everything posted so far was handed to the transport
+   */
+  private void sent() {
+    router.flooding.flushAll();
+    router.channels.closeAll();
+  }
+
+  @Test
+  public void floodReachesEachNeighborOnce() {
+    Router router = router(0, 64);
+    LSA lsa = lsa("10.0.0.1", 1);
+    router.flooding.flood(lsa, null);
+    router.flooding.flood(lsa, null);
+    sent();
+    for (String neighbor : NEIGHBORS) {
+      assertEquals(1, transport.lsas(neighbor, "10.0.0.1").size());
+    }
+    assertEquals(NEIGHBORS.length, router.metrics.getLsasFlooded());
+    assertEquals(NEIGHBORS.length, router.metrics.getFloodsSuppressed());
+  }
+
+  @Test
+  public void lsaNeverGoesBackOrAroundAgain() {
+    Router router = router(0, 64);
+    LSA lsa = lsa("10.0.0.1", 1);
+    assertTrue(router.flooding.receive(lsa, NEIGHBORS[0]));
+    router.flooding.flood(lsa, NEIGHBORS[0]);
+
+    // the same LSA comes in again through another neighbor: a duplicate, flooded nowhere
+    LSA again = lsa("10.0.0.1", 1);
+    assertFalse(router.flooding.receive(again, NEIGHBORS[1]));
+    router.flooding.flood(again, NEIGHBORS[1]);
+    sent();
+
+    assertEquals(0, transport.lsas(NEIGHBORS[0], "10.0.0.1").size());
+    assertEquals(1, transport.lsas(NEIGHBORS[1], "10.0.0.1").size());
+    assertEquals(1, transport.lsas(NEIGHBORS[2], "10.0.0.1").size());
+    assertEquals(1, router.metrics.getLsasStale());
+  }
+
+  @Test
+  public void onlyNewerLsasAreFloodedAgain() {
+    Router router = router(0, 64);
+    router.flooding.flood(lsa("10.0.0.1", 2), null);
+    router.flooding.flood(lsa("10.0.0.1", 1), null);
+    router.flooding.flood(lsa("10.0.0.1", 3), null);
+    sent();
+    for (String neighbor : NEIGHBORS) {
+      List<Integer> seqs = transport.lsas(neighbor, "10.0.0.1");
+      assertEquals(2, seqs.size());
+      assertEquals(2, (int) seqs.get(0));
+      assertEquals(3, (int) seqs.get(1));
+    }
+  }
+
+  @Test
+  public void neighborKnownToHaveLsaIsSkipped() {
+    Router router = router(0, 64);
+    // listed in the neighbor's database description
+    assertTrue(router.flooding.markKnown(NEIGHBORS[2], "10.0.0.1", 5));
+    router.flooding.flood(lsa("10.0.0.1", 5), null);
+    sent();
+    assertEquals(1, transport.lsas(NEIGHBORS[0], "10.0.0.1").size());
+    assertEquals(0, transport.lsas(NEIGHBORS[2], "10.0.0.1").size());
+  }
+
+  @Test
+  public void forgottenNeighborIsSentAgain() {
+    Router router = router(0, 64);
+    LSA lsa = lsa("10.0.0.1", 1);
+    router.flooding.flood(lsa, null);
+    // e.g. the neighbor restarted and said HELLO again
+    router.flooding.forget(NEIGHBORS[1]);
+    router.flooding.flood(lsa, null);
+    sent();
+    assertEquals(1, transport.lsas(NEIGHBORS[0], "10.0.0.1").size());
+    assertEquals(2, transport.lsas(NEIGHBORS[1], "10.0.0.1").size());
+  }
+
+  @Test
+  public void concurrentFloodsSendOnce() throws InterruptedException {
+    final Router router = router(0, 64);
+    int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> flooders = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      Thread flooder = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int seq = 1; seq <= 200; seq++) {
+            router.flooding.flood(lsa("10.0.0.1", seq), null);
+          }
+        }
+      });
+      flooder.start();
+      flooders.add(flooder);
+    }
+    start.countDown();
+    for (Thread flooder : flooders) {
+      flooder.join();
+    }
+    sent();
+
+    // whatever the interleaving, no sequence number reached a neighbor twice, and the last
+    // one reached every neighbor
+    for (String neighbor : NEIGHBORS) {
+      List<Integer> seqs = transport.lsas(neighbor, "10.0.0.1");
+      assertEquals(seqs.size(), new HashSet<Integer>(seqs).size());
+      assertTrue(seqs.contains(200));
+    }
+    assertEquals(router.metrics.getLsasFlooded(), transport.lsas(NEIGHBORS[0], "10.0.0.1").size()
+        + transport.lsas(NEIGHBORS[1], "10.0.0.1").size() + transport.lsas(NEIGHBORS[2], "10.0.0.1").size());
+  }
+
+  @Test
+  public void lsasWithinWindowShareOnePacket() {
+    Router router = router(60000, 64);
+    for (int origin = 1; origin <= 5; origin++) {
+      router.flooding.flood(lsa("10.0.0." + origin, 1), null);
+    }
+    // replaces the pending one instead of joining the batch
+    router.flooding.flood(lsa("10.0.0.1", 2), null);
+    sent();
+    for (String neighbor : NEIGHBORS) {
+      assertEquals(1, transport.packets(neighbor));
+      assertEquals(5, transport.sent.get(neighbor).get(0).lsaArray.size());
+      assertEquals(1, transport.lsas(neighbor, "10.0.0.1").size());
+      assertEquals(2, (int) transport.lsas(neighbor, "10.0.0.1").get(0));
+    }
+    assertEquals(NEIGHBORS.length, router.metrics.getLsasCoalesced());
+    assertEquals(NEIGHBORS.length, router.metrics.getUpdatePackets());
+  }
+
+  @Test
+  public void fullBatchIsSentWithoutWaiting() {
+    Router router = router(60000, 3);
+    for (int origin = 1; origin <= 4; origin++) {
+      router.flooding.flood(lsa("10.0.0." + origin, 1), null);
+    }
+    // no flush: only the batch that filled up went out, the fourth LSA still waits
+    router.channels.closeAll();
+    for (String neighbor : NEIGHBORS) {
+      assertEquals(1, transport.packets(neighbor));
+      assertEquals(3, transport.sent.get(neighbor).get(0).lsaArray.size());
+      assertEquals(0, transport.lsas(neighbor, "10.0.0.4").size());
+    }
+  }
+}
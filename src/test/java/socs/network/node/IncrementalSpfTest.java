@@ -0,0 +1,315 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tree patched by the incremental SPF after each LSA must give every router the distance a
+ * full run over the same LSAs gives it, whichever way the change went.
+ */
+public class IncrementalSpfTest {
+
+  private static final String ROOT = "10.0.0.0";
+
+  private HashMap<String, LSA> store;
+  private IncrementalSpf spf;
+
+  @Before
+  public void createSpf() {
+    store = new HashMap<String, LSA>();
+    TopologyGraph graph = new TopologyGraph();
+    spf = new IncrementalSpf(graph, ROOT);
+  }
+
+  private static String ip(int router) {
+    return "10.0." + (router / 256) + "." + (router % 256);
+  }
+
+  private static LinkDescription link(String linkID, int weight) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = -1;
+    ld.tosMetrics = weight;
+    return ld;
+  }
+
+  /**
+   * the next LSA of the router with the given links to other routers, replacing its current one
+   */
+  private void install(int router, int[] targets, int[] weights) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = ip(router);
+    LSA old = store.get(lsa.linkStateID);
+    lsa.lsaSeqNumber = (old == null) ? 0 : old.lsaSeqNumber + 1;
+    lsa.links.add(link(lsa.linkStateID, 0));
+    for (int i = 0; i < targets.length; i++) {
+      lsa.links.add(link(ip(targets[i]), weights[i]));
+    }
+    install(lsa);
+  }
+
+  private void install(LSA lsa) {
+    store.put(lsa.linkStateID, lsa);
+    spf.lsaInstalled(lsa);
+  }
+
+  /**
+   * a copy of the router's current LSA with one more sequence number, to be changed and installed
+   */
+  private LSA next(int router) {
+    LSA old = store.get(ip(router));
+    LSA lsa = new LSA();
+    lsa.linkStateID = old.linkStateID;
+    lsa.lsaSeqNumber = old.lsaSeqNumber + 1;
+    for (LinkDescription ld : old.links) {
+      lsa.links.add(link(ld.linkID, ld.tosMetrics));
+    }
+    return lsa;
+  }
+
+  private static LinkDescription find(LSA lsa, int target) {
+    for (LinkDescription ld : lsa.links) {
+      if (ld.linkID.equals(ip(target))) {
+        return ld;
+      }
+    }
+    throw new AssertionError("no link to " + ip(target));
+  }
+
+  private static void remove(LSA lsa, int target) {
+    lsa.links.remove(find(lsa, target));
+  }
+
+  /**
+   * compares the current tree with a full run, and checks that it is a tree: every router's
+   * distance is its parent's plus the link between them, and its next hop is its parent's
+   */
+  private void assertMatchesFullRun() {
+    ShortestPathTree patched = spf.snapshot();
+    ShortestPathTree full = ShortestPathTree.compute(store, ROOT);
+    for (String ip : store.keySet()) {
+      assertEquals("distance to " + ip, full.distanceTo(ip), patched.distanceTo(ip));
+    }
+    for (int r = 0; r < patched.count; r++) {
+      if (r == patched.root || patched.distance[r] == ShortestPathTree.UNREACHABLE) {
+        assertEquals(-1, patched.parent[r]);
+        continue;
+      }
+      int p = patched.parent[r];
+      assertEquals(patched.distance[p] + patched.parentWeight[r], patched.distance[r]);
+      assertEquals(p == patched.root ? r : patched.nextHop[p], patched.nextHop[r]);
+    }
+  }
+
+  /**
+   * a chain 0 - 1 - ... - (n-1) with weight 1, plus a costly shortcut from the root to each router
+   */
+  private void chain(int n, int shortcut) {
+    for (int r = 0; r < n; r++) {
+      LinkedList<Integer> targets = new LinkedList<Integer>();
+      if (r + 1 < n) {
+        targets.add(r + 1);
+      }
+      if (r > 0) {
+        targets.add(r - 1);
+      }
+      int[] t = new int[targets.size() + (r == 0 ? n - 2 : 0)];
+      int[] w = new int[t.length];
+      int i = 0;
+      for (int target : targets) {
+        t[i] = target;
+        w[i++] = 1;
+      }
+      if (r == 0) {
+        for (int target = 2; target < n; target++) {
+          t[i] = target;
+          w[i++] = shortcut;
+        }
+      }
+      install(r, t, w);
+    }
+    assertMatchesFullRun();
+  }
+
+  @Test
+  public void weightIncreaseIsPatched() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    LSA lsa = next(5);
+    find(lsa, 6).tosMetrics = 20;
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+  }
+
+  @Test
+  public void weightDecreaseIsPatched() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    LSA lsa = next(0);
+    find(lsa, 7).tosMetrics = 2;
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+    assertEquals(2, spf.snapshot().distanceTo(ip(7)));
+    assertEquals(3, spf.snapshot().distanceTo(ip(8)));
+  }
+
+  @Test
+  public void linkRemovalIsPatched() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    LSA lsa = next(7);
+    remove(lsa, 8);
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+    assertEquals(100, spf.snapshot().distanceTo(ip(8)));
+  }
+
+  @Test
+  public void disconnectedSubtreeBecomesUnreachable() {
+    // no shortcuts: cutting the chain leaves the routers behind the cut with no way in
+    for (int r = 0; r < 10; r++) {
+      int[] t = (r + 1 < 10) ? new int[]{r + 1} : new int[0];
+      int[] w = (r + 1 < 10) ? new int[]{1} : new int[0];
+      install(r, t, w);
+    }
+    assertMatchesFullRun();
+    long full = spf.fullRuns;
+    LSA lsa = next(7);
+    remove(lsa, 8);
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+    assertEquals(-1, spf.snapshot().distanceTo(ip(8)));
+    assertEquals(-1, spf.snapshot().distanceTo(ip(9)));
+    assertNull(spf.snapshot().nextHop(ip(9)));
+  }
+
+  @Test
+  public void largeRaiseFallsBackToFullRun() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    long incremental = spf.incrementalRuns;
+    // everything from 2 on hangs below the link 1 -> 2, more than half of the tree
+    LSA lsa = next(1);
+    find(lsa, 2).tosMetrics = 50;
+    install(lsa);
+    assertEquals(incremental, spf.incrementalRuns);
+    assertMatchesFullRun();
+    assertEquals(full + 1, spf.fullRuns);
+  }
+
+  @Test
+  public void tooManyChangedLinksFallBackToFullRun() {
+    int n = IncrementalSpf.MAX_CHANGED_LINKS + 3;
+    chain(n, 100);
+
+    // exactly the limit is still patched
+    long full = spf.fullRuns;
+    LSA lsa = next(0);
+    for (int target = 2; target < 2 + IncrementalSpf.MAX_CHANGED_LINKS; target++) {
+      find(lsa, target).tosMetrics = 50;
+    }
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+
+    // one more is not
+    lsa = next(0);
+    for (int target = 2; target < 3 + IncrementalSpf.MAX_CHANGED_LINKS; target++) {
+      find(lsa, target).tosMetrics = 40;
+    }
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full + 1, spf.fullRuns);
+  }
+
+  @Test
+  public void mixedChangeFallsBackToFullRun() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    LSA lsa = next(0);
+    find(lsa, 5).tosMetrics = 3;
+    find(lsa, 6).tosMetrics = 200;
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(full + 1, spf.fullRuns);
+  }
+
+  @Test
+  public void newRouterJoinsIncrementally() {
+    chain(10, 100);
+    long full = spf.fullRuns;
+    // 10 is announced by 9 before its own LSA arrives, and only counts once it does
+    LSA lsa = next(9);
+    lsa.links.add(link(ip(10), 4));
+    install(lsa);
+    assertMatchesFullRun();
+    assertEquals(-1, spf.snapshot().distanceTo(ip(10)));
+    install(10, new int[]{9}, new int[]{4});
+    assertMatchesFullRun();
+    assertEquals(full, spf.fullRuns);
+    assertEquals(13, spf.snapshot().distanceTo(ip(10)));
+  }
+
+  @Test
+  public void randomSingleLinkChangesMatchFullRun() {
+    Random random = new Random(535);
+    int n = 40;
+    for (int r = 0; r < n; r++) {
+      int degree = 1 + random.nextInt(4);
+      int[] t = new int[degree];
+      int[] w = new int[degree];
+      for (int i = 0; i < degree; i++) {
+        int target;
+        do {
+          target = random.nextInt(n);
+        } while (target == r);
+        t[i] = target;
+        w[i] = 1 + random.nextInt(20);
+      }
+      install(r, t, w);
+    }
+    assertMatchesFullRun();
+
+    for (int step = 0; step < 2000; step++) {
+      int router = random.nextInt(n);
+      LSA lsa = next(router);
+      // the first link is the router's own entry
+      int links = lsa.links.size() - 1;
+      int change = (links == 0) ? 3 : random.nextInt(4);
+      if (change == 3) {
+        int target;
+        do {
+          target = random.nextInt(n);
+        } while (target == router);
+        lsa.links.add(link(ip(target), 1 + random.nextInt(20)));
+      } else {
+        LinkDescription ld = lsa.links.get(1 + random.nextInt(links));
+        if (change == 0) {
+          ld.tosMetrics += 1 + random.nextInt(20);
+        } else if (change == 1) {
+          ld.tosMetrics = Math.max(1, ld.tosMetrics - 1 - random.nextInt(20));
+        } else {
+          lsa.links.remove(ld);
+        }
+      }
+      install(lsa);
+      assertMatchesFullRun();
+    }
+    // the point is to exercise the patching, not the fallback
+    assertTrue(spf.incrementalRuns > spf.fullRuns);
+  }
+}
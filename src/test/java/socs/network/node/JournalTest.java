@@ -0,0 +1,299 @@
+package socs.network.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replaying a journal left behind by a crash must rebuild the database and ports the router had
+ * when the last complete record was written, however the crash cut the segments.
+ */
+public class JournalTest {
+
+  private static final String OWNER = "192.168.1.1";
+
+  private File dir;
+
+  // what the journal should replay to: newest LSA per router and the attached ports
+  private final TreeMap<String, String> lsas = new TreeMap<String, String>();
+  private final TreeMap<Integer, String> ports = new TreeMap<Integer, String>();
+
+  @Before
+  public void createDir() throws IOException {
+    dir = File.createTempFile("journal", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void deleteDir() {
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    file.delete();
+  }
+
+  private static String ip(int router) {
+    return "10.0.0." + router;
+  }
+
+  /**
+   * the i-th change of the workload: mostly LSAs from a few routers, with ports set and cleared
+   * in between so that their order matters
+   */
+  private void change(Journal journal, int i) {
+    if (i % 5 == 0) {
+      int port = i % 3;
+      Link link = new Link(new RouterDescription(), new RouterDescription("127.0.0.1", (short) (2000 + i), ip(i % 7)), i);
+      journal.portSet(port, link);
+      ports.put(port, ip(i % 7) + " weight " + i);
+    } else if (i % 5 == 3) {
+      journal.portCleared(i % 3);
+      ports.remove(i % 3);
+    } else {
+      LSA lsa = new LSA();
+      lsa.linkStateID = ip(i % 4);
+      lsa.lsaSeqNumber = i;
+      for (int l = 0; l < 1 + i % 3; l++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = ip(l + 10);
+        ld.portNum = l;
+        ld.tosMetrics = i + l;
+        lsa.links.add(ld);
+      }
+      journal.lsaInstalled(lsa);
+      lsas.put(lsa.linkStateID, lsa.lsaSeqNumber + " " + lsa.links);
+    }
+  }
+
+  /**
+   * the changes from one index to another, each committed on its own as a router would
+   */
+  private void changes(Journal journal, int from, int to) {
+    for (int i = from; i < to; i++) {
+      change(journal, i);
+      assertTrue(journal.commit());
+    }
+  }
+
+  private void forgetSince(TreeMap<String, String> savedLsas, TreeMap<Integer, String> savedPorts) {
+    lsas.clear();
+    lsas.putAll(savedLsas);
+    ports.clear();
+    ports.putAll(savedPorts);
+  }
+
+  private String expected() {
+    return lsas + " " + ports;
+  }
+
+  /**
+   * the database and ports that replaying the journal in the directory gives
+   */
+  private static String replayed(File dir) throws IOException {
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = OWNER;
+    LinkStateDatabase lsd = new LinkStateDatabase(rd);
+    TreeMap<Integer, Journal.Record> attached = new TreeMap<Integer, Journal.Record>();
+    JournalReplay.replay(JournalReplay.read(Journal.segments(dir)), lsd, attached, 0);
+
+    TreeMap<String, String> installed = new TreeMap<String, String>();
+    for (LSA lsa : lsd.snapshot().lsas.values()) {
+      if (!lsa.linkStateID.equals(OWNER)) {
+        installed.put(lsa.linkStateID, lsa.lsaSeqNumber + " " + lsa.links);
+      }
+    }
+    TreeMap<Integer, String> described = new TreeMap<Integer, String>();
+    for (Map.Entry<Integer, Journal.Record> port : attached.entrySet()) {
+      described.put(port.getKey(), port.getValue().remote.simulatedIPAddress + " weight " + port.getValue().weight);
+    }
+    return installed + " " + described;
+  }
+
+  private static byte[] contents(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int read = 0;
+      while (read < bytes.length) {
+        read += in.read(bytes, read, bytes.length - read);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  private static void write(File file, byte[] bytes, int length) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes, 0, length);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    byte[] bytes = contents(from);
+    write(to, bytes, bytes.length);
+  }
+
+  private static File last(File dir) {
+    File[] segments = Journal.segments(dir);
+    return segments[segments.length - 1];
+  }
+
+  @Test
+  public void replayGivesFinalState() throws IOException {
+    Journal journal = new Journal(dir, 256, 100, 0);
+    changes(journal, 0, 60);
+    assertTrue(Journal.segments(dir).length > 1);
+    assertEquals(expected(), replayed(dir));
+  }
+
+  @Test
+  public void tornRecordEndsSegment() throws IOException {
+    Journal journal = new Journal(dir, 1 << 20, 100, 0);
+    changes(journal, 0, 19);
+    TreeMap<String, String> lsasBefore = new TreeMap<String, String>(lsas);
+    TreeMap<Integer, String> portsBefore = new TreeMap<Integer, String>(ports);
+    String beforeLast = expected();
+    changes(journal, 19, 20);
+
+    // the crash cut the last record, an LSA, short by a few bytes
+    File segment = last(dir);
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      raf.setLength(raf.length() - 3);
+    } finally {
+      raf.close();
+    }
+    assertEquals(beforeLast, replayed(dir));
+
+    // the restarted router writes a new segment after the torn one, and both are replayed
+    forgetSince(lsasBefore, portsBefore);
+    Journal restarted = new Journal(dir, 1 << 20, 100, 0);
+    changes(restarted, 20, 40);
+    assertEquals(2, Journal.segments(dir).length);
+    assertEquals(expected(), replayed(dir));
+  }
+
+  @Test
+  public void corruptRecordEndsOnlyItsSegment() throws IOException {
+    Journal journal = new Journal(dir, 256, 100, 0);
+    changes(journal, 0, 30);
+    String full = expected();
+
+    // a flipped byte in the first record of the first segment loses the rest of that segment,
+    // but not the segments after it
+    File first = Journal.segments(dir)[0];
+    RandomAccessFile raf = new RandomAccessFile(first, "rw");
+    try {
+      raf.seek(9);
+      int b = raf.read();
+      raf.seek(9);
+      raf.write(b ^ 0xFF);
+    } finally {
+      raf.close();
+    }
+    assertEquals(0, Journal.read(first).size());
+    assertTrue(Journal.read(Journal.segments(dir)[1]).size() > 0);
+    // every router and port the workload touches comes up again in the later segments
+    assertEquals(full, replayed(dir));
+  }
+
+  @Test
+  public void retriedGroupDuplicatesAreHarmless() throws IOException {
+    // ten records, then ten more standing for one group that sets and clears the same ports
+    Journal journal = new Journal(dir, 1 << 20, 100, 0);
+    changes(journal, 0, 10);
+    File segment = last(dir);
+    int firstGroup = (int) segment.length();
+    int records = Journal.read(segment).size();
+    changes(journal, 10, 20);
+    byte[] bytes = contents(segment);
+
+    // the write of the second group failed part of the way through, leaving some of its records
+    // and a torn one at the end of the segment; the retry wrote all of it to a new segment
+    File crashed = new File(dir, "crashed");
+    crashed.mkdirs();
+    File torn = new File(crashed, segment.getName());
+    write(torn, bytes, firstGroup + (bytes.length - firstGroup) / 2);
+    File retried = new File(crashed, String.format("segment-%020d.journal", records));
+    write(retried, Arrays.copyOfRange(bytes, firstGroup, bytes.length), bytes.length - firstGroup);
+
+    assertTrue(Journal.read(torn).size() > records);
+    assertEquals(expected(), replayed(crashed));
+
+    // and the router restarted on that journal carries on after the retried segment
+    Journal restarted = new Journal(crashed, 1 << 20, 100, 0);
+    changes(restarted, 20, 30);
+    assertEquals(3, Journal.segments(crashed).length);
+    assertEquals(expected(), replayed(crashed));
+  }
+
+  @Test
+  public void crashBetweenCompactionRenameAndDeletes() throws IOException {
+    Journal journal = new Journal(dir, 256, 100, 0);
+    changes(journal, 0, 60);
+    File[] before = Journal.segments(dir);
+    assertTrue(before.length > 3);
+
+    // the same journal with one more record, once without compaction and once with
+    File plain = new File(dir, "plain");
+    File compacted = new File(dir, "compacted");
+    plain.mkdirs();
+    compacted.mkdirs();
+    for (File segment : before) {
+      copy(segment, new File(plain, segment.getName()));
+      copy(segment, new File(compacted, segment.getName()));
+    }
+    TreeMap<String, String> lsasBefore = new TreeMap<String, String>(lsas);
+    TreeMap<Integer, String> portsBefore = new TreeMap<Integer, String>(ports);
+    // a record large enough to close its segment, which starts the compaction
+    Journal rotating = new Journal(plain, 1, 100, 0);
+    changes(rotating, 60, 61);
+    forgetSince(lsasBefore, portsBefore);
+    Journal compacting = new Journal(compacted, 1, 1, 0);
+    changes(compacting, 60, 61);
+    assertEquals(1, compacting.metrics.getJournalCompactions());
+    assertEquals(1, Journal.segments(compacted).length);
+    assertEquals(expected(), replayed(compacted));
+
+    // the crash left the compacted first segment and every folded segment after it
+    File crashed = new File(dir, "crashed");
+    crashed.mkdirs();
+    File[] all = Journal.segments(plain);
+    copy(Journal.segments(compacted)[0], new File(crashed, all[0].getName()));
+    for (int i = 1; i < all.length; i++) {
+      copy(all[i], new File(crashed, all[i].getName()));
+    }
+    assertEquals(expected(), replayed(plain));
+    assertEquals(expected(), replayed(crashed));
+
+    // as did a crash part of the way through the deletes
+    new File(crashed, all[1].getName()).delete();
+    assertEquals(expected(), replayed(crashed));
+  }
+}
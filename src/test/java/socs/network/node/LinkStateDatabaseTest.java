@@ -0,0 +1,97 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A snapshot taken while LSAs are being installed must be the database exactly as it was at the
+ * version it carries, and must not change when more LSAs are installed afterwards.
+ */
+public class LinkStateDatabaseTest {
+
+  private static final String OWNER = "192.168.1.1";
+
+  private static LSA lsa(String origin, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = origin;
+    lsa.lsaSeqNumber = seq;
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = origin;
+    ld.portNum = -1;
+    lsa.links.add(ld);
+    return lsa;
+  }
+
+  /**
+   * the number of installs that give the snapshot's LSAs when every router's LSAs are installed
+   * in order from sequence number 0
+   */
+  private static long installs(LinkStateDatabase.Snapshot snapshot) {
+    long installs = 0;
+    for (LSA lsa : snapshot.lsas.values()) {
+      if (lsa.lsaSeqNumber != Integer.MIN_VALUE) {
+        installs += lsa.lsaSeqNumber + 1;
+      }
+    }
+    return installs;
+  }
+
+  @Test
+  public void snapshotMatchesItsVersion() throws InterruptedException {
+    final LinkStateDatabase lsd = new LinkStateDatabase(new RouterDescription("127.0.0.1", (short) 30001, OWNER));
+    final AtomicBoolean done = new AtomicBoolean();
+    List<Thread> installers = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final String origin = "10.0.0." + t;
+      Thread installer = new Thread(new Runnable() {
+        public void run() {
+          for (int seq = 0; seq < 20000; seq++) {
+            lsd.install(lsa(origin, seq));
+          }
+          done.set(true);
+        }
+      });
+      installer.start();
+      installers.add(installer);
+    }
+    int taken = 0;
+    while (!done.get() || taken < 10) {
+      LinkStateDatabase.Snapshot snapshot = lsd.snapshot();
+      assertEquals(snapshot.version, installs(snapshot));
+      taken++;
+    }
+    for (Thread installer : installers) {
+      installer.join();
+    }
+    LinkStateDatabase.Snapshot last = lsd.snapshot();
+    assertEquals(4 * 20000, last.version);
+    assertEquals(last.version, installs(last));
+    assertTrue(taken >= 10);
+  }
+
+  @Test
+  public void snapshotIsKeptUntilTheNextInstall() {
+    LinkStateDatabase lsd = new LinkStateDatabase(new RouterDescription("127.0.0.1", (short) 30001, OWNER));
+    lsd.install(lsa("10.0.0.1", 0));
+    LinkStateDatabase.Snapshot before = lsd.snapshot();
+    assertSame(before, lsd.snapshot());
+
+    lsd.install(lsa("10.0.0.1", 1));
+    lsd.install(lsa("10.0.0.2", 0));
+    assertEquals(0, before.lsas.get("10.0.0.1").lsaSeqNumber);
+    assertEquals(2, before.lsas.size());
+    LinkStateDatabase.Snapshot after = lsd.snapshot();
+    assertEquals(before.version + 2, after.version);
+    assertEquals(1, after.lsas.get("10.0.0.1").lsaSeqNumber);
+    assertEquals(3, after.lsas.size());
+  }
+}
@@ -0,0 +1,46 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.util.Configuration;
+
+import java.io.IOException;
+
+import static org.junit.Assert.fail;
+
+/**
+ * A router that closes must give its address back, so another router of the same JVM can listen
+ * there, and closing it again must not take the address from the router listening there now.
+ */
+public class MemoryTransportTest {
+
+  private static final short PORT = 31000;
+
+  private static Router router(MemoryTransport transport, String simulatedIP) {
+    Configuration config = new Configuration();
+    config.addEntry("socs.network.router.ip", simulatedIP);
+    config.addEntry("socs.network.router.portNumber", String.valueOf(PORT));
+    return new Router(config, transport);
+  }
+
+  @Test
+  public void closedAddressCanBeListenedOnAgain() throws IOException {
+    MemoryTransport transport = new MemoryTransport();
+    RouterDescription address = new RouterDescription("127.0.0.1", PORT, "10.9.0.1");
+    Router first = router(transport, "10.9.0.1");
+    transport.connect(address).close();
+
+    first.close();
+    try {
+      transport.connect(address);
+      fail("nothing should listen on a closed router's address");
+    } catch (IOException expected) {
+    }
+
+    Router second = router(transport, "10.9.0.2");
+    transport.connect(address).close();
+    // the first router no longer owns the address
+    first.close();
+    transport.connect(address).close();
+    second.close();
+  }
+}
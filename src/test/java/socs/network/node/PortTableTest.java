@@ -0,0 +1,128 @@
+package socs.network.node;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A link must take the lowest free port, the table must grow as links are attached but never
+ * past the maximum degree, and a port freed by a removal must be the next one handed out.
+ */
+public class PortTableTest {
+
+  private static Link link(int router) {
+    RouterDescription remote = new RouterDescription("127.0.0.1", (short) (40000 + router), "10.0.0." + router);
+    return new Link(new RouterDescription(), remote, 1);
+  }
+
+  @Test
+  public void growsUpToMaxDegree() {
+    PortTable ports = new PortTable(10);
+    assertEquals(4, ports.limit());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, ports.attach(link(i)));
+    }
+    assertEquals(10, ports.size());
+    assertEquals(10, ports.limit());
+    // full, whatever the router
+    assertEquals(-1, ports.attach(link(10)));
+    assertEquals(10, ports.limit());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("10.0.0." + i, ports.get(i).router2.simulatedIPAddress);
+      assertEquals(i, ports.portOf("10.0.0." + i));
+    }
+  }
+
+  @Test
+  public void defaultDegreeIsTheOriginalFour() {
+    PortTable ports = new PortTable(4);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, ports.attach(link(i)));
+    }
+    assertEquals(-1, ports.attach(link(4)));
+    assertEquals(4, ports.maxDegree());
+    assertEquals(1, new PortTable(0).maxDegree());
+  }
+
+  @Test
+  public void freedPortIsReused() {
+    PortTable ports = new PortTable(8);
+    for (int i = 0; i < 6; i++) {
+      ports.attach(link(i));
+    }
+    Link removed = ports.remove(2);
+    assertEquals("10.0.0.2", removed.router2.simulatedIPAddress);
+    assertNull(ports.get(2));
+    assertNull(ports.find("10.0.0.2"));
+    assertEquals(-1, ports.portOf("10.0.0.2"));
+    ports.remove(4);
+    assertEquals(4, ports.size());
+
+    // the lowest free port first
+    assertEquals(2, ports.attach(link(6)));
+    assertEquals(4, ports.attach(link(7)));
+    assertEquals(6, ports.attach(link(8)));
+    // the router that was removed can come back, at the next free port
+    assertEquals(7, ports.attach(link(2)));
+    assertEquals(8, ports.size());
+    assertEquals(-1, ports.attach(link(9)));
+  }
+
+  @Test
+  public void sameRouterIsAttachedOnce() {
+    PortTable ports = new PortTable(4);
+    assertEquals(0, ports.attach(link(1)));
+    assertEquals(-1, ports.attach(link(1)));
+    assertEquals(1, ports.size());
+  }
+
+  @Test
+  public void replaceKeepsPort() {
+    PortTable ports = new PortTable(4);
+    ports.attach(link(0));
+    ports.attach(link(1));
+    Link replacement = link(1);
+    ports.replace(1, replacement);
+    assertSame(replacement, ports.find("10.0.0.1"));
+    assertEquals(2, ports.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void replaceWithOtherRouterIsRefused() {
+    PortTable ports = new PortTable(4);
+    ports.attach(link(0));
+    ports.replace(0, link(1));
+  }
+
+  @Test
+  public void outOfRangePortsAreFree() {
+    PortTable ports = new PortTable(4);
+    assertNull(ports.get(-1));
+    assertNull(ports.get(100));
+    assertNull(ports.remove(100));
+    assertTrue(ports.isEmpty());
+  }
+
+  @Test
+  public void iterationSkipsFreePortsAndIgnoresLaterChanges() {
+    PortTable ports = new PortTable(8);
+    for (int i = 0; i < 5; i++) {
+      ports.attach(link(i));
+    }
+    ports.remove(1);
+    ports.remove(3);
+    Iterator<Link> links = ports.iterator();
+    ports.remove(4);
+    ports.attach(link(9));
+    assertEquals("10.0.0.0", links.next().router2.simulatedIPAddress);
+    assertEquals("10.0.0.2", links.next().router2.simulatedIPAddress);
+    assertEquals("10.0.0.4", links.next().router2.simulatedIPAddress);
+    assertFalse(links.hasNext());
+  }
+}
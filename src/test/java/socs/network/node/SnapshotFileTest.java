@@ -0,0 +1,108 @@
+package socs.network.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LinkDescription;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A router restarted from a snapshot whose body cannot be used must still number its LSAs past
+ * the reservation, or it would reuse sequence numbers the network already holds.
+ */
+public class SnapshotFileTest {
+
+  private File file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = File.createTempFile("lsdb", ".snapshot");
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  private static LinkStateDatabase database() {
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = "192.168.1.1";
+    return new LinkStateDatabase(rd);
+  }
+
+  private static LinkedList<LinkDescription> links() {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = "192.168.1.1";
+    ld.portNum = -1;
+    ld.tosMetrics = 0;
+    LinkedList<LinkDescription> links = new LinkedList<LinkDescription>();
+    links.add(ld);
+    return links;
+  }
+
+  /**
+   * a router that left the snapshot unclosed, as if it crashed
+   */
+  private SnapshotFile crashed(int originations, boolean written) throws IOException {
+    LinkStateDatabase lsd = database();
+    SnapshotFile snapshot = new SnapshotFile(file, lsd);
+    snapshot.load();
+    lsd.snapshotFile = snapshot;
+    for (int i = 0; i < originations; i++) {
+      lsd.originate(links());
+    }
+    if (written) {
+      snapshot.write();
+    }
+    return snapshot;
+  }
+
+  private int restartAndOriginate() throws IOException {
+    LinkStateDatabase lsd = database();
+    SnapshotFile snapshot = new SnapshotFile(file, lsd);
+    assertEquals(0, snapshot.load());
+    lsd.snapshotFile = snapshot;
+    return lsd.originate(links()).lsaSeqNumber;
+  }
+
+  @Test
+  public void headerOnlySnapshotKeepsReservation() throws IOException {
+    crashed(3, false);
+    assertTrue(restartAndOriginate() >= SnapshotFile.SEQ_BLOCK);
+  }
+
+  @Test
+  public void corruptedSnapshotKeepsReservation() throws IOException {
+    crashed(3, true);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // the first byte of the body, part of the owner's ip
+      raf.seek(17);
+      int b = raf.read();
+      raf.seek(17);
+      raf.write(b ^ 0xFF);
+    } finally {
+      raf.close();
+    }
+    assertTrue(restartAndOriginate() >= SnapshotFile.SEQ_BLOCK);
+  }
+
+  @Test
+  public void reservationMovesUpAfterRestart() throws IOException {
+    crashed(1, false);
+    int seq = restartAndOriginate();
+    assertEquals(SnapshotFile.SEQ_BLOCK, seq);
+    // the restarted router reserved the block after the one it numbers from
+    LinkStateDatabase lsd = database();
+    SnapshotFile snapshot = new SnapshotFile(file, lsd);
+    snapshot.load();
+    assertEquals(seq + SnapshotFile.SEQ_BLOCK, snapshot.firstSeq());
+  }
+}
@@ -0,0 +1,115 @@
+package socs.network.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Items must come out of the heap by priority, a decreased key must take effect at once, and
+ * an item must be known to be in the heap exactly while it is.
+ */
+public class IndexedMinHeapTest {
+
+  @Test
+  public void pollsInPriorityOrder() {
+    Random random = new Random(535);
+    int n = 1000;
+    IndexedMinHeap heap = new IndexedMinHeap(n);
+    for (int item = 0; item < n; item++) {
+      heap.insert(item, random.nextInt(100));
+    }
+    assertEquals(n, heap.size());
+    int previous = Integer.MIN_VALUE;
+    for (int i = 0; i < n; i++) {
+      int item = heap.poll();
+      assertTrue(heap.keyOf(item) >= previous);
+      previous = heap.keyOf(item);
+    }
+    assertTrue(heap.isEmpty());
+  }
+
+  @Test
+  public void decreaseKeyMovesItemUp() {
+    IndexedMinHeap heap = new IndexedMinHeap(8);
+    for (int item = 0; item < 8; item++) {
+      heap.insert(item, 10 + item);
+    }
+    heap.decreaseKey(7, 1);
+    assertEquals(1, heap.keyOf(7));
+    assertEquals(7, heap.poll());
+    // lowering to an equal priority is allowed and keeps the order among the rest
+    heap.decreaseKey(5, 15);
+    heap.decreaseKey(6, 3);
+    assertEquals(6, heap.poll());
+    for (int item = 0; item < 6; item++) {
+      assertEquals(item, heap.poll());
+    }
+    assertTrue(heap.isEmpty());
+  }
+
+  @Test
+  public void randomDecreaseKeysKeepOrder() {
+    Random random = new Random(42);
+    int n = 500;
+    IndexedMinHeap heap = new IndexedMinHeap(n);
+    int[] expected = new int[n];
+    for (int item = 0; item < n; item++) {
+      expected[item] = 1000 + random.nextInt(1000);
+      heap.insert(item, expected[item]);
+    }
+    for (int i = 0; i < 2000; i++) {
+      int item = random.nextInt(n);
+      expected[item] = Math.max(0, expected[item] - random.nextInt(50));
+      heap.decreaseKey(item, expected[item]);
+    }
+    int previous = Integer.MIN_VALUE;
+    while (!heap.isEmpty()) {
+      int item = heap.poll();
+      assertEquals(expected[item], heap.keyOf(item));
+      assertTrue(expected[item] >= previous);
+      previous = expected[item];
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void increasingKeyIsRefused() {
+    IndexedMinHeap heap = new IndexedMinHeap(2);
+    heap.insert(0, 5);
+    heap.decreaseKey(0, 6);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void insertingTwiceIsRefused() {
+    IndexedMinHeap heap = new IndexedMinHeap(2);
+    heap.insert(0, 5);
+    heap.insert(0, 4);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void pollingEmptyHeapFails() {
+    new IndexedMinHeap(1).poll();
+  }
+
+  @Test
+  public void containsTracksMembership() {
+    IndexedMinHeap heap = new IndexedMinHeap(4);
+    heap.insert(2, 7);
+    heap.insert(3, 1);
+    assertTrue(heap.contains(2));
+    assertFalse(heap.contains(0));
+    assertEquals(3, heap.poll());
+    assertFalse(heap.contains(3));
+    // a polled item can go back in
+    heap.insert(3, 9);
+    heap.clear();
+    assertTrue(heap.isEmpty());
+    assertFalse(heap.contains(2));
+    assertFalse(heap.contains(3));
+    heap.insert(2, 0);
+    assertEquals(2, heap.poll());
+  }
+}
@@ -0,0 +1,143 @@
+package socs.network.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests coming back to back must find the hold interval doubled each time up to the maximum
+ * wait, and a quiet period as long as the maximum wait must bring it back to the start.
+ */
+public class ThrottleTest {
+
+  /**
+   * keeps what is scheduled, with its delay, for the test to run when it wants
+   */
+  private static class RecordingTimers extends ScheduledThreadPoolExecutor {
+    final List<Long> delays = new ArrayList<Long>();
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    RecordingTimers() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      delays.add(unit.toMillis(delay));
+      tasks.add(command);
+      return null;
+    }
+
+    long lastDelay() {
+      return delays.get(delays.size() - 1);
+    }
+
+    void runLast() {
+      tasks.get(tasks.size() - 1).run();
+    }
+  }
+
+  private final RecordingTimers timers = new RecordingTimers();
+  private final AtomicInteger runs = new AtomicInteger();
+
+  private final Runnable action = new Runnable() {
+    public void run() {
+      runs.incrementAndGet();
+    }
+  };
+
+  @After
+  public void shutdown() {
+    timers.shutdown();
+  }
+
+  /**
+   * a request right after a run, as the timer runs it, returning the delay it was given
+   */
+  private long requestAndRun(Throttle throttle) {
+    throttle.request();
+    long delay = timers.lastDelay();
+    timers.runLast();
+    return delay;
+  }
+
+  private static void assertAbout(long expected, long delay) {
+    // the time between the last run and the request comes off the wait
+    assertTrue("delay " + delay + " for hold " + expected, delay <= expected && delay > expected - 100);
+  }
+
+  @Test
+  public void holdDoublesUpToMaxWait() {
+    Throttle throttle = new Throttle(timers, 5, 1000, 8000, action);
+    assertEquals(5, requestAndRun(throttle));
+    assertAbout(1000, requestAndRun(throttle));
+    assertAbout(2000, requestAndRun(throttle));
+    assertAbout(4000, requestAndRun(throttle));
+    assertAbout(8000, requestAndRun(throttle));
+    assertAbout(8000, requestAndRun(throttle));
+    assertEquals(6, runs.get());
+    assertTrue(throttle.toString().contains("hold=8000ms"));
+  }
+
+  @Test
+  public void holdStartsOverAfterQuietMaxWait() throws InterruptedException {
+    Throttle throttle = new Throttle(timers, 0, 100, 200, action);
+    assertEquals(0, requestAndRun(throttle));
+    assertAbout(100, requestAndRun(throttle));
+    assertAbout(200, requestAndRun(throttle));
+
+    Thread.sleep(250);
+    assertEquals(0, requestAndRun(throttle));
+    assertAbout(100, requestAndRun(throttle));
+  }
+
+  @Test
+  public void requestsWhilePendingAreFolded() {
+    Throttle throttle = new Throttle(timers, 50, 1000, 8000, action);
+    throttle.request();
+    throttle.request();
+    throttle.request();
+    assertEquals(1, timers.tasks.size());
+    assertEquals(2, throttle.suppressed.get());
+    timers.runLast();
+    assertEquals(1, runs.get());
+    // a second timer for the same run does nothing
+    timers.runLast();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void flushRunsPendingRightAway() {
+    Throttle throttle = new Throttle(timers, 50, 1000, 8000, action);
+    throttle.flush();
+    assertEquals(0, runs.get());
+    throttle.request();
+    throttle.flush();
+    assertEquals(1, runs.get());
+    timers.runLast();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void failingActionDoesNotStopThrottle() {
+    Throttle throttle = new Throttle(timers, 0, 1000, 8000, new Runnable() {
+      public void run() {
+        runs.incrementAndGet();
+        throw new IllegalStateException("failed on purpose");
+      }
+    });
+    requestAndRun(throttle);
+    requestAndRun(throttle);
+    assertEquals(2, runs.get());
+    assertEquals(2, throttle.runs.get());
+  }
+}
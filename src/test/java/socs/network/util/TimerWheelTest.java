@@ -0,0 +1,128 @@
+package socs.network.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A timer must run no earlier than its delay, including one more than a turn of the wheel
+ * away, and a cancelled timer must never run, whether or not it already sits in a bucket.
+ */
+public class TimerWheelTest {
+
+  // 8 buckets of 10ms: one turn is 80ms
+  private final TimerWheel wheel = new TimerWheel("test-wheel", 10, 8);
+
+  @After
+  public void stop() {
+    wheel.stop();
+  }
+
+  /**
+   * schedules a task counting down the latch, and returns how long it took to run, in ms
+   */
+  private long runsAfter(long delayMs) throws InterruptedException {
+    final CountDownLatch ran = new CountDownLatch(1);
+    long started = System.nanoTime();
+    wheel.schedule(new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    }, delayMs);
+    assertTrue(ran.await(delayMs + 2000, TimeUnit.MILLISECONDS));
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+  }
+
+  @Test
+  public void expiresAfterDelay() throws InterruptedException {
+    assertTrue(runsAfter(50) >= 50);
+    assertTrue(runsAfter(0) >= 0);
+    assertEquals(2, wheel.expired.get());
+  }
+
+  @Test
+  public void expiresAfterSeveralTurns() throws InterruptedException {
+    assertTrue(runsAfter(250) >= 250);
+  }
+
+  @Test
+  public void expiresInDeadlineOrder() throws InterruptedException {
+    final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+    final CountDownLatch done = new CountDownLatch(3);
+    for (final int delay : new int[]{90, 30, 60}) {
+      wheel.schedule(new Runnable() {
+        public void run() {
+          order.add(delay);
+          done.countDown();
+        }
+      }, delay);
+    }
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals(30, (int) order.get(0));
+    assertEquals(60, (int) order.get(1));
+    assertEquals(90, (int) order.get(2));
+  }
+
+  // counts the runs of timers that should never run
+  private final AtomicInteger wrongRuns = new AtomicInteger();
+
+  private final Runnable never = new Runnable() {
+    public void run() {
+      wrongRuns.incrementAndGet();
+    }
+  };
+
+  @Test
+  public void cancelledBeforeTransferNeverRuns() throws InterruptedException {
+    TimerWheel.Timeout timeout = wheel.schedule(never, 30);
+    timeout.cancel();
+    assertTrue(timeout.isCancelled());
+    // a timer that does run afterwards shows the wheel went past the cancelled one
+    runsAfter(100);
+    assertEquals(0, wrongRuns.get());
+    assertEquals(1, wheel.cancelled.get());
+    assertEquals(1, wheel.expired.get());
+  }
+
+  @Test
+  public void cancelledInBucketNeverRuns() throws InterruptedException {
+    TimerWheel.Timeout timeout = wheel.schedule(never, 200);
+    // by now the wheel has moved it into its bucket
+    Thread.sleep(50);
+    timeout.cancel();
+    runsAfter(250);
+    assertEquals(0, wrongRuns.get());
+    assertEquals(1, wheel.cancelled.get());
+    assertEquals(1, wheel.expired.get());
+  }
+
+  @Test
+  public void failingTaskDoesNotStopWheel() throws InterruptedException {
+    wheel.schedule(new Runnable() {
+      public void run() {
+        throw new IllegalStateException("failed on purpose");
+      }
+    }, 10);
+    assertTrue(runsAfter(50) >= 50);
+    assertEquals(2, wheel.expired.get());
+  }
+
+  @Test
+  public void stoppedWheelRunsNothing() throws InterruptedException {
+    wheel.schedule(never, 30);
+    wheel.stop();
+    Thread.sleep(100);
+    assertEquals(0, wrongRuns.get());
+    assertEquals(0, wheel.expired.get());
+    assertFalse(wheel.toString().isEmpty());
+  }
+}